@@ -0,0 +1,75 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc;
+
+import java.io.IOException;
+
+//Assertions shared by the self-test programs (the *Test classes with a main()).
+public class TestCheck
+{
+    public interface Attempt
+    {
+        public void run() throws IOException;
+    }
+
+    private String name;
+
+    public TestCheck(String testName)
+    {
+        name = testName;
+    }
+
+    public void check(boolean condition, String what) throws Exception
+    {
+        if(!condition)
+            fail(what);
+    }
+
+    public void fail(String what) throws Exception
+    {
+        throw new Exception(name + " test failed: " + what);
+    }
+
+    //Passes if the attempt throws IOException.
+    public void checkRejected(Attempt attempt, String what) throws Exception
+    {
+        try {
+            attempt.run();
+        } catch(IOException e) {
+            return;
+        }
+        fail(what + " accepted");
+    }
+
+    public void passed()
+    {
+        System.err.println(name + " test passed.");
+    }
+}
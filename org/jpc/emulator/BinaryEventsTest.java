@@ -0,0 +1,177 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.io.*;
+import java.util.*;
+
+import org.jpc.TestCheck;
+
+public class BinaryEventsTest
+{
+    private static final TestCheck test = new TestCheck("Binary event");
+
+    private static final String KEYBOARD = "org.jpc.emulator.peripheral.Keyboard";
+    private static final String RESET = "org.jpc.emulator.PC$ResetButton";
+
+    private static void varint(ByteArrayOutputStream out, long value)
+    {
+        while((value & ~0x7FL) != 0) {
+            out.write((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static void string(ByteArrayOutputStream out, String value) throws IOException
+    {
+        byte[] buf = value.getBytes("UTF-8");
+        varint(out, buf.length);
+        out.write(buf);
+    }
+
+    //Events with null and empty arguments, reused class and string table entries, a timestamp needing
+    //a multi-byte number and SAVESTATE events with one and two arguments. Writers always give the
+    //rerecord count, so oneArgSave selects the form in the stream.
+    private static byte[] stream(boolean oneArgSave) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        varint(out, 2);     //New class.
+        string(out, KEYBOARD);
+        varint(out, 5);
+        varint(out, 0);     //Null arguments.
+
+        varint(out, 3);     //Class #0.
+        varint(out, 0);
+        varint(out, 1);     //No arguments.
+
+        varint(out, 3);
+        varint(out, 10);
+        varint(out, 4);
+        varint(out, 0);     //New string.
+        string(out, "KEYEDGE");
+        varint(out, 0);
+        string(out, "30");
+        varint(out, 1);     //String #0.
+
+        varint(out, 2);
+        string(out, RESET);
+        varint(out, 1L << 40);
+        varint(out, 2);
+        varint(out, 2);     //String #1.
+
+        varint(out, 1);     //Savestate.
+        varint(out, 1);
+        varint(out, oneArgSave ? 2 : 3);
+        varint(out, 0);
+        string(out, "first");
+        if(!oneArgSave) {
+            varint(out, 0);
+            string(out, "0");
+        }
+
+        varint(out, 1);
+        varint(out, 1);
+        varint(out, 3);
+        varint(out, 0);
+        string(out, "second");
+        varint(out, 0);
+        string(out, "12");
+
+        varint(out, 0);     //End.
+        return out.toByteArray();
+    }
+
+    private static void checkEvent(EventRecorder events, long sequence, long timestamp, String... data)
+        throws Exception
+    {
+        EventRecorder.ReturnEvent ev = events.getEventBySequence(sequence);
+        test.check(ev != null, "event #" + sequence + " missing");
+        test.check(ev.timestamp == timestamp, "event #" + sequence + " timestamp " + ev.timestamp);
+        test.check(Arrays.equals(ev.eventData, data), "event #" + sequence + " data " + Arrays.toString(ev.eventData));
+    }
+
+    private static void checkRejected(final byte[] data, String what) throws Exception
+    {
+        test.checkRejected(new TestCheck.Attempt() {
+            public void run() throws IOException
+            {
+                new EventRecorder(new ByteArrayInputStream(data));
+            }
+        }, what);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        EventRecorder events = new EventRecorder(new ByteArrayInputStream(stream(true)));
+        long big = 15 + (1L << 40);
+        test.check(events.getEventCount() == 6, "event count " + events.getEventCount());
+        checkEvent(events, 0, 5, KEYBOARD);
+        checkEvent(events, 1, 5, KEYBOARD);
+        checkEvent(events, 2, 15, KEYBOARD, "KEYEDGE", "30", "KEYEDGE");
+        checkEvent(events, 3, big, RESET, "30");
+        checkEvent(events, 4, big + 1, "SAVESTATE", "first", "0");
+        checkEvent(events, 5, big + 2, "SAVESTATE", "second", "12");
+
+        //Null and empty arguments look the same above, but must be written back differently.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        events.saveEvents(out);
+        test.check(Arrays.equals(out.toByteArray(), stream(false)), "reencoded stream differs");
+        out = new ByteArrayOutputStream();
+        new EventRecorder(new ByteArrayInputStream(stream(false))).saveEvents(out);
+        test.check(Arrays.equals(out.toByteArray(), stream(false)), "stream doesn't round trip");
+
+        byte[] data = stream(true);
+        checkRejected(Arrays.copyOf(data, data.length - 1), "truncated stream");
+        checkRejected(new byte[]{4, 0, 0, 0}, "reference to missing class");
+        checkRejected(new byte[]{1, 0, 2, 5, 0}, "reference to missing string");
+        checkRejected(new byte[]{1, 0, 1, 0}, "savestate without ID");
+        checkRejected(new byte[]{1, 0, 4, 0, 1, 65, 1, 1, 1, 0}, "savestate with three arguments");
+        checkRejected(new byte[]{2, 3, 65, 66, 67, 0, 0, 0}, "unknown class");
+        out = new ByteArrayOutputStream();
+        varint(out, -1);
+        checkRejected(out.toByteArray(), "negative class reference");
+        out = new ByteArrayOutputStream();
+        out.write(new byte[]{1, 0, 2});
+        varint(out, -1);
+        checkRejected(out.toByteArray(), "negative string reference");
+        out = new ByteArrayOutputStream();
+        out.write(new byte[]{1, 0, 2, 0});
+        varint(out, Integer.MAX_VALUE);
+        out.write(new byte[]{65, 66, 67});
+        checkRejected(out.toByteArray(), "truncated huge string");
+        out = new ByteArrayOutputStream();
+        out.write(new byte[]{1, 0});
+        varint(out, Integer.MAX_VALUE);
+        out.write(new byte[]{0, 1, 65});
+        checkRejected(out.toByteArray(), "truncated huge argument list");
+        test.passed();
+    }
+}
@@ -43,6 +43,9 @@ public class Clock extends AbstractHardwareComponent
     private long lastUpdateAt;
     private long currentMillisecs;
     private long lastMillisecs;
+    //Time can pass freely below this without firing timers or reporting. Not saved, it is just cache.
+    private volatile long quietUntil = Long.MIN_VALUE;
+    private long quietNextEvent;
 
     public void dumpSRPartial(SRDumper output) throws IOException
     {
@@ -92,6 +95,7 @@ public class Clock extends AbstractHardwareComponent
 
     public synchronized void update(Timer object)
     {
+        quietUntil = Long.MIN_VALUE;
         timers.remove(object);
         if(object.enabled())
             timers.offer(object);
@@ -128,25 +132,38 @@ public class Clock extends AbstractHardwareComponent
         return "Clock";
     }
 
-    public static long timePasses(Clock c, int ticks)
+    private static void reportTick(Clock c, long ticksPassed, int ticks)
     {
-        if(c.currentTime % 1000000000 > (c.currentTime + ticks) % 1000000000) {
+        if(c.currentTime % 1000000000 > (c.currentTime + ticksPassed) % 1000000000 || ticksPassed >= 1000000000) {
             long curTime = System.currentTimeMillis();
             c.currentMillisecs += (curTime - c.lastUpdateAt);
             long dtreal = c.currentMillisecs - c.lastMillisecs;
             if(dtreal < 1) dtreal = 1;  /* Avoid Div-by-zero */
             c.lastUpdateAt = curTime;
-            System.err.println("Informational: Timer ticked " + (c.currentTime + ticks) + ", realtime: " +
+            System.err.println("Informational: Timer ticked " + (c.currentTime + ticksPassed) + ", realtime: " +
                 dtreal + "ms, " + (100000 / dtreal) + "%," +
                 " kips: " + (1000000000 / ticks) / dtreal + ".");
             c.lastMillisecs = c.currentMillisecs;
         }
+    }
+
+    public static long timePasses(Clock c, int ticks)
+    {
+        //Common case: no timer due and no report to print, just count the time.
+        long newTime = c.currentTime + ticks;
+        if(newTime < c.quietUntil) {
+            c.currentTime = newTime;
+            return c.quietNextEvent;
+        }
+
+        reportTick(c, ticks, ticks);
         c.currentTime += ticks;
 
         while(true) {
             Timer tempTimer;
             tempTimer = c.timers.peek();
             if((tempTimer == null) || !tempTimer.check(c.getTime())) {
+                c.updateQuietPeriod();
                 if(tempTimer == null || !tempTimer.enabled())
                     return -1;
                 return tempTimer.getExpiry();
@@ -154,6 +171,39 @@ public class Clock extends AbstractHardwareComponent
         }
     }
 
+    private synchronized void updateQuietPeriod()
+    {
+        //Under the lock so that timers updated from other threads can't be missed. Queued timers
+        //are always enabled, and calling into them here could deadlock.
+        Timer tempTimer = timers.peek();
+        long next = (tempTimer == null) ? -1 : tempTimer.getExpiry();
+        long until = (currentTime / 1000000000 + 1) * 1000000000;
+        if(next >= 0 && next < until)
+            until = next;
+        quietNextEvent = next;
+        quietUntil = until;
+    }
+
+    /**
+     * Advances time in steps of <code>ticks</code> for as long as no timer would
+     * fire, i.e. up to the last step before the next timer is due. The next call
+     * to <code>timePasses</code> then fires the timers exactly as stepwise calls
+     * would have.
+     * @param c clock to advance.
+     * @param ticks length of single step.
+     */
+    public static void skipToNextEvent(Clock c, int ticks)
+    {
+        long next = c.getNextEventTime();
+        if(next <= c.currentTime)
+            return;
+        long skipped = ((next - c.currentTime - 1) / ticks) * ticks;
+        if(skipped == 0)
+            return;
+        reportTick(c, skipped, ticks);
+        c.currentTime += skipped;
+    }
+
     // When does next timer fire. -1 if there's nothing scheduled.
     public long getNextEventTime()
     {
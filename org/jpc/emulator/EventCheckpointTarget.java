@@ -0,0 +1,43 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+/**
+ * Event dispatch target that can snapshot the state it rebuilds from state effect
+ * events. EventRecorder keeps these snapshots at savestate events, so attaching
+ * can resume the replay from the nearest such event instead of the stream start.
+ */
+public interface EventCheckpointTarget extends EventDispatchTarget
+{
+    //Returns state built by events dispatched since startEventCheck(). Must not share mutable data.
+    public Object getEventCheckpoint();
+    //Called after startEventCheck() with value earlier returned by getEventCheckpoint().
+    public void setEventCheckpoint(Object checkpoint);
+}
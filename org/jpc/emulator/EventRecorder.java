@@ -44,6 +44,12 @@ public class EventRecorder implements TimerResponsive
      private static final int EVENT_MAGIC_SAVESTATE = 1;
      private static final int EVENT_MAGIC_NONE = -1;
 
+     //Class references in binary event stream.
+     private static final long BINARY_END = 0;
+     private static final long BINARY_SAVESTATE = 1;
+     private static final long BINARY_NEW_CLASS = 2;
+     private static final long BINARY_CLASS_BASE = 3;
+
      public static final int EVENT_TIMED = 0;
      public static final int EVENT_STATE_EFFECT_FUTURE = 1;
      public static final int EVENT_STATE_EFFECT = 2;
@@ -58,12 +64,14 @@ public class EventRecorder implements TimerResponsive
      public class Event
      {
          public long timestamp;                               //Event timestamp (low bound)
-         public long sequenceNumber;                          //Sequence number.
          public int magic;                                    //Magic type.
          public Class<? extends HardwareComponent> clazz;     //Dispatch to where.
          public String[] args;                                //Arguments to dispatch.
          public Event prev;                                   //Previous event.
          public Event next;                                   //Next event.
+         private Chunk chunk;                                 //Chunk holding event, null if not in stream.
+         private int chunkIndex;                              //Index in chunk.
+         private Map<Class<?>, Object> checkpoint;            //Target states before savestate event.
 
          public void dispatch(PC target, int level) throws IOException
          {
@@ -78,10 +86,25 @@ public class EventRecorder implements TimerResponsive
          }
      }
 
+     private static final int CHUNK_SIZE = 256;
+
+     //Events of the stream in order, in chunks knowing their position in the chunk list.
+     //Sequence numbers of chunk starts are prefix sums in a Fenwick tree over chunk sizes, so
+     //inserting an event is O(log n) except when it splits a full chunk, which renumbers and
+     //rebuilds in O(n / CHUNK_SIZE) at most once per CHUNK_SIZE / 2 insertions.
+     private static final class Chunk
+     {
+         Event[] events = new Event[CHUNK_SIZE];
+         int count;
+         int number;
+     }
+
      private Event first;
      private Event current;
      private Event last;
-     private Event cache;
+     private List<Chunk> chunks;
+     private long[] chunkTree;                //1-based Fenwick tree over chunk sizes.
+     private Map<String, Event> savestates;   //Savestate events by savestate ID.
      private Event firstUndispatched;
      private Event lastUndispatched;
      private PC pc;
@@ -263,8 +286,7 @@ public class EventRecorder implements TimerResponsive
 
                  //Because of constraints to time, the event must go last.
                  if(scan != null) {
-                     //Sequence number for first event is 0 and then increments by 1 for each event.
-                     scan.sequenceNumber = ((last != null) ? (last.sequenceNumber + 1) : 0);
+                     indexAppend(scan);
                      scan.next = null;
                      scan.prev = last;
                      if(last != null)
@@ -308,8 +330,7 @@ public class EventRecorder implements TimerResponsive
      {
          if(current != null) {
              dirtyFlag = true;
-             if(cache != null && current.sequenceNumber <= cache.sequenceNumber)
-                 cache = null;   //Flush cache as event got truncated out.
+             indexTruncate(current);
              last = current.prev;
              current = null;
              if(last != null)
@@ -318,7 +339,13 @@ public class EventRecorder implements TimerResponsive
                  first = null;
              Event scan = first;
              dispatchStart(pc);
+             Map<Class<?>, EventCheckpointTarget> targets = checkpointTargets(pc);
+             Event resume = resumePoint(last, targets);
+             if(resume != null)
+                 scan = resume;
              while(scan != null) {
+                 if(targets != null)
+                     captureCheckpoint(scan, targets);
                  try {
                      scan.dispatch(pc, EVENT_STATE_EFFECT);
                  } catch(Exception e) {}
@@ -355,12 +382,56 @@ public class EventRecorder implements TimerResponsive
          }
      }
 
+     //Returns checkpointable dispatch targets by class, null if some target can't be checkpointed.
+     private Map<Class<?>, EventCheckpointTarget> checkpointTargets(PC target)
+     {
+         Map<Class<?>, EventCheckpointTarget> targets = new HashMap<Class<?>, EventCheckpointTarget>();
+         for(HardwareComponent hwc : target.allComponents()) {
+             if(!(hwc instanceof EventDispatchTarget))
+                 continue;
+             if(!(hwc instanceof EventCheckpointTarget))
+                 return null;
+             if(targets.put(hwc.getClass(), (EventCheckpointTarget)hwc) != null)
+                 return null;   //Ambiguous.
+         }
+         return targets;
+     }
+
+     private void captureCheckpoint(Event ev, Map<Class<?>, EventCheckpointTarget> targets)
+     {
+         if(ev.magic != EVENT_MAGIC_SAVESTATE || ev.checkpoint != null)
+             return;
+         Map<Class<?>, Object> checkpoint = new HashMap<Class<?>, Object>();
+         for(Map.Entry<Class<?>, EventCheckpointTarget> x : targets.entrySet())
+             checkpoint.put(x.getKey(), x.getValue().getEventCheckpoint());
+         ev.checkpoint = checkpoint;
+     }
+
+     //Finds the last savestate event at or before from holding checkpoint for all targets, restores
+     //targets from it and returns it. Returns null if there is none. Call after dispatchStart().
+     private Event resumePoint(Event from, Map<Class<?>, EventCheckpointTarget> targets)
+     {
+         if(targets == null)
+             return null;
+         for(Event scan = from; scan != null; scan = scan.prev) {
+             Map<Class<?>, Object> checkpoint = scan.checkpoint;
+             if(checkpoint == null || !checkpoint.keySet().equals(targets.keySet()))
+                 continue;
+             for(Map.Entry<Class<?>, EventCheckpointTarget> x : targets.entrySet())
+                 x.getValue().setEventCheckpoint(checkpoint.get(x.getKey()));
+             return scan;
+         }
+         return null;
+     }
+
      public EventRecorder()
      {
          first = null;
          current = null;
          last = null;
-         cache = null;
+         chunks = new ArrayList<Chunk>();
+         chunkTree = new long[16];
+         savestates = new HashMap<String, Event>();
          firstUndispatched = null;
          lastUndispatched = null;
          directMode = true;
@@ -389,6 +460,9 @@ public class EventRecorder implements TimerResponsive
          long lastTimestamp = 0;
          dirtyFlag = true;
          cleanTime = -1;
+         chunks = new ArrayList<Chunk>();
+         chunkTree = new long[16];
+         savestates = new HashMap<String, Event>();
          String[] components = nextParseLine(lines);
          while(components != null) {
              Event ev = new Event();
@@ -432,17 +506,7 @@ public class EventRecorder implements TimerResponsive
              } else {
                  //Something dispatchable.
                  ev.magic = EVENT_MAGIC_CLASS;
-                 Class<?> clazz;
-                 try {
-                     clazz = Class.forName(clazzName);
-                     if(!EventDispatchTarget.class.isAssignableFrom(clazz))
-                         throw new Exception("bad class");
-                     if(!HardwareComponent.class.isAssignableFrom(clazz))
-                         throw new Exception("bad class");
-                 } catch(Exception e) {
-                     throw new IOException("\"" + clazzName + "\" is not valid event target");
-                 }
-                 ev.clazz = clazz.asSubclass(HardwareComponent.class);
+                 ev.clazz = eventTargetClass(clazzName);
                  if(components.length == 2)
                      ev.args = null;
                  else {
@@ -451,16 +515,8 @@ public class EventRecorder implements TimerResponsive
                  }
              }
 
-             if(ev.magic != EVENT_MAGIC_NONE) {
-                 ev.prev = last;
-                 //Sequence number for first event is 0 and then increments by 1 for each event.
-                 ev.sequenceNumber = ((last != null) ? (last.sequenceNumber + 1) : 0);
-                 if(last == null)
-                     first = ev;
-                 else
-                     last.next = ev;
-                 last = ev;
-             }
+             if(ev.magic != EVENT_MAGIC_NONE)
+                 loadAppend(ev);
              components = nextParseLine(lines);
          }
 
@@ -469,12 +525,300 @@ public class EventRecorder implements TimerResponsive
          directMode = true;
      }
 
-     private void iterateIncrementSequence(Event from)
+     /**
+      * Reads event stream written by saveEvents(OutputStream). The events are
+      * decoded as they are read, without buffering the encoded stream.
+      */
+     public EventRecorder(InputStream in) throws IOException
+     {
+         long lastTimestamp = 0;
+         dirtyFlag = true;
+         cleanTime = -1;
+         chunks = new ArrayList<Chunk>();
+         chunkTree = new long[16];
+         savestates = new HashMap<String, Event>();
+         List<Class<? extends HardwareComponent>> classTable = new ArrayList<Class<? extends HardwareComponent>>();
+         List<String> stringTable = new ArrayList<String>();
+         if(!(in instanceof BufferedInputStream))
+             in = new BufferedInputStream(in);
+
+         while(true) {
+             long classRef = readVarint(in);
+             if(classRef == BINARY_END)
+                 break;
+             Event ev = new Event();
+             if(classRef == BINARY_SAVESTATE) {
+                 ev.magic = EVENT_MAGIC_SAVESTATE;
+             } else if(classRef == BINARY_NEW_CLASS) {
+                 ev.magic = EVENT_MAGIC_CLASS;
+                 ev.clazz = eventTargetClass(readString(in));
+                 classTable.add(ev.clazz);
+             } else if(classRef >= BINARY_CLASS_BASE && classRef - BINARY_CLASS_BASE < classTable.size()) {
+                 ev.magic = EVENT_MAGIC_CLASS;
+                 ev.clazz = classTable.get((int)(classRef - BINARY_CLASS_BASE));
+             } else
+                 throw new IOException("Bad class reference " + classRef + " in binary event stream");
+
+             long delta = readVarint(in);
+             ev.timestamp = lastTimestamp = lastTimestamp + delta;
+             if(delta < 0 || ev.timestamp < 0)
+                 throw new IOException("Timestamp overflow in binary event stream");
+
+             long argCount = readVarint(in) - 1;
+             if(argCount < -1 || argCount > Integer.MAX_VALUE)
+                 throw new IOException("Bad argument count in binary event stream");
+             if(argCount >= 0) {
+                 //The count isn't trusted before the arguments have been read.
+                 List<String> args = new ArrayList<String>((int)Math.min(argCount, 16));
+                 for(long i = 0; i < argCount; i++) {
+                     long stringRef = readVarint(in);
+                     if(stringRef == 0) {
+                         String arg = readString(in);
+                         stringTable.add(arg);
+                         args.add(arg);
+                     } else if(stringRef > 0 && stringRef - 1 < stringTable.size())
+                         args.add(stringTable.get((int)(stringRef - 1)));
+                     else
+                         throw new IOException("Bad string reference " + stringRef + " in binary event stream");
+                 }
+                 ev.args = args.toArray(new String[args.size()]);
+             }
+
+             if(ev.magic == EVENT_MAGIC_SAVESTATE) {
+                 if(ev.args == null || ev.args.length < 1 || ev.args.length > 2)
+                     throw new IOException("Malformed SAVESTATE event in binary event stream");
+                 if(ev.args.length == 1)
+                     ev.args = new String[]{ev.args[0], "0"};
+             }
+             loadAppend(ev);
+         }
+
+         firstUndispatched = null;
+         lastUndispatched = null;
+         directMode = true;
+     }
+
+     private void loadAppend(Event ev)
+     {
+         ev.prev = last;
+         indexAppend(ev);
+         if(last == null)
+             first = ev;
+         else
+             last.next = ev;
+         last = ev;
+     }
+
+     private static Class<? extends HardwareComponent> eventTargetClass(String clazzName) throws IOException
+     {
+         Class<?> clazz;
+         try {
+             clazz = Class.forName(clazzName);
+             if(!EventDispatchTarget.class.isAssignableFrom(clazz))
+                 throw new Exception("bad class");
+             if(!HardwareComponent.class.isAssignableFrom(clazz))
+                 throw new Exception("bad class");
+         } catch(Exception e) {
+             throw new IOException("\"" + clazzName + "\" is not valid event target");
+         }
+         return clazz.asSubclass(HardwareComponent.class);
+     }
+
+     private static long readVarint(InputStream in) throws IOException
+     {
+         long value = 0;
+         for(int shift = 0; shift < 64; shift += 7) {
+             int b = in.read();
+             if(b < 0)
+                 throw new IOException("Binary event stream truncated");
+             value |= (long)(b & 0x7F) << shift;
+             if((b & 0x80) == 0)
+                 return value;
+         }
+         throw new IOException("Bad number in binary event stream");
+     }
+
+     private static String readString(InputStream in) throws IOException
+     {
+         long length = readVarint(in);
+         if(length < 0 || length > Integer.MAX_VALUE)
+             throw new IOException("Bad string length in binary event stream");
+         //Grow the buffer as data arrives, so a bogus length in a truncated stream doesn't allocate it all.
+         byte[] buf = new byte[(int)Math.min(length, 4096)];
+         int fill = 0;
+         while(fill < length) {
+             if(fill == buf.length)
+                 buf = Arrays.copyOf(buf, (int)Math.min(length, 2L * buf.length));
+             int r = in.read(buf, fill, buf.length - fill);
+             if(r < 0)
+                 throw new IOException("Binary event stream truncated");
+             fill += r;
+         }
+         return new String(buf, "UTF-8");
+     }
+
+     private static void writeVarint(OutputStream out, long value) throws IOException
+     {
+         while((value & ~0x7FL) != 0) {
+             out.write((int)(value & 0x7F) | 0x80);
+             value >>>= 7;
+         }
+         out.write((int)value);
+     }
+
+     private static void writeString(OutputStream out, String value) throws IOException
+     {
+         byte[] buf = value.getBytes("UTF-8");
+         writeVarint(out, buf.length);
+         out.write(buf);
+     }
+
+     private void indexAppend(Event ev)
      {
-         while(from != null) {
-             from.sequenceNumber++;
-             from = from.next;
+         Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+         if(chunk == null || chunk.count == CHUNK_SIZE) {
+             chunk = new Chunk();
+             chunk.number = chunks.size();
+             chunks.add(chunk);
+             chunkTreeAppend();
          }
+         ev.chunk = chunk;
+         ev.chunkIndex = chunk.count;
+         chunk.events[chunk.count++] = ev;
+         chunkTreeAdd(chunk.number, 1);
+         indexSavestate(ev);
+     }
+
+     private void indexInsertBefore(Event ev, Event before)
+     {
+         Chunk chunk = before.chunk;
+         int pos = before.chunkIndex;
+         int number = chunk.number;
+         if(chunk.count == CHUNK_SIZE) {
+             //Split the chunk to make room.
+             Chunk upper = new Chunk();
+             int half = CHUNK_SIZE / 2;
+             upper.count = CHUNK_SIZE - half;
+             System.arraycopy(chunk.events, half, upper.events, 0, upper.count);
+             Arrays.fill(chunk.events, half, CHUNK_SIZE, null);
+             chunk.count = half;
+             for(int i = 0; i < upper.count; i++) {
+                 upper.events[i].chunk = upper;
+                 upper.events[i].chunkIndex = i;
+             }
+             chunks.add(number + 1, upper);
+             for(int i = number + 1; i < chunks.size(); i++)
+                 chunks.get(i).number = i;
+             chunkTreeRebuild();
+             if(pos >= half) {
+                 chunk = upper;
+                 pos -= half;
+                 number++;
+             }
+         }
+         System.arraycopy(chunk.events, pos, chunk.events, pos + 1, chunk.count - pos);
+         chunk.events[pos] = ev;
+         chunk.count++;
+         ev.chunk = chunk;
+         for(int i = pos; i < chunk.count; i++)
+             chunk.events[i].chunkIndex = i;
+         chunkTreeAdd(number, 1);
+         indexSavestate(ev);
+     }
+
+     //Removes the event and all events after it.
+     private void indexTruncate(Event from)
+     {
+         Chunk chunk = from.chunk;
+         int number = chunk.number;
+         for(int i = from.chunkIndex; i < chunk.count; i++) {
+             unindexEvent(chunk.events[i]);
+             chunk.events[i] = null;
+         }
+         chunkTreeAdd(number, from.chunkIndex - chunk.count);
+         chunk.count = from.chunkIndex;
+         for(int i = number + 1; i < chunks.size(); i++) {
+             Chunk removed = chunks.get(i);
+             for(int j = 0; j < removed.count; j++)
+                 unindexEvent(removed.events[j]);
+         }
+         chunks.subList((chunk.count > 0) ? number + 1 : number, chunks.size()).clear();
+     }
+
+     private void indexSavestate(Event ev)
+     {
+         if(ev.magic == EVENT_MAGIC_SAVESTATE && !savestates.containsKey(ev.args[0]))
+             savestates.put(ev.args[0], ev);
+     }
+
+     private void unindexEvent(Event ev)
+     {
+         ev.chunk = null;
+         if(ev.magic == EVENT_MAGIC_SAVESTATE && savestates.get(ev.args[0]) == ev)
+             savestates.remove(ev.args[0]);
+     }
+
+     //Trailing tree entries past the last chunk are stale and never read.
+     private void chunkTreeAppend()
+     {
+         int n = chunks.size();
+         if(n >= chunkTree.length)
+             chunkTree = Arrays.copyOf(chunkTree, 2 * chunkTree.length);
+         chunkTree[n] = chunkStart(n - 1) - chunkStart(n - (n & -n));
+     }
+
+     private void chunkTreeRebuild()
+     {
+         int n = chunks.size();
+         if(n >= chunkTree.length)
+             chunkTree = new long[Integer.highestOneBit(n) * 2];
+         for(int i = 1; i <= n; i++)
+             chunkTree[i] = chunks.get(i - 1).count;
+         for(int i = 1; i <= n; i++) {
+             int parent = i + (i & -i);
+             if(parent <= n)
+                 chunkTree[parent] += chunkTree[i];
+         }
+     }
+
+     private void chunkTreeAdd(int number, long delta)
+     {
+         for(int i = number + 1; i <= chunks.size(); i += i & -i)
+             chunkTree[i] += delta;
+     }
+
+     //Sequence number of the first event of chunk <number>.
+     private long chunkStart(int number)
+     {
+         long sum = 0;
+         for(int i = number; i > 0; i -= i & -i)
+             sum += chunkTree[i];
+         return sum;
+     }
+
+     private long sequenceOf(Event ev)
+     {
+         return chunkStart(ev.chunk.number) + ev.chunkIndex;
+     }
+
+     private long indexedEvents()
+     {
+         return chunkStart(chunks.size());
+     }
+
+     private Event eventBySequence(long sequence)
+     {
+         if(sequence < 0 || sequence >= indexedEvents())
+             return null;
+         //Find the last chunk starting at or before the sequence number.
+         int n = chunks.size();
+         int number = 0;
+         for(int step = Integer.highestOneBit(n); step > 0; step >>>= 1)
+             if(number + step <= n && chunkTree[number + step] <= sequence) {
+                 number += step;
+                 sequence -= chunkTree[number];
+             }
+         return chunks.get(number).events[(int)sequence];
      }
 
      public void markSave(String id, BigInteger rerecords) throws IOException
@@ -492,17 +836,15 @@ public class EventRecorder implements TimerResponsive
          ev.args = new String[]{id, rerecords.toString()};
          ev.next = current;
          if(current != null) {
-            //Give it current's sequence number and increment the rest of sequence numbers.
-            ev.sequenceNumber = current.sequenceNumber;
-            iterateIncrementSequence(current);
+            //Takes current's sequence number, moving the rest forward.
+            indexInsertBefore(ev, current);
             ev.prev = current.prev;
             if(ev.prev != null)
                 ev.prev.next = ev;
             current.prev = ev;
             ev.next = current;
          } else {
-            //Sequence number for first event is 0 and then increments by 1 for each event.
-            ev.sequenceNumber = ((last != null) ? (last.sequenceNumber + 1) : 0);
+            indexAppend(ev);
             ev.prev = last;
             if(last != null)
                 last.next = ev;
@@ -514,46 +856,102 @@ public class EventRecorder implements TimerResponsive
          setClean();
      }
 
-     public void attach(PC aPC, String id) throws IOException
+     public static final class Position
      {
-         Event oldCurrent = current;
+         private final Event next;       //Next event to dispatch.
+         private final Event previous;   //Last event, if next is null.
 
+         private Position(Event next, Event previous)
+         {
+             this.next = next;
+             this.previous = previous;
+         }
+     }
+
+     /**
+      * Returns the current point of the event stream, for attaching to with
+      * attachAtPosition without marking it with a savestate event.
+      */
+     public synchronized Position getPosition()
+     {
+         return new Position(current, (current == null) ? last : null);
+     }
+
+     private boolean isInStream(Event ev)
+     {
+         return ev.chunk != null;
+     }
+
+     /**
+      * Attaches to the point of the event stream returned by getPosition. Fails
+      * if the stream has been truncated before that point since.
+      */
+     public void attachAtPosition(PC aPC, Position position, BigInteger rerecordCount) throws IOException
+     {
+         Event anchor = (position.next != null) ? position.next : position.previous;
+         if(anchor != null && !isInStream(anchor))
+             throw new IOException("Savestate not compatible with event stream");
+
+         Event newCurrent;
+         if(position.next != null)
+             newCurrent = position.next;
+         else if(position.previous != null)
+             newCurrent = position.previous.next;
+         else
+             newCurrent = first;
+         attachAt(aPC, newCurrent, rerecordCount);
+     }
+
+     public void attach(PC aPC, String id) throws IOException
+     {
+         Event newCurrent;
          Clock newSysClock = (Clock)aPC.getComponent(Clock.class);
          long expectedTime = newSysClock.getTime();
          BigInteger rerecordCount = new BigInteger("0");
          if(id == null) {
-             current = first;
+             newCurrent = first;
          } else {
-             Event scan = first;
-             while(scan != null) {
-                 if(scan.magic == EVENT_MAGIC_SAVESTATE && scan.args[0].equals(id)) {
-                     try {
-                         if(scan.args.length > 1) {
-                             rerecordCount = new BigInteger(scan.args[1]);
-                             if(rerecordCount.signum() < 0)
-                                 throw new NumberFormatException("Negative rerecord count not allowed");
-                         }
-                     } catch(NumberFormatException e) {
-                         throw new IOException("Savestate rerecord count invalid");
-                     }
-                     break;
-                 }
-                 scan = scan.next;
-             }
+             Event scan = savestates.get(id);
              if(scan == null)
                  throw new IOException("Savestate not compatible with event stream");
+             try {
+                 if(scan.args.length > 1) {
+                     rerecordCount = new BigInteger(scan.args[1]);
+                     if(rerecordCount.signum() < 0)
+                         throw new NumberFormatException("Negative rerecord count not allowed");
+                 }
+             } catch(NumberFormatException e) {
+                 throw new IOException("Savestate rerecord count invalid");
+             }
 
              if(scan.timestamp != expectedTime)
                  throw new IOException("Incorrect savestate event timestamp");
 
-             current = scan;
+             newCurrent = scan;
          }
+         attachAt(aPC, newCurrent, rerecordCount);
+     }
+
+     private void attachAt(PC aPC, Event newCurrent, BigInteger rerecordCount) throws IOException
+     {
+         Event oldCurrent = current;
+
+         Clock newSysClock = (Clock)aPC.getComponent(Clock.class);
+         long expectedTime = newSysClock.getTime();
+         current = newCurrent;
 
          try {
              Event scan = first;
              dispatchStart(aPC);
+             //Events before the savestate event with checkpoint need not be replayed.
+             Map<Class<?>, EventCheckpointTarget> targets = checkpointTargets(aPC);
+             Event resume = resumePoint((current != null) ? current : last, targets);
+             if(resume != null)
+                 scan = resume;
              boolean future = false;
              while(scan != null) {
+                 if(targets != null && !future)
+                     captureCheckpoint(scan, targets);
                  if(scan == current)
                      future = true;
                  if(future)
@@ -603,16 +1001,53 @@ public class EventRecorder implements TimerResponsive
          }
      }
 
-     public long getLastEventTime()
+     /**
+      * Writes the event stream in binary form, with class names and argument
+      * strings stored only once and timestamps relative to the previous event.
+      */
+     public void saveEvents(OutputStream out) throws IOException
      {
-         Event scan = first;
+         Map<Class<?>, Integer> classTable = new HashMap<Class<?>, Integer>();
+         Map<String, Integer> stringTable = new HashMap<String, Integer>();
+         if(!(out instanceof BufferedOutputStream))
+             out = new BufferedOutputStream(out);
          long lastTimestamp = 0;
-         while(scan != null) {
-             if(scan.magic == EVENT_MAGIC_CLASS)
-                 lastTimestamp = scan.timestamp;
-             scan = scan.next;
+         for(Event scan = first; scan != null; scan = scan.next) {
+             if(scan.magic == EVENT_MAGIC_SAVESTATE) {
+                 writeVarint(out, BINARY_SAVESTATE);
+             } else {
+                 Integer index = classTable.get(scan.clazz);
+                 if(index == null) {
+                     classTable.put(scan.clazz, classTable.size());
+                     writeVarint(out, BINARY_NEW_CLASS);
+                     writeString(out, scan.clazz.getName());
+                 } else
+                     writeVarint(out, BINARY_CLASS_BASE + index);
+             }
+             writeVarint(out, scan.timestamp - lastTimestamp);
+             writeVarint(out, (scan.args != null) ? scan.args.length + 1 : 0);
+             if(scan.args != null)
+                 for(String arg : scan.args) {
+                     Integer index = stringTable.get(arg);
+                     if(index == null) {
+                         stringTable.put(arg, stringTable.size());
+                         writeVarint(out, 0);
+                         writeString(out, arg);
+                     } else
+                         writeVarint(out, index + 1);
+                 }
+             lastTimestamp = scan.timestamp;
          }
-         return lastTimestamp;
+         writeVarint(out, BINARY_END);
+         out.flush();
+     }
+
+     public long getLastEventTime()
+     {
+         for(Event scan = last; scan != null; scan = scan.prev)
+             if(scan.magic == EVENT_MAGIC_CLASS)
+                 return scan.timestamp;
+         return 0;
      }
 
      public boolean isAtMovieEnd()
@@ -622,12 +1057,44 @@ public class EventRecorder implements TimerResponsive
 
      public synchronized long getEventCount()
      {
-         return (last != null) ? (last.sequenceNumber + 1) : 0;
+         return indexedEvents();
      }
 
      public synchronized long getEventCurrentSequence()
      {
-         return (current != null) ? current.sequenceNumber : -1;
+         return (current != null) ? sequenceOf(current) : -1;
+     }
+
+     /**
+      * Returns the sequence number of the first event at or after
+      * <code>time</code>, -1 if there is no such event.
+      */
+     public synchronized long getEventSequenceAtTime(long time)
+     {
+         if(chunks.isEmpty() || last.timestamp < time)
+             return -1;
+         //Timestamps never decrease, so find the first chunk ending at or after the time.
+         int low = 0;
+         int high = chunks.size() - 1;
+         while(low < high) {
+             int mid = (low + high) >>> 1;
+             Chunk chunk = chunks.get(mid);
+             if(chunk.events[chunk.count - 1].timestamp < time)
+                 low = mid + 1;
+             else
+                 high = mid;
+         }
+         Chunk chunk = chunks.get(low);
+         int lowIndex = 0;
+         int highIndex = chunk.count - 1;
+         while(lowIndex < highIndex) {
+             int mid = (lowIndex + highIndex) >>> 1;
+             if(chunk.events[mid].timestamp < time)
+                 lowIndex = mid + 1;
+             else
+                 highIndex = mid;
+         }
+         return chunkStart(low) + lowIndex;
      }
 
      private String getReturnClass(Event ev)
@@ -654,85 +1121,12 @@ public class EventRecorder implements TimerResponsive
          return evr;
      }
 
-     private int sMinFour(long a, long b, long c, long d)
-     {
-         //Compute maximum, ignoring -'s.
-         long max = a;
-         max = (b > max) ? b : max;
-         max = (c > max) ? c : max;
-         max = (d > max) ? d : max;
-         if(max < 0)
-             return -1;
-
-         //Now use max to get rid of -'s.
-         a = (a >= 0) ? a : (max + 1);
-         b = (b >= 0) ? b : (max + 1);
-         c = (c >= 0) ? c : (max + 1);
-         d = (d >= 0) ? d : (max + 1);
-
-         long min = a;
-         int mpos = 0;
-         if(b < min) {
-             min = b;
-             mpos = 1;
-         }
-         if(c < min) {
-             min = c;
-             mpos = 2;
-         }
-         if(d < min) {
-             min = d;
-             mpos = 3;
-         }
-         return mpos;
-     }
-
      public synchronized ReturnEvent getEventBySequence(long sequence)
      {
-         if(sequence < 0 || last == null || sequence > last.sequenceNumber)
-             return null;
-
-         long distFirst = -1;
-         long distLast = -1;
-         long distCurrent = -1;
-         long distCache = -1;
-
-         if(first != null)
-             distFirst = Math.abs(first.sequenceNumber - sequence);
-         if(last != null)
-             distLast = Math.abs(last.sequenceNumber - sequence);
-         if(current != null)
-             distCurrent = Math.abs(current.sequenceNumber - sequence);
-         if(cache != null)
-             distCache = Math.abs(cache.sequenceNumber - sequence);
-
-         int minF = sMinFour(distFirst, distLast, distCurrent, distCache);
-
-         //Find the nearest entrypoint.
-         switch(minF) {
-         case 0:
-             cache = first;
-             break;
-         case 1:
-             cache = last;
-             break;
-         case 2:
-             cache = current;
-             break;
-         case 3:
-             //Cache = cache;
-             break;
-         default:
-             return null;   //Can't happen.
-         }
-
-         while(cache != null && sequence < cache.sequenceNumber)
-             cache = cache.prev;
-         while(cache != null && sequence > cache.sequenceNumber)
-             cache = cache.next;
-         if(cache == null)
+         Event ev = eventBySequence(sequence);
+         if(ev == null)
              return null;
-         return convertToReturn(cache);
+         return convertToReturn(ev);
      }
 
      public void callback()
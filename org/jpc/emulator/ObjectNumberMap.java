@@ -0,0 +1,114 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+/**
+ * Map from objects, compared by identity, to non-negative numbers. Uses open
+ * addressing, so lookups neither box nor allocate.
+ */
+final class ObjectNumberMap
+{
+    private static final int INITIAL_CAPACITY = 1024;   //MUST BE POWER OF TWO.
+    private Object[] keys;
+    private int[] values;
+    private int size;
+
+    ObjectNumberMap()
+    {
+        keys = new Object[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+    }
+
+    private static int slot(Object o, int mask)
+    {
+        //Spread the identity hash, its low bits are not well distributed.
+        int h = System.identityHashCode(o) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the number of <code>o</code>, or -1 if it has none. Null never
+     * has a number.
+     */
+    int get(Object o)
+    {
+        if(o == null)
+            return -1;      //Would match an empty slot.
+        int mask = keys.length - 1;
+        for(int i = slot(o, mask);; i = (i + 1) & mask) {
+            Object key = keys[i];
+            if(key == o)
+                return values[i];
+            if(key == null)
+                return -1;
+        }
+    }
+
+    /**
+     * Sets the number of <code>o</code>, which must not have one yet.
+     */
+    void put(Object o, int n)
+    {
+        if(o == null)
+            throw new NullPointerException("Null can't be numbered");
+        if(2 * (size + 1) > keys.length)
+            grow();
+        int mask = keys.length - 1;
+        int i = slot(o, mask);
+        while(keys[i] != null)
+            i = (i + 1) & mask;
+        keys[i] = o;
+        values[i] = n;
+        size++;
+    }
+
+    private void grow()
+    {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new Object[2 * oldKeys.length];
+        values = new int[2 * oldValues.length];
+        int mask = keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] == null)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while(keys[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+}
@@ -46,8 +46,8 @@ import org.jpc.jrsr.JRSRArchiveReader;
 import org.jpc.jrsr.JRSRArchiveWriter;
 import org.jpc.jrsr.UTFInputLineStream;
 import org.jpc.jrsr.UTFOutputLineStream;
-import org.jpc.jrsr.FourToFiveDecoder;
-import org.jpc.jrsr.FourToFiveEncoder;
+import org.jpc.jrsr.ChunkedDeflaterOutputStream;
+import org.jpc.jrsr.ChunkedInflaterInputStream;
 import org.jpc.output.Output;
 import org.jpc.output.OutputChannelDummy;
 import org.jpc.output.OutputChannelGameinfo;
@@ -532,6 +532,7 @@ public class PC implements SRDumpable
     private final LinearAddressSpace linearAddr;
     private final Clock vmClock;
     private final Set<HardwareComponent> parts;
+    private Map<Class<?>, HardwareComponent> partsByClass;   //First part of each class and supertype.
     private final CodeBlockManager manager;
     private DiskImageSet images;
     private final ResetButton brb;
@@ -847,6 +848,8 @@ public class PC implements SRDumpable
                 if(!found.contains(i.getKey()))
                     throw new IOException("Unrecognized system flag " + i.getKey() + " encountered");
 
+        indexComponents();
+
         System.err.println("Informational: Configuring components...");
         if(!configure())
             throw new IllegalStateException("Can't initialize components (cyclic dependency?)");
@@ -924,6 +927,7 @@ public class PC implements SRDumpable
             parts.add((HardwareComponent)input.loadObject());
             present = input.loadBoolean();
         }
+        indexComponents();
         rebootRequest = input.loadBoolean();
         brb = (ResetButton)input.loadObject();
         diskChanger = (DiskChanger)input.loadObject();
@@ -1162,7 +1166,7 @@ public class PC implements SRDumpable
         diskChanger.wpFloppyDisk(diskIndex, turnOn);
     }
 
-    public static class DiskChanger extends AbstractHardwareComponent implements SRDumpable, EventDispatchTarget
+    public static class DiskChanger extends AbstractHardwareComponent implements SRDumpable, EventCheckpointTarget
     {
         private EventRecorder eRecorder;     //Not saved.
         private PC upperBackref;
@@ -1300,6 +1304,29 @@ public class PC implements SRDumpable
                 usedDisks.add(currentCDROM);
         }
 
+        public Object getEventCheckpoint()
+        {
+            Integer[] state = new Integer[3 + usedDisks.size()];
+            state[0] = currentDriveA;
+            state[1] = currentDriveB;
+            state[2] = currentCDROM;
+            int i = 3;
+            for(Integer disk : usedDisks)
+                state[i++] = disk;
+            return state;
+        }
+
+        public void setEventCheckpoint(Object checkpoint)
+        {
+            Integer[] state = (Integer[])checkpoint;
+            currentDriveA = state[0];
+            currentDriveB = state[1];
+            currentCDROM = state[2];
+            usedDisks.clear();
+            for(int i = 3; i < state.length; i++)
+                usedDisks.add(state[i]);
+        }
+
         private Set<Integer> usedDiskSet()
         {
             return usedDisks;
@@ -1416,7 +1443,7 @@ public class PC implements SRDumpable
         brb.reboot();
     }
 
-    public static class ResetButton extends AbstractHardwareComponent implements SRDumpable, EventDispatchTarget
+    public static class ResetButton extends AbstractHardwareComponent implements SRDumpable, EventCheckpointTarget
     {
         private EventRecorder eRecorder;    //Not saved.
         private PC upperBackref;
@@ -1438,6 +1465,15 @@ public class PC implements SRDumpable
             //No state.
         }
 
+        public Object getEventCheckpoint()
+        {
+            return null;    //No state.
+        }
+
+        public void setEventCheckpoint(Object checkpoint)
+        {
+        }
+
         public void doEvent(long timeStamp, String[] args, int level) throws IOException
         {
             if(args != null)
@@ -1499,6 +1535,11 @@ public class PC implements SRDumpable
      */
     public HardwareComponent getComponent(Class<?> cls)
     {
+        Map<Class<?>, HardwareComponent> index = partsByClass;
+        if(index != null)
+            return index.get(cls);
+
+        //Still being assembled.
         for(HardwareComponent hwc : parts)
             if(cls.isInstance(hwc))
                 return hwc;
@@ -1508,7 +1549,26 @@ public class PC implements SRDumpable
 
     public Set<HardwareComponent> allComponents()
     {
-        return parts;
+        return Collections.unmodifiableSet(parts);
+    }
+
+    //Maps every class and interface of the parts to the first part that is instance of it.
+    private void indexComponents()
+    {
+        Map<Class<?>, HardwareComponent> index = new HashMap<Class<?>, HardwareComponent>();
+        for(HardwareComponent hwc : parts)
+            for(Class<?> clazz = hwc.getClass(); clazz != null; clazz = clazz.getSuperclass())
+                indexComponent(index, clazz, hwc);
+        partsByClass = index;
+    }
+
+    private static void indexComponent(Map<Class<?>, HardwareComponent> index, Class<?> clazz, HardwareComponent hwc)
+    {
+        if(index.containsKey(clazz))
+            return;   //Earlier part takes precedence and its supertypes are there already.
+        index.put(clazz, hwc);
+        for(Class<?> iface : clazz.getInterfaces())
+            indexComponent(index, iface, hwc);
     }
 
     /**
@@ -1688,6 +1748,43 @@ public class PC implements SRDumpable
         public String savestateID;         //Loaded SAVED.
         public BigInteger rerecords;             //Loaded SAVED.
         public String[][] extraHeaders;    //Loaded SAVED.
+        public SRDeltaBase deltaBase;      //Last savestate saved or loaded, if pages were tracked.
+    }
+
+    private static final int MAX_DELTA_DEPTH = 16;
+    //Delta savestates saved or loaded during this run, by the files in their chains.
+    private static final Map<String, Set<String>> deltaDependents = new HashMap<String, Set<String>>();
+
+    private static synchronized void recordDeltaChain(String fileName, List<String> chain)
+    {
+        for(String base : chain) {
+            if(base.equals(fileName))
+                continue;
+            Set<String> dependents = deltaDependents.get(base);
+            if(dependents == null)
+                deltaDependents.put(base, dependents = new TreeSet<String>());
+            dependents.add(fileName);
+        }
+    }
+
+    /**
+     * Fails if overwriting <code>fileName</code> would break delta savestates
+     * saved or loaded during this run. Otherwise forgets what the file being
+     * replaced referred to.
+     */
+    public static synchronized void checkSavestateOverwrite(String fileName) throws IOException
+    {
+        Set<String> dependents = deltaDependents.get(fileName);
+        if(dependents != null) {
+            for(Iterator<String> i = dependents.iterator(); i.hasNext();)
+                if(!new File(i.next()).exists())
+                    i.remove();
+            if(!dependents.isEmpty())
+                throw new IOException("Savestate " + fileName + " is the base of delta savestate(s) " +
+                    dependents + ", delete them first to overwrite it");
+        }
+        for(Set<String> x : deltaDependents.values())
+            x.remove(fileName);
     }
 
     public void refreshGameinfo(PCFullStatus newstatus)
@@ -1802,11 +1899,11 @@ public class PC implements SRDumpable
         }
     }
 
-    private static void saveDiskInfo(JRSRArchiveWriter writer, DiskImage image, Set<ImageLibrary.ByteArray> saved) throws IOException
+    private static void saveDiskInfo(JRSRArchiveWriter writer, List<byte[]> diskIDs) throws IOException
     {
-        if(image == null)
-            return;
-        saveDiskInfo(writer, image.getImageID(), saved);
+        Set<ImageLibrary.ByteArray> imageSet = new HashSet<ImageLibrary.ByteArray>();
+        for(byte[] diskID : diskIDs)
+            saveDiskInfo(writer, diskID, imageSet);
     }
 
     private static void saveDiskInfo(JRSRArchiveWriter writer, byte[] diskID, Set<ImageLibrary.ByteArray> saved) throws IOException
@@ -1824,15 +1921,285 @@ public class PC implements SRDumpable
 
     public static void saveSavestate(JRSRArchiveWriter writer, PCFullStatus fullStatus, boolean movie, boolean noCompress)
         throws IOException
+    {
+        saveSavestate(writer, fullStatus, movie, noCompress, null);
+    }
+
+    public static void saveSavestate(JRSRArchiveWriter writer, PCFullStatus fullStatus, boolean movie, boolean noCompress,
+        String fileName) throws IOException
+    {
+        saveSavestate(writer, fullStatus, movie, noCompress, fileName, false);
+    }
+
+    /**
+     * Saves the savestate, writing memory pages unchanged since the last
+     * savestate saved or loaded as references to that one if
+     * <code>fileName</code> is not null.
+     * @param fileName name of the file being written, recorded for later deltas.
+     * @param pageTable write memory pages into separate page table, so they
+     * can be read only when first accessed after loading.
+     */
+    public static void saveSavestate(JRSRArchiveWriter writer, PCFullStatus fullStatus, boolean movie, boolean noCompress,
+        String fileName, boolean pageTable) throws IOException
     {
         fullStatus.savestateID = randomHexes(24);
         fullStatus.events.markSave(fullStatus.savestateID, fullStatus.rerecords);
 
+        //Overwriting any file in the chain of the base would break the delta.
+        SRDeltaBase base = fullStatus.deltaBase;
+        if(fileName == null || movie || base == null || base.isEmpty() || base.getDepth() >= MAX_DELTA_DEPTH ||
+            base.getFileName() == null || base.dependsOn(fileName) ||
+            !fullStatus.projectID.equals(base.getProjectID()))
+            base = null;
+
         //Save the header.
-        UTFOutputLineStream lines = new UTFOutputLineStream(writer.addMember("header"));
+        saveHeader(writer.addMember("header"), fullStatus, movie, base);
+
+        //Save intialization segment.
+        saveInitialization(writer.addMember("initialization"), fullStatus.pc);
+
+        //Save savestate itsefl (if any).
+        if(!movie) {
+            OutputStream entry = writer.addBinaryMember("savestate");
+            OutputStream zip = compressSavestate(entry, writer.isBinary(), noCompress);
+            SRDumper dumper = new SRDumper(zip);
+            SRPageTable pages = null;
+            try {
+                if(fileName != null)
+                    dumper.trackPages(base);
+                if(pageTable)
+                    dumper.usePageTable(pages = new SRPageTable(false));
+                dumper.dumpObject(fullStatus.pc);
+                dumper.flush();
+                zip.close();
+            } finally {
+                //Stops compressing the queued chunks if the dump failed.
+                if(zip instanceof ChunkedDeflaterOutputStream)
+                    ((ChunkedDeflaterOutputStream)zip).abort();
+            }
+            if(fileName != null) {
+                fullStatus.deltaBase = dumper.getPages();
+                fullStatus.deltaBase.setSource(fullStatus.savestateID, fileName, fullStatus.projectID,
+                    (base != null) ? base.getChain() : null);
+                recordDeltaChain(fileName, fullStatus.deltaBase.getChain());
+            }
+            if(pages != null)
+                pages.write(writer.addBinaryMember("pages"), noCompress ? Deflater.NO_COMPRESSION :
+                    Deflater.DEFAULT_COMPRESSION);
+
+            OutputStream entry2 = writer.addMember("manifest");
+            dumper.writeConstructorManifest(entry2);
+            entry2.close();
+        }
+
+        //Save the movie events. Binary archives get binary event stream.
+        if(writer.isBinary())
+            saveEvents(writer.addBinaryMember("binaryevents"), fullStatus.events, true);
+        else
+            saveEvents(writer.addMember("events"), fullStatus.events, false);
+
+        //Save the disk info.
+        saveDiskInfo(writer, usedDiskIDs(fullStatus.pc));
+    }
+
+    /**
+     * Captures the savestate into memory without compressing it or looking up
+     * disk information, so that it can be written out by another thread while
+     * the PC keeps running. Memory pages are not copied, the memory blocks
+     * copy them on the next write instead. Deltas are not used for captured
+     * savestates.
+     * @param fileName name of the file the capture is going to be written to.
+     * @param pageTable write memory pages into separate page table.
+     * @param binary the capture is going to be written to binary archive.
+     */
+    public static CapturedSavestate captureSavestate(PCFullStatus fullStatus, boolean movie, String fileName,
+        boolean pageTable, boolean binary) throws IOException
+    {
+        CapturedSavestate capture = new CapturedSavestate();
+        fullStatus.savestateID = randomHexes(24);
+        fullStatus.events.markSave(fullStatus.savestateID, fullStatus.rerecords);
+
+        //The file is going to be overwritten, so the base can't be used anymore if it refers to it.
+        SRDeltaBase base = fullStatus.deltaBase;
+        if(base != null && fileName != null && base.dependsOn(fileName))
+            fullStatus.deltaBase = null;
+
+        saveHeader(capture.header, fullStatus, movie, null);
+        saveInitialization(capture.initialization, fullStatus.pc);
+        if(!movie) {
+            capture.savestate = new CaptureOutputStream();
+            capture.pageTable = pageTable;
+            SRDumper dumper = new SRDumper(capture.savestate);
+            dumper.deferPages(capture.savestate);
+            dumper.dumpObject(fullStatus.pc);
+            dumper.flush();
+            capture.manifest = new CaptureOutputStream();
+            dumper.writeConstructorManifest(capture.manifest);
+        }
+        capture.binaryEvents = binary;
+        saveEvents(capture.events, fullStatus.events, binary);
+        capture.diskIDs = usedDiskIDs(fullStatus.pc);
+        return capture;
+    }
+
+    /**
+     * Savestate captured by captureSavestate(). Writing it out doesn't touch
+     * the PC, so it is safe to do while the emulation runs.
+     */
+    public static class CapturedSavestate
+    {
+        private CaptureOutputStream header = new CaptureOutputStream();
+        private CaptureOutputStream initialization = new CaptureOutputStream();
+        private CaptureOutputStream savestate;     //Uncompressed, null for movies.
+        private boolean pageTable;
+        private CaptureOutputStream manifest;
+        private CaptureOutputStream events = new CaptureOutputStream();
+        private boolean binaryEvents;
+        private List<byte[]> diskIDs;
+
+        public void write(JRSRArchiveWriter writer, boolean noCompress) throws IOException
+        {
+            header.writeMember(writer.addMember("header"));
+            initialization.writeMember(writer.addMember("initialization"));
+            if(savestate != null) {
+                SRPageTable pages = pageTable ? new SRPageTable(false) : null;
+                savestate.writeMember(compressSavestate(writer.addBinaryMember("savestate"), writer.isBinary(),
+                    noCompress), pages);
+                if(pages != null)
+                    pages.write(writer.addBinaryMember("pages"), noCompress ? Deflater.NO_COMPRESSION :
+                        Deflater.DEFAULT_COMPRESSION);
+                manifest.writeMember(writer.addMember("manifest"));
+            }
+            if(binaryEvents)
+                events.writeMember(writer.addBinaryMember("binaryevents"));
+            else
+                events.writeMember(writer.addMember("events"));
+            saveDiskInfo(writer, diskIDs);
+        }
+
+        public long getSize()
+        {
+            long size = header.getSize() + initialization.getSize() + events.getSize();
+            if(savestate != null)
+                size += savestate.getSize() + manifest.getSize();
+            return size;
+        }
+    }
+
+    //Captured bytes, with deferred memory pages at their places in between.
+    private static class CaptureOutputStream extends OutputStream implements SRDumper.PageSink
+    {
+        private static final int CHUNK_SIZE = 1 << 20;
+        private List<Object> segments = new ArrayList<Object>();
+        private List<Integer> fills = new ArrayList<Integer>();    //-1 for deferred pages.
+        private byte[] current;
+        private int fill;
+        private long size;
+
+        public void write(int b)
+        {
+            if(current == null || fill == current.length)
+                newChunk();
+            current[fill++] = (byte)b;
+            size++;
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+            size += len;
+            while(len > 0) {
+                if(current == null || fill == current.length)
+                    newChunk();
+                int n = Math.min(len, current.length - fill);
+                System.arraycopy(b, off, current, fill, n);
+                fill += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void deferPage(byte[] x)
+        {
+            endChunk();
+            segments.add(x);
+            fills.add(-1);
+            size += x.length;
+        }
+
+        public void deferPage(SRPageTable.Page page)
+        {
+            endChunk();
+            segments.add(page);
+            fills.add(-1);
+            size += page.getLength();
+        }
+
+        private void newChunk()
+        {
+            //Small members and the state between memory pages are common, so start with small chunks.
+            int length = 4096;
+            if(current != null && fill == current.length)
+                length = Math.min(2 * current.length, CHUNK_SIZE);
+            endChunk();
+            current = new byte[length];
+            segments.add(current);
+            fills.add(0);
+            fill = 0;
+        }
+
+        private void endChunk()
+        {
+            if(current != null)
+                fills.set(fills.size() - 1, fill);
+            current = null;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        void writeMember(OutputStream out) throws IOException
+        {
+            writeMember(out, null);
+        }
+
+        /**
+         * Writes the captured data, putting deferred pages into <code>table</code>
+         * if it is not null.
+         */
+        void writeMember(OutputStream out, SRPageTable table) throws IOException
+        {
+            endChunk();
+            for(int i = 0; i < segments.size(); i++) {
+                if(fills.get(i) < 0)
+                    SRDumper.writeDeferredPage(out, segments.get(i), table);
+                else
+                    out.write((byte[])segments.get(i), 0, fills.get(i));
+            }
+            out.close();
+        }
+    }
+
+    //Chunked compression can't be read by older versions, so it is only used in binary archives.
+    private static OutputStream compressSavestate(OutputStream entry, boolean binary, boolean noCompress)
+        throws IOException
+    {
+        int level = noCompress ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+        if(binary)
+            return new ChunkedDeflaterOutputStream(entry, level);
+        return new DeflaterOutputStream(entry, new Deflater(level));
+    }
+
+    private static void saveHeader(OutputStream out, PCFullStatus fullStatus, boolean movie, SRDeltaBase base)
+        throws IOException
+    {
+        UTFOutputLineStream lines = new UTFOutputLineStream(out);
         lines.writeLine("PROJECTID " + fullStatus.projectID);
         if(!movie)
             lines.writeLine("SAVESTATEID " + fullStatus.savestateID);
+        if(base != null)
+            lines.encodeLine("DELTABASE", base.getSavestateID(), base.getFileName());
         lines.writeLine("RERECORDS " + fullStatus.rerecords);
         lines.writeLine("SYSTEM PC-JPC-RR-r10");
         if(fullStatus.extraHeaders != null)
@@ -1842,51 +2209,126 @@ public class PC implements SRDumpable
                 lines.encodeLine(arr);
             }
         lines.close();
+    }
 
-        //Save intialization segment.
-        lines = new UTFOutputLineStream(writer.addMember("initialization"));
-        fullStatus.pc.getHardwareInfo().makeHWInfoSegment(lines, fullStatus.pc.diskChanger);
+    private static void saveInitialization(OutputStream out, PC pc) throws IOException
+    {
+        UTFOutputLineStream lines = new UTFOutputLineStream(out);
+        pc.getHardwareInfo().makeHWInfoSegment(lines, pc.diskChanger);
         lines.close();
+    }
 
-        //Save savestate itsefl (if any).
-        if(!movie) {
-            FourToFiveEncoder entry = new FourToFiveEncoder(writer.addMember("savestate"));
-            DeflaterOutputStream dos;
-            Deflater deflater = new Deflater(noCompress ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
-            OutputStream zip = dos = new DeflaterOutputStream(entry, deflater);
-            SRDumper dumper = new SRDumper(zip);
-            dumper.dumpObject(fullStatus.pc);
-            dumper.flush();
-            dos.close();
-
-            OutputStream entry2 = writer.addMember("manifest");
-            dumper.writeConstructorManifest(entry2);
-            entry2.close();
+    private static void saveEvents(OutputStream out, EventRecorder events, boolean binary) throws IOException
+    {
+        if(binary) {
+            events.saveEvents(out);
+            out.close();
+            return;
         }
-
-        //Save the movie events.
-        lines = new UTFOutputLineStream(writer.addMember("events"));
-        fullStatus.events.saveEvents(lines);
+        UTFOutputLineStream lines = new UTFOutputLineStream(out);
+        events.saveEvents(lines);
         lines.close();
+    }
 
-        //Save the disk info.
-        PCHardwareInfo hw = fullStatus.pc.getHardwareInfo();
+    private static List<byte[]> usedDiskIDs(PC pc)
+    {
+        List<byte[]> ids = new ArrayList<byte[]>();
+        PCHardwareInfo hw = pc.getHardwareInfo();
         DiskImageSet images = hw.images;
         int disks = 1 + images.highestDiskIndex();
-        Set<ImageLibrary.ByteArray> imageSet = new HashSet<ImageLibrary.ByteArray>();
-        for(int i = 0; i < disks; i++)
-            saveDiskInfo(writer, images.lookupDisk(i), imageSet);
-        saveDiskInfo(writer, hw.biosID, imageSet);
-        saveDiskInfo(writer, hw.vgaBIOSID, imageSet);
-        saveDiskInfo(writer, hw.hdaID, imageSet);
-        saveDiskInfo(writer, hw.hdbID, imageSet);
-        saveDiskInfo(writer, hw.hdcID, imageSet);
-        saveDiskInfo(writer, hw.hddID, imageSet);
+        for(int i = 0; i < disks; i++) {
+            DiskImage image = images.lookupDisk(i);
+            if(image != null)
+                ids.add(image.getImageID());
+        }
+        ids.add(hw.biosID);
+        ids.add(hw.vgaBIOSID);
+        ids.add(hw.hdaID);
+        ids.add(hw.hdbID);
+        ids.add(hw.hdcID);
+        ids.add(hw.hddID);
+        return ids;
     }
 
     public static PCFullStatus loadSavestate(JRSRArchiveReader reader, boolean reuse, boolean forceMovie,
         PCFullStatus existing, String initName) throws IOException
     {
+        return loadSavestate(reader, reuse, forceMovie, existing, initName, null);
+    }
+
+    /**
+     * Reads the index of the page table of a savestate. Returns null if the
+     * savestate has no page table.
+     */
+    private static SRPageTable loadPageTable(JRSRArchiveReader reader) throws IOException
+    {
+        if(!reader.getMembers().contains("pages"))
+            return null;
+        InputStream entry = reader.readBinaryMember("pages");
+        SRPageTable table = SRPageTable.read(entry);
+        entry.close();
+        return table;
+    }
+
+    /**
+     * Reads the contents of the tracked pages of a savestate, following its
+     * delta chain. The length of the whole chain is stored in <code>chainDepth[0]</code>
+     * and the files in it are added to <code>chainFiles</code>, base first.
+     */
+    private static List<byte[]> loadDeltaBasePages(String savestateID, String fileName, String projectID, int depth,
+        int[] chainDepth, List<String> chainFiles) throws IOException
+    {
+        if(depth > MAX_DELTA_DEPTH)
+            throw new IOException("Savestate delta chain is too long");
+
+        JRSRArchiveReader reader;
+        try {
+            reader = new JRSRArchiveReader(fileName);
+        } catch(IOException e) {
+            throw new IOException("Can't open base savestate " + fileName + ": " + e.getMessage());
+        }
+        try {
+            String foundID = null;
+            String foundProject = null;
+            String[] baseOf = null;
+            UTFInputLineStream lines = new UTFInputLineStream(reader.readMember("header"));
+            for(String[] components = nextParseLine(lines); components != null; components = nextParseLine(lines)) {
+                if("SAVESTATEID".equals(components[0]) && components.length == 2)
+                    foundID = components[1];
+                else if("PROJECTID".equals(components[0]) && components.length == 2)
+                    foundProject = components[1];
+                else if("DELTABASE".equals(components[0]) && components.length == 3)
+                    baseOf = components;
+            }
+            if(!savestateID.equals(foundID))
+                throw new IOException("Base savestate " + fileName + " has been overwritten");
+            if(!projectID.equals(foundProject))
+                throw new IOException("Base savestate " + fileName + " is not from the same movie");
+
+            List<byte[]> basePages = null;
+            if(baseOf != null)
+                basePages = loadDeltaBasePages(baseOf[1], baseOf[2], projectID, depth + 1, chainDepth, chainFiles);
+            else
+                chainDepth[0] = depth;
+            chainFiles.add(fileName);
+            InputStream entry = reader.readBinaryMember("savestate");
+            List<byte[]> pages = SRLoader.scanPages(ChunkedInflaterInputStream.open(entry), basePages,
+                loadPageTable(reader));
+            entry.close();
+            return pages;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads the savestate, recording <code>fileName</code> as its location
+     * so later savestates can be written as deltas against it.
+     */
+    public static PCFullStatus loadSavestate(JRSRArchiveReader reader, boolean reuse, boolean forceMovie,
+        PCFullStatus existing, String initName, String fileName) throws IOException
+    {
+        String[] deltaBase = null;
         if(initName == null)
             initName = "initialization";
         PCFullStatus fullStatus = new PCFullStatus();
@@ -1926,6 +2368,11 @@ public class PC implements SRDumpable
                        "expected 2 components, got " + components.length);
                if(!"PC-JPC-RR-r10".equals(components[1]) && !"PC-JPC-RR-r11.3".equals(components[1]))
                    throw new IOException("Invalid system type '" + components[1] + "'");
+           } else if("DELTABASE".equals(components[0])) {
+               if(components.length != 3)
+                   throw new IOException("Bad " + components[0] + " line in header segment: " +
+                       "expected 3 components, got " + components.length);
+               deltaBase = components;
            } else {
                if(fullStatus.extraHeaders == null) {
                    fullStatus.extraHeaders = new String[1][];
@@ -1951,10 +2398,24 @@ public class PC implements SRDumpable
                 throw new IOException("Wrong savestate version");
             entry.close();
 
-            entry = new FourToFiveDecoder(reader.readMember("savestate"));
-            SRLoader loader = new SRLoader(new InflaterInputStream(entry));
+            List<byte[]> basePages = null;
+            int[] chainDepth = new int[1];
+            List<String> chainFiles = new ArrayList<String>();
+            if(deltaBase != null)
+                basePages = loadDeltaBasePages(deltaBase[1], deltaBase[2], fullStatus.projectID, 1, chainDepth,
+                    chainFiles);
+
+            entry = reader.readBinaryMember("savestate");
+            SRLoader loader = new SRLoader(ChunkedInflaterInputStream.open(entry));
+            loader.setBasePages(basePages, chainDepth[0]);
+            loader.setPageTable(loadPageTable(reader));
             fullStatus.pc = (PC)(loader.loadObject());
             entry.close();
+            if(fileName != null && loader.getPages() != null) {
+                fullStatus.deltaBase = loader.getPages();
+                fullStatus.deltaBase.setSource(fullStatus.savestateID, fileName, fullStatus.projectID, chainFiles);
+                recordDeltaChain(fileName, fullStatus.deltaBase.getChain());
+            }
         } else {
             lines = new UTFInputLineStream(reader.readMember(initName));
             PC.PCHardwareInfo hwInfo = PC.PCHardwareInfo.parseHWInfoSegment(lines);
@@ -1963,7 +2424,11 @@ public class PC implements SRDumpable
 
         if(reuse)
             fullStatus.events = existing.events;
-        else {
+        else if(reader.getMembers().contains("binaryevents")) {
+            InputStream entry = reader.readBinaryMember("binaryevents");
+            fullStatus.events = new EventRecorder(entry);
+            entry.close();
+        } else {
             lines = new UTFInputLineStream(reader.readMember("events"));
             fullStatus.events = new EventRecorder(lines);
         }
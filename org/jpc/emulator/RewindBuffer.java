@@ -0,0 +1,216 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Ring of compressed savestates kept in memory, for stepping back without
+ * going through savestate files. Snapshots are written as deltas against the
+ * previous one, with a full snapshot every KEYFRAME_INTERVAL snapshots so that
+ * restoring never has to scan a long chain. The oldest snapshots are evicted
+ * a keyframe group at a time once the memory limit is exceeded.
+ */
+public class RewindBuffer
+{
+    private static final int KEYFRAME_INTERVAL = 16;
+
+    private static class Snapshot
+    {
+        byte[] data;
+        int depth;                         //Snapshots between this one and keyframe.
+        long time;
+        EventRecorder events;
+        EventRecorder.Position position;
+        BigInteger rerecords;
+    }
+
+    private final List<Snapshot> snapshots;
+    private final int interval;
+    private final long memoryLimit;
+    private final boolean delta;
+    private final ByteArrayOutputStream buffer;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private long memoryUsed;
+    private SRDeltaBase lastPages;
+    private volatile int framesPending;
+
+    /**
+     * @param interval frames between automatic snapshots.
+     * @param memoryLimit bytes the compressed snapshots may take.
+     * @param delta write snapshots as deltas against the previous one.
+     */
+    public RewindBuffer(int interval, long memoryLimit, boolean delta)
+    {
+        snapshots = new ArrayList<Snapshot>();
+        this.interval = interval;
+        this.memoryLimit = memoryLimit;
+        this.delta = delta;
+        buffer = new ByteArrayOutputStream(1 << 20);
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        inflater = new Inflater();
+    }
+
+    public void frameReceived()
+    {
+        framesPending++;
+    }
+
+    public boolean isSnapshotDue()
+    {
+        return interval > 0 && framesPending >= interval;
+    }
+
+    public synchronized void snapshot(PC.PCFullStatus status) throws IOException
+    {
+        framesPending = 0;
+        if(!snapshots.isEmpty() && snapshots.get(0).events != status.events)
+            clear();
+
+        SRDeltaBase base = lastPages;
+        if(snapshots.isEmpty() || (base != null && base.getDepth() + 1 >= KEYFRAME_INTERVAL))
+            base = null;
+
+        Snapshot snap = new Snapshot();
+        snap.time = status.pc.getTime();
+        snap.events = status.events;
+        snap.position = status.events.getPosition();
+        snap.rerecords = status.rerecords;
+
+        buffer.reset();
+        deflater.reset();
+        DeflaterOutputStream zip = new DeflaterOutputStream(buffer, deflater);
+        SRDumper dumper = new SRDumper(zip);
+        if(delta)
+            dumper.trackPages(base);
+        dumper.dumpObject(status.pc);
+        dumper.flush();
+        zip.close();
+        snap.data = buffer.toByteArray();
+        lastPages = dumper.getPages();
+        snap.depth = (lastPages != null) ? lastPages.getDepth() : 0;
+
+        snapshots.add(snap);
+        memoryUsed += snap.data.length;
+        evict();
+    }
+
+    private void evict()
+    {
+        while(memoryUsed > memoryLimit) {
+            //Never evict the group the newest snapshot is in.
+            int groupEnd = 1;
+            while(groupEnd < snapshots.size() && snapshots.get(groupEnd).depth > 0)
+                groupEnd++;
+            if(groupEnd == snapshots.size())
+                return;
+            for(int i = 0; i < groupEnd; i++)
+                memoryUsed -= snapshots.remove(0).data.length;
+        }
+    }
+
+    private InputStream inflate(byte[] data)
+    {
+        inflater.reset();
+        return new InflaterInputStream(new ByteArrayInputStream(data), inflater);
+    }
+
+    /**
+     * Restores the snapshot <code>back</code> snapshots before the newest one,
+     * discarding all newer snapshots.
+     */
+    public synchronized PC.PCFullStatus restore(int back, PC.PCFullStatus existing) throws IOException
+    {
+        if(back < 0 || back >= snapshots.size())
+            throw new IOException("No such rewind snapshot");
+        int index = snapshots.size() - 1 - back;
+        Snapshot snap = snapshots.get(index);
+        if(existing == null || existing.events != snap.events)
+            throw new IOException("Rewind snapshot is not from current movie");
+
+        List<byte[]> basePages = null;
+        for(int i = index - snap.depth; i < index; i++)
+            basePages = SRLoader.scanPages(inflate(snapshots.get(i).data), basePages);
+        SRLoader loader = new SRLoader(inflate(snap.data));
+        loader.setBasePages(basePages, snap.depth);
+
+        PC.PCFullStatus fullStatus = new PC.PCFullStatus();
+        fullStatus.pc = (PC)(loader.loadObject());
+        fullStatus.events = existing.events;
+        fullStatus.projectID = existing.projectID;
+        fullStatus.savestateID = existing.savestateID;
+        fullStatus.extraHeaders = existing.extraHeaders;
+        fullStatus.events.attachAtPosition(fullStatus.pc, snap.position, snap.rerecords);
+        if(existing.rerecords.compareTo(snap.rerecords) > 0)
+            fullStatus.rerecords = existing.rerecords.add(BigInteger.ONE);
+        else
+            fullStatus.rerecords = snap.rerecords.add(BigInteger.ONE);
+        fullStatus.pc.refreshGameinfo(fullStatus);
+
+        while(snapshots.size() > index + 1)
+            memoryUsed -= snapshots.remove(snapshots.size() - 1).data.length;
+        lastPages = delta ? loader.getPages() : null;
+        framesPending = 0;
+        return fullStatus;
+    }
+
+    public synchronized void clear()
+    {
+        snapshots.clear();
+        memoryUsed = 0;
+        lastPages = null;
+        framesPending = 0;
+    }
+
+    public synchronized int getSnapshotCount()
+    {
+        return snapshots.size();
+    }
+
+    public synchronized long getMemoryUsed()
+    {
+        return memoryUsed;
+    }
+
+    /**
+     * Returns the emulated time of the snapshot <code>back</code> snapshots
+     * before the newest one, or -1 if there is no such snapshot.
+     */
+    public synchronized long getSnapshotTime(int back)
+    {
+        if(back < 0 || back >= snapshots.size())
+            return -1;
+        return snapshots.get(snapshots.size() - 1 - back).time;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.util.*;
+
+/**
+ * Pages written to or read from one savestate, so that later savestates can be
+ * written as deltas against it. A page is identified by the object owning it
+ * and that object's modification count at the time.
+ */
+public final class SRDeltaBase
+{
+    private final IdentityHashMap<Object, long[]> owners;
+    private final int depth;
+    private int pages;
+    private String savestateID;
+    private String fileName;
+    private String projectID;
+    private List<String> chain;     //Files of this savestate and the ones it refers to.
+
+    SRDeltaBase(int depth)
+    {
+        owners = new IdentityHashMap<Object, long[]>();
+        this.depth = depth;
+    }
+
+    /**
+     * Records the next page, returning its ordinal. Missing pages are counted
+     * but can't be referred to.
+     */
+    int addPage(Object owner, long generation, boolean present)
+    {
+        if(present && owner != null)
+            owners.put(owner, new long[]{generation, pages});
+        return pages++;
+    }
+
+    /**
+     * Returns the ordinal of the page of <code>owner</code> if it is unchanged,
+     * -1 otherwise.
+     */
+    int lookupPage(Object owner, long generation)
+    {
+        long[] entry = owners.get(owner);
+        if(entry == null || entry[0] != generation)
+            return -1;
+        return (int)entry[1];
+    }
+
+    /**
+     * Sets the file this savestate is in.
+     * @param baseChain files this savestate refers to, directly or indirectly.
+     */
+    void setSource(String savestateID, String fileName, String projectID, List<String> baseChain)
+    {
+        this.savestateID = savestateID;
+        this.fileName = fileName;
+        this.projectID = projectID;
+        chain = new ArrayList<String>();
+        if(baseChain != null)
+            chain.addAll(baseChain);
+        chain.add(fileName);
+    }
+
+    public boolean isEmpty()
+    {
+        return owners.isEmpty();
+    }
+
+    /**
+     * Number of deltas between this savestate and a full one.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public String getSavestateID()
+    {
+        return savestateID;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public String getProjectID()
+    {
+        return projectID;
+    }
+
+    /**
+     * Returns the files this savestate and the ones it refers to are in.
+     */
+    public List<String> getChain()
+    {
+        return (chain != null) ? Collections.unmodifiableList(chain) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Returns true if overwriting <code>file</code> would break this savestate
+     * as delta base.
+     */
+    public boolean dependsOn(String file)
+    {
+        return chain != null && chain.contains(file);
+    }
+}
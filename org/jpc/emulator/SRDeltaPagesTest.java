@@ -0,0 +1,133 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.io.*;
+import java.util.*;
+
+import org.jpc.TestCheck;
+
+public class SRDeltaPagesTest
+{
+    private static final TestCheck test = new TestCheck("Delta page");
+
+    private static byte[] page(Random random)
+    {
+        byte[] x = new byte[4096];
+        random.nextBytes(x);
+        return x;
+    }
+
+    private static byte[] dump(SRDeltaBase base, Object[] owners, int[] generations, byte[][] pages,
+        SRDeltaBase[] tracked) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SRDumper dumper = new SRDumper(out);
+        dumper.trackPages(base);
+        for(int i = 0; i < owners.length; i++) {
+            dumper.dumpInt(i);
+            dumper.dumpPage(owners[i], generations[i], pages[i]);
+        }
+        dumper.flush();
+        tracked[0] = dumper.getPages();
+        return out.toByteArray();
+    }
+
+    private static byte[][] load(byte[] data, List<byte[]> basePages, int depth, Object[] owners,
+        int[] generations, SRDeltaBase[] tracked) throws IOException
+    {
+        SRLoader loader = new SRLoader(new ByteArrayInputStream(data));
+        loader.setBasePages(basePages, depth);
+        byte[][] pages = new byte[owners.length][];
+        for(int i = 0; i < owners.length; i++) {
+            if(loader.loadInt() != i)
+                throw new IOException("Delta page test stream out of sync");
+            pages[i] = loader.loadPage(owners[i], generations[i]);
+        }
+        tracked[0] = loader.getPages();
+        return pages;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(1);
+        Object[] owners = new Object[]{new Object(), new Object(), new Object(), new Object()};
+        byte[][] pages = new byte[][]{page(random), page(random), null, page(random)};
+        int[] generations = new int[]{1, 1, 1, 1};
+        SRDeltaBase[] tracked = new SRDeltaBase[1];
+
+        //Full savestate: every page stored as TYPE_PAGE.
+        byte[] full = dump(null, owners, generations, pages, tracked);
+        SRDeltaBase base = tracked[0];
+        base.setSource("first", "first.jrsr", "project", null);
+        test.check(base.getDepth() == 0, "full savestate depth");
+        test.check(base.lookupPage(owners[0], 1) == 0 && base.lookupPage(owners[3], 1) == 3, "page ordinals");
+        test.check(base.lookupPage(owners[2], 1) == -1, "missing page referable");
+        test.check(base.lookupPage(owners[1], 2) == -1, "changed page referable");
+        test.check(base.lookupPage(owners[1], 1 + (1L << 32)) == -1, "generation truncated to 32 bits");
+        List<byte[]> basePages = SRLoader.scanPages(new ByteArrayInputStream(full), null);
+        test.check(basePages.size() == 4, "scanned page count " + basePages.size());
+        for(int i = 0; i < pages.length; i++)
+            test.check(Arrays.equals(basePages.get(i), pages[i]), "scanned page #" + i);
+
+        //Delta: unchanged pages become TYPE_PAGE_REF, so only the changed page is stored.
+        byte[][] pages2 = new byte[][]{pages[0], page(random), null, pages[3]};
+        int[] generations2 = new int[]{1, 2, 1, 1};
+        byte[] delta = dump(base, owners, generations2, pages2, tracked);
+        SRDeltaBase base2 = tracked[0];
+        base2.setSource("second", "second.jrsr", "project", base.getChain());
+        test.check(delta.length < full.length - 2 * 4096, "unchanged pages stored again");
+        test.check(base2.getDepth() == 1, "delta depth");
+        test.check(base2.getChain().equals(Arrays.asList("first.jrsr", "second.jrsr")), "chain " + base2.getChain());
+        test.check(base2.dependsOn("first.jrsr") && !base2.dependsOn("third.jrsr"), "chain lookup");
+
+        Object[] loadOwners = new Object[]{new Object(), new Object(), new Object(), new Object()};
+        byte[][] loaded = load(delta, basePages, 1, loadOwners, generations2, tracked);
+        for(int i = 0; i < pages2.length; i++)
+            test.check(Arrays.equals(loaded[i], pages2[i]), "loaded page #" + i);
+        test.check(loaded[0] != basePages.get(0), "referenced page not copied");
+        test.check(tracked[0].getDepth() == 1 && tracked[0].lookupPage(loadOwners[0], 1) == 0, "loaded pages tracked");
+        List<byte[]> deltaPages = SRLoader.scanPages(new ByteArrayInputStream(delta), basePages);
+        for(int i = 0; i < pages2.length; i++)
+            test.check(Arrays.equals(deltaPages.get(i), pages2[i]), "scanned delta page #" + i);
+
+        try {
+            load(delta, null, 1, loadOwners, generations2, tracked);
+            test.fail("delta loaded without base");
+        } catch(IOException e) {
+        }
+        try {
+            load(delta, basePages.subList(0, 1), 1, loadOwners, generations2, tracked);
+            test.fail("delta loaded with reference past end of base");
+        } catch(IOException e) {
+        }
+        test.passed();
+    }
+}
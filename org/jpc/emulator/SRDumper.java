@@ -53,19 +53,36 @@ public final class SRDumper
     public static final byte TYPE_SPECIAL_OBJECT = 16;
     public static final byte TYPE_OBJECT_NOT_PRESENT = 19;
     public static final byte TYPE_DOUBLE = 20;
+    public static final byte TYPE_PAGE = 21;
+    public static final byte TYPE_PAGE_REF = 22;
+    public static final byte TYPE_PAGE_TABLE = 23;
+    public static final byte TYPE_OBJECT_TABLE = 24;
 
     OutputStream underlyingOutput;
     int nextObjectNumber;
     static final Boolean FALSE;
     static final Boolean TRUE;
-    private java.util.Stack<Integer> objectStack;
     private int firstUnseenObject;
-    java.util.HashMap<Integer, ObjectListEntry> chainingLists;
+    private ObjectNumberMap objectNumbers;
     java.util.HashSet<String> constructors;
     int objectsCount;
     private int bufferStart;
     private byte[] buffer;
     private static final int BUFFER_MAXSIZE = 4096;  //MUST BE MULTIPLE OF 8.
+    private SRDeltaBase pages;
+    private SRDeltaBase deltaBase;
+    private SRPageTable pageTable;
+    private PageSink pageSink;
+
+    /**
+     * Takes pages dumped by <code>dumpPage</code> in place of their contents,
+     * to be written at their place in the stream later.
+     */
+    public interface PageSink
+    {
+        public void deferPage(byte[] x) throws IOException;
+        public void deferPage(SRPageTable.Page page) throws IOException;
+    }
 
     public void writeConstructorManifest(OutputStream out) throws IOException
     {
@@ -85,13 +102,6 @@ public final class SRDumper
         }
     }
 
-    static class ObjectListEntry
-    {
-        public Object object;
-        public int num;
-        public ObjectListEntry next;
-    }
-
     static
     {
         FALSE = new Boolean(false);
@@ -113,8 +123,7 @@ public final class SRDumper
         nextObjectNumber = 0;
         underlyingOutput = ps;
         firstUnseenObject = 0;
-        chainingLists = new java.util.HashMap<Integer, ObjectListEntry>();
-        objectStack = new java.util.Stack<Integer>();
+        objectNumbers = new ObjectNumberMap();
         objectsCount = 0;
         constructors = new java.util.HashSet<String>();
         bufferStart = 0;
@@ -262,9 +271,14 @@ public final class SRDumper
     }
 
     public void dumpArray(byte[] x) throws IOException
+    {
+        dumpArray(TYPE_BYTE_ARRAY, x);
+    }
+
+    private void dumpArray(byte type, byte[] x) throws IOException
     {
         ensureBufferSpace(2);
-        buffer[bufferStart++] = TYPE_BYTE_ARRAY;
+        buffer[bufferStart++] = type;
         if(x != null) {
             buffer[bufferStart++] = 1;
             dumpInt(x.length, true);
@@ -284,6 +298,142 @@ public final class SRDumper
             buffer[bufferStart++] = 0;
     }
 
+    /**
+     * Starts tracking pages dumped by <code>dumpPage</code>, so this dump can
+     * serve as base for later ones. Pages unchanged since <code>base</code>
+     * are written as references to it, if it is not null.
+     * @param base savestate to write this one as delta against, or null.
+     */
+    public void trackPages(SRDeltaBase base)
+    {
+        deltaBase = base;
+        pages = new SRDeltaBase((base != null) ? base.getDepth() + 1 : 0);
+    }
+
+    /**
+     * Writes pages dumped by <code>dumpPage</code> into <code>table</code>
+     * instead of the stream. Starts tracking pages if they aren't tracked yet.
+     */
+    public void usePageTable(SRPageTable table)
+    {
+        if(pages == null)
+            trackPages(null);
+        pageTable = table;
+    }
+
+    /**
+     * Hands pages dumped by <code>dumpPage</code> to <code>sink</code> after
+     * writing out everything dumped before them. Deferred pages are not
+     * tracked. The sink keeps the arrays, so owners must not modify them
+     * afterwards if <code>defersPages</code> returns true.
+     */
+    public void deferPages(PageSink sink)
+    {
+        pageSink = sink;
+    }
+
+    public boolean defersPages()
+    {
+        return pageSink != null;
+    }
+
+    /**
+     * Writes page deferred by <code>deferPages</code> as if it had been dumped
+     * without tracking pages, or as reference to <code>table</code> if it is
+     * not null.
+     * @param page the array or the unread page given to the sink.
+     */
+    static void writeDeferredPage(OutputStream out, Object page, SRPageTable table) throws IOException
+    {
+        DataOutputStream output = new DataOutputStream(out);
+        if(table != null) {
+            output.writeByte(TYPE_PAGE_TABLE);
+            if(page instanceof SRPageTable.Page)
+                output.writeInt(table.addPage((SRPageTable.Page)page));
+            else
+                output.writeInt(table.addPage((byte[])page));
+            return;
+        }
+        byte[] x = (page instanceof SRPageTable.Page) ? ((SRPageTable.Page)page).read() : (byte[])page;
+        output.writeByte(TYPE_BYTE_ARRAY);
+        output.writeByte(1);
+        output.writeInt(x.length);
+        output.write(x);
+    }
+
+    /**
+     * Returns the pages dumped so far, or null if they aren't tracked.
+     */
+    public SRDeltaBase getPages()
+    {
+        return pages;
+    }
+
+    /**
+     * Dumps a large array that is rarely modified, such as memory contents.
+     * @param owner object holding the array.
+     * @param generation changes whenever the contents change.
+     * @param x the contents.
+     */
+    public void dumpPage(Object owner, long generation, byte[] x) throws IOException
+    {
+        if(pageSink != null && x != null) {
+            flush();
+            pageSink.deferPage(x);
+            return;
+        }
+        if(pages == null) {
+            dumpArray(x);
+            return;
+        }
+
+        pages.addPage(owner, generation, x != null);
+        int baseOrdinal = -1;
+        if(deltaBase != null && x != null)
+            baseOrdinal = deltaBase.lookupPage(owner, generation);
+        if(baseOrdinal >= 0) {
+            ensureBufferSpace(5);
+            buffer[bufferStart++] = TYPE_PAGE_REF;
+            dumpInt(baseOrdinal, false);
+        } else if(pageTable != null && x != null) {
+            ensureBufferSpace(5);
+            buffer[bufferStart++] = TYPE_PAGE_TABLE;
+            dumpInt(pageTable.addPage(x), false);
+        } else
+            dumpArray(TYPE_PAGE, x);
+    }
+
+    /**
+     * Dumps a page loaded by <code>SRLoader.loadTablePage</code> and not read
+     * since, like <code>dumpPage</code>. The page is only decompressed if its
+     * contents have to be written into the stream.
+     */
+    public void dumpTablePage(Object owner, long generation, SRPageTable.Page page) throws IOException
+    {
+        if(pageSink != null) {
+            flush();
+            pageSink.deferPage(page);
+            return;
+        }
+        int baseOrdinal = -1;
+        if(pages != null && deltaBase != null)
+            baseOrdinal = deltaBase.lookupPage(owner, generation);
+        if(baseOrdinal < 0 && (pages == null || pageTable == null)) {
+            dumpPage(owner, generation, page.read());
+            return;
+        }
+
+        pages.addPage(owner, generation, true);
+        ensureBufferSpace(5);
+        if(baseOrdinal >= 0) {
+            buffer[bufferStart++] = TYPE_PAGE_REF;
+            dumpInt(baseOrdinal, false);
+        } else {
+            buffer[bufferStart++] = TYPE_PAGE_TABLE;
+            dumpInt(pageTable.addPage(page), false);
+        }
+    }
+
     public void dumpArray(short[] x) throws IOException
     {
         ensureBufferSpace(2);
@@ -386,6 +536,26 @@ public final class SRDumper
         }
     }
 
+    /**
+     * Dumps a large table of object references as runs of identical
+     * references, each written as its length followed by the reference.
+     */
+    public void dumpObjectTable(SRDumpable[] table) throws IOException
+    {
+        ensureBufferSpace(1);
+        buffer[bufferStart++] = TYPE_OBJECT_TABLE;
+        dumpInt(table.length);
+        int i = 0;
+        while(i < table.length) {
+            int j = i + 1;
+            while(j < table.length && table[j] == table[i])
+                j++;
+            dumpInt(j - i);
+            dumpObject(table[i]);
+            i = j;
+        }
+    }
+
     public void specialObject(SRDumpable o) throws IOException
     {
         int assigned = objectNumber(o);
@@ -426,58 +596,22 @@ public final class SRDumper
         return objectsCount;
     }
 
-    private void addObject(Object O, int n)
-    {
-        Integer hcode = new Integer(System.identityHashCode(O));
-        ObjectListEntry e = new ObjectListEntry();
-        e.object = O;
-        e.num = n;
-        e.next = null;
-        if(!chainingLists.containsKey(hcode)) {
-            chainingLists.put(hcode, e);
-        } else {
-            e.next = chainingLists.get(hcode);
-            chainingLists.put(hcode, e);
-        }
-    }
-
-    private int lookupObject(Object O)
-    {
-        Integer hcode = new Integer(System.identityHashCode(O));
-        if(!chainingLists.containsKey(hcode))
-            return -1;
-        ObjectListEntry e = chainingLists.get(hcode);
-        while(e != null) {
-            if(e.object == O)
-                return e.num;
-            e = e.next;
-        }
-        return -1;
-    }
-
     public int objectNumber(Object O)
     {
-        int assignedNum;
-        boolean isNew = false;
-
         if(O == null)
             return -1;
 
-        assignedNum = lookupObject(O);
-        if(assignedNum == -1)
-            isNew = true;
-
-        if(isNew) {
+        int assignedNum = objectNumbers.get(O);
+        if(assignedNum == -1) {
             assignedNum = nextObjectNumber++;
-            addObject(O, assignedNum);
+            objectNumbers.put(O, assignedNum);
         }
         return assignedNum;
     }
 
     public boolean dumped(Object O) throws IOException
     {
-        int objn;
-        Integer obj = new Integer(objn = objectNumber(O));
+        int objn = objectNumber(O);
 
         if(objn >= firstUnseenObject) {
             firstUnseenObject = objn + 1;
@@ -486,7 +620,6 @@ public final class SRDumper
             buffer[bufferStart++] = TYPE_OBJECT_START;
             dumpString(O.getClass().getName());
             constructors.add(O.getClass().getName());
-            objectStack.push(obj);
             return false;
         } else {
             ensureBufferSpace(1);
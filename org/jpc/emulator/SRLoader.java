@@ -30,7 +30,9 @@
 package org.jpc.emulator;
 
 import java.io.*;
-import java.lang.reflect.*;
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jpc.jrsr.UTFInputLineStream;
 
@@ -50,6 +52,14 @@ public final class SRLoader
     private byte[] buffer;
     int lastSuccess;
     int opNum;
+    private SRDeltaBase pages;
+    private List<byte[]> basePages;
+    private SRPageTable pageTable;
+    //Resolved dumpable classes and their loader constructors, shared by all loaders.
+    private static final Map<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+    private static final Map<String, MethodHandle> constructors = new ConcurrentHashMap<String, MethodHandle>();
+    private static final MethodType LOADER_CONSTRUCTOR = MethodType.methodType(SRDumpable.class, SRLoader.class);
+    private int depth;
 
     public SRLoader(InputStream di)
     {
@@ -101,6 +111,14 @@ public final class SRLoader
             return "long";
         case SRDumper.TYPE_DOUBLE:
             return "double";
+        case SRDumper.TYPE_PAGE:
+            return "<page>";
+        case SRDumper.TYPE_PAGE_REF:
+            return "<page reference>";
+        case SRDumper.TYPE_PAGE_TABLE:
+            return "<page table reference>";
+        case SRDumper.TYPE_OBJECT_TABLE:
+            return "<object table>";
         case SRDumper.TYPE_STRING:
             return "String";
         case SRDumper.TYPE_BOOLEAN_ARRAY:
@@ -287,6 +305,11 @@ public final class SRLoader
     {
         ensureBufferFill(2);
         expect(SRDumper.TYPE_BYTE_ARRAY, opNum++);
+        return readArrayByte();
+    }
+
+    private byte[] readArrayByte() throws IOException
+    {
         byte present = buffer[bufferStart++]; bufferFill--;
         if(present != 0) {
             byte[] x = new byte[readInt(true)];
@@ -308,6 +331,202 @@ public final class SRLoader
             return null;
     }
 
+    /**
+     * Sets the contents of pages that pages of this savestate may refer to.
+     * @param depth number of deltas between this savestate and a full one.
+     */
+    public void setBasePages(List<byte[]> contents, int depth)
+    {
+        basePages = contents;
+        this.depth = depth;
+    }
+
+    /**
+     * Sets the table holding pages stored outside the savestate stream.
+     */
+    public void setPageTable(SRPageTable table)
+    {
+        pageTable = table;
+    }
+
+    /**
+     * Returns the pages loaded so far, or null if the savestate doesn't track
+     * them.
+     */
+    public SRDeltaBase getPages()
+    {
+        return pages;
+    }
+
+    /**
+     * Loads an array dumped by <code>SRDumper.dumpPage</code>, or by
+     * <code>dumpArray</code> in savestates without tracked pages.
+     * @param owner object holding the array.
+     * @param generation current modification count of the owner.
+     */
+    public byte[] loadPage(Object owner, long generation) throws IOException
+    {
+        ensureBufferFill(1);
+        byte type = buffer[bufferStart];
+        if(type == SRDumper.TYPE_PAGE_TABLE)
+            return loadTablePage(owner, generation).read();
+        if(type != SRDumper.TYPE_PAGE && type != SRDumper.TYPE_PAGE_REF)
+            return loadArrayByte();
+
+        if(pages == null)
+            pages = new SRDeltaBase(depth);
+        byte[] x;
+        if(type == SRDumper.TYPE_PAGE) {
+            ensureBufferFill(2);
+            expect(SRDumper.TYPE_PAGE, opNum++);
+            x = readArrayByte();
+        } else {
+            ensureBufferFill(5);
+            expect(SRDumper.TYPE_PAGE_REF, opNum++);
+            x = basePage(readInt(false));
+        }
+        pages.addPage(owner, generation, x != null);
+        return x;
+    }
+
+    /**
+     * Returns true if the next item is a page in the page table, to be loaded
+     * by <code>loadTablePage</code> without reading its contents yet.
+     */
+    public boolean nextIsTablePage() throws IOException
+    {
+        ensureBufferFill(1);
+        return buffer[bufferStart] == SRDumper.TYPE_PAGE_TABLE;
+    }
+
+    /**
+     * Loads a reference to a page in the page table. The contents are read
+     * when the returned page is loaded.
+     * @param owner object holding the page.
+     * @param generation current modification count of the owner.
+     */
+    public SRPageTable.Page loadTablePage(Object owner, long generation) throws IOException
+    {
+        if(pageTable == null)
+            throw new IOException("Savestate refers to page table, but it is missing");
+        if(pages == null)
+            pages = new SRDeltaBase(depth);
+        ensureBufferFill(5);
+        expect(SRDumper.TYPE_PAGE_TABLE, opNum++);
+        SRPageTable.Page page = pageTable.getPage(readInt(false));
+        pages.addPage(owner, generation, true);
+        return page;
+    }
+
+    private byte[] basePage(int ordinal) throws IOException
+    {
+        if(basePages == null || ordinal < 0 || ordinal >= basePages.size() || basePages.get(ordinal) == null)
+            throw new IOException("Savestate refers to page #" + ordinal + " missing from its base savestate");
+        return basePages.get(ordinal).clone();
+    }
+
+    private boolean moreData() throws IOException
+    {
+        if(bufferFill > 0)
+            return true;
+        bufferStart = 0;
+        while(bufferFill == 0 && !bufferEOF) {
+            int r = underlyingInput.read(buffer, 0, BUFFER_MAXSIZE);
+            if(r < 0)
+                bufferEOF = true;
+            else
+                bufferFill += r;
+        }
+        return bufferFill > 0;
+    }
+
+    /**
+     * Reads the contents of the tracked pages of a savestate without loading
+     * any objects.
+     * @param in the savestate stream.
+     * @param basePages contents of pages of the base savestate, if this is a delta.
+     * @return page contents by ordinal.
+     */
+    public static List<byte[]> scanPages(InputStream in, List<byte[]> basePages) throws IOException
+    {
+        return scanPages(in, basePages, null);
+    }
+
+    /**
+     * Like <code>scanPages(in, basePages)</code>, reading pages referred to
+     * from the stream from <code>table</code>.
+     */
+    public static List<byte[]> scanPages(InputStream in, List<byte[]> basePages, SRPageTable table)
+        throws IOException
+    {
+        SRLoader scanner = new SRLoader(in);
+        scanner.basePages = basePages;
+        scanner.pageTable = table;
+        List<byte[]> contents = new ArrayList<byte[]>();
+        while(scanner.moreData()) {
+            byte type = scanner.buffer[scanner.bufferStart];
+            switch(type) {
+            case SRDumper.TYPE_BOOLEAN:
+                scanner.loadBoolean();
+                break;
+            case SRDumper.TYPE_BYTE:
+                scanner.loadByte();
+                break;
+            case SRDumper.TYPE_SHORT:
+                scanner.loadShort();
+                break;
+            case SRDumper.TYPE_INT:
+                scanner.loadInt();
+                break;
+            case SRDumper.TYPE_LONG:
+                scanner.loadLong();
+                break;
+            case SRDumper.TYPE_DOUBLE:
+                scanner.loadDouble();
+                break;
+            case SRDumper.TYPE_STRING:
+                scanner.loadString();
+                break;
+            case SRDumper.TYPE_BOOLEAN_ARRAY:
+                scanner.loadArrayBoolean();
+                break;
+            case SRDumper.TYPE_BYTE_ARRAY:
+                scanner.loadArrayByte();
+                break;
+            case SRDumper.TYPE_SHORT_ARRAY:
+                scanner.loadArrayShort();
+                break;
+            case SRDumper.TYPE_INT_ARRAY:
+                scanner.loadArrayInt();
+                break;
+            case SRDumper.TYPE_LONG_ARRAY:
+                scanner.loadArrayLong();
+                break;
+            case SRDumper.TYPE_DOUBLE_ARRAY:
+                scanner.loadArrayDouble();
+                break;
+            case SRDumper.TYPE_PAGE:
+            case SRDumper.TYPE_PAGE_REF:
+            case SRDumper.TYPE_PAGE_TABLE:
+                contents.add(scanner.loadPage(null, 0));
+                break;
+            case SRDumper.TYPE_OBJECT:
+            case SRDumper.TYPE_OBJECT_TABLE:
+            case SRDumper.TYPE_OBJECT_START:
+            case SRDumper.TYPE_OBJECT_END:
+            case SRDumper.TYPE_SPECIAL_OBJECT:
+            case SRDumper.TYPE_OBJECT_NOT_PRESENT:
+                //The object number and class name follow as separate items.
+                scanner.bufferStart++;
+                scanner.bufferFill--;
+                break;
+            default:
+                throw new IOException("Unknown item type " + ((int)type & 0xFF) + " in savestate");
+            }
+        }
+        return contents;
+    }
+
     public short[] loadArrayShort() throws IOException
     {
         ensureBufferFill(2);
@@ -416,15 +635,11 @@ public final class SRLoader
 
     public static boolean checkConstructorManifest(InputStream in) throws IOException
     {
-        Class<?> classObject;
         UTFInputLineStream lines = new UTFInputLineStream(in);
         String clazz = lines.readLine();
         while(clazz != null) {
             try {
-                classObject = Class.forName(clazz);
-                if(!SRDumpable.class.isAssignableFrom(classObject)) {
-                    throw new IOException("Invalid class");
-                }
+                lookupClass(clazz);
             } catch(Exception e) {
                 System.err.println("Error: Constructor manifest refers to unknown/invalid class " + clazz + ".");
                 return false;
@@ -434,40 +649,62 @@ public final class SRLoader
         return true;
     }
 
-    private SRDumpable builtinObjectLoader(int id, Class<?> clazz) throws IOException
+    private static Class<?> lookupClass(String className) throws IOException
     {
-        SRDumpable x;
-        Constructor<?> constructorObject = null;
-
-        intLoads++;
-
+        Class<?> classObject = classes.get(className);
+        if(classObject != null)
+            return classObject;
         try {
-            if(constructorObject == null)
-                constructorObject = clazz.getConstructor(getClass());
+            classObject = Class.forName(className);
         } catch(Exception e) {
+            throw new IOException("Unknown class \"" + className + "\" encountered:" + e);
+        }
+        if(!SRDumpable.class.isAssignableFrom(classObject))
+            throw new IOException("Class \"" + className + "\" is not dumpable");
+        classes.put(className, classObject);
+        return classObject;
+    }
+
+    private static MethodHandle lookupConstructor(String className) throws IOException
+    {
+        MethodHandle constructor = constructors.get(className);
+        if(constructor != null)
+            return constructor;
+        Class<?> clazz = lookupClass(className);
+        try {
+            constructor = MethodHandles.lookup().unreflectConstructor(clazz.getConstructor(SRLoader.class));
+        } catch(NoSuchMethodException e) {
             throw new IOException("<init>(SRLoader) required for object loading: " + e);
+        } catch(IllegalAccessException e) {
+            throw new IOException("Can't invoke <init>(SRLoader) of \"" + className + "\": " + e);
         }
+        constructor = constructor.asType(LOADER_CONSTRUCTOR);
+        constructors.put(className, constructor);
+        return constructor;
+    }
+
+    private SRDumpable builtinObjectLoader(int id, String className) throws IOException
+    {
+        SRDumpable x;
+        MethodHandle constructor = lookupConstructor(className);
+
+        intLoads++;
 
         try {
             pendingObject = id;
-            x = (SRDumpable)constructorObject.newInstance(this);
+            x = (SRDumpable)constructor.invokeExact(this);
             endObject();
-        } catch(IllegalAccessException e) {
-            throw new IOException("Can't invoke <init>(SRLoader) of \"" + clazz.getName() + "\": " + e);
-        } catch(InvocationTargetException e) {
-            Throwable e2 = e.getCause();
+        } catch(RuntimeException e) {
             //If the exception is something unchecked, just pass it through.
-            if(e2 instanceof RuntimeException)
-                throw (RuntimeException)e2;
-            if(e2 instanceof Error)
-                throw (Error)e2;
+            throw e;
+        } catch(Error e) {
+            throw e;
+        } catch(IOException e) {
             //Also pass IOException through.
-            if(e2 instanceof IOException)
-                throw (IOException)e2;
+            throw e;
+        } catch(Throwable e) {
             //What the heck is that?
-            throw new IOException("Unknown exception while invoking loader: " + e2);
-        } catch(InstantiationException e) {
-            throw new IOException("Instatiation of class \"" + clazz.getName() + "\" failed:" + e);
+            throw new IOException("Unknown exception while invoking loader: " + e);
         }
 
         if(objects.length <= id || objects[id] != x) {
@@ -481,16 +718,7 @@ public final class SRLoader
     {
         ensureBufferFill(1);
         expect(SRDumper.TYPE_OBJECT_START, opNum++);
-        String className = loadString();
-        Class<?> classObject;
-
-        try {
-            classObject = Class.forName(className);
-        } catch(Exception e) {
-            throw new IOException("Unknown class \"" + className + "\" encountered:" + e);
-        }
-
-        return builtinObjectLoader(id, classObject);
+        return builtinObjectLoader(id, loadString());
     }
 
     public void objectCreated(SRDumpable o)
@@ -531,6 +759,46 @@ public final class SRLoader
         }
     }
 
+    /**
+     * Returns true if the next item is a table dumped by
+     * <code>SRDumper.dumpObjectTable</code>.
+     */
+    public boolean nextIsObjectTable() throws IOException
+    {
+        ensureBufferFill(1);
+        return buffer[bufferStart] == SRDumper.TYPE_OBJECT_TABLE;
+    }
+
+    /**
+     * Loads a table dumped by <code>SRDumper.dumpObjectTable</code> into
+     * <code>table</code>, which must have the same length. Savestates from
+     * before object tables have each entry dumped separately instead.
+     */
+    public void loadObjectTable(SRDumpable[] table) throws IOException
+    {
+        try {
+            if(!nextIsObjectTable()) {
+                for(int i = 0; i < table.length; i++)
+                    table[i] = loadObject();
+                return;
+            }
+            expect(SRDumper.TYPE_OBJECT_TABLE, opNum++);
+            int length = loadInt();
+            if(length != table.length)
+                throw new IOException("Object table has " + length + " entries, expected " + table.length);
+            int i = 0;
+            while(i < length) {
+                int run = loadInt();
+                if(run <= 0 || run > length - i)
+                    throw new IOException("Bad run of " + run + " entries in object table");
+                Arrays.fill(table, i, i + run, loadObject());
+                i += run;
+            }
+        } catch(ArrayStoreException e) {
+            throw new IOException("Object of wrong type in object table: " + e.getMessage());
+        }
+    }
+
     public void endObject() throws IOException
     {
         objectNum++;
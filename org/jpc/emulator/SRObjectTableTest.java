@@ -0,0 +1,150 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.io.*;
+import java.util.*;
+
+import org.jpc.TestCheck;
+
+public class SRObjectTableTest
+{
+    private static final TestCheck test = new TestCheck("Object table");
+
+    public static class Item implements SRDumpable
+    {
+        private int value;
+
+        public Item(int value)
+        {
+            this.value = value;
+        }
+
+        public Item(SRLoader input) throws IOException
+        {
+            input.objectCreated(this);
+            value = input.loadInt();
+        }
+
+        public void dumpSRPartial(SRDumper output) throws IOException
+        {
+            output.dumpInt(value);
+        }
+    }
+
+    public static class Other implements SRDumpable
+    {
+        public Other()
+        {
+        }
+
+        public Other(SRLoader input) throws IOException
+        {
+            input.objectCreated(this);
+        }
+
+        public void dumpSRPartial(SRDumper output) throws IOException
+        {
+        }
+    }
+
+    private static byte[] dump(SRDumpable[] table, boolean asTable) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SRDumper dumper = new SRDumper(out);
+        dumper.dumpObject(table[table.length - 1]);
+        if(asTable)
+            dumper.dumpObjectTable(table);
+        else
+            for(int i = 0; i < table.length; i++)
+                dumper.dumpObject(table[i]);
+        dumper.dumpInt(12345);
+        dumper.flush();
+        return out.toByteArray();
+    }
+
+    private static SRDumpable load(byte[] data, SRDumpable[] table) throws IOException
+    {
+        SRLoader loader = new SRLoader(new ByteArrayInputStream(data));
+        SRDumpable before = loader.loadObject();
+        loader.loadObjectTable(table);
+        if(loader.loadInt() != 12345)
+            throw new IOException("Object table test stream out of sync");
+        return before;
+    }
+
+    private static void checkRejected(final byte[] data, final SRDumpable[] table, String what) throws Exception
+    {
+        test.checkRejected(new TestCheck.Attempt() {
+            public void run() throws IOException
+            {
+                load(data, table);
+            }
+        }, what);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Item a = new Item(1);
+        Item b = new Item(2);
+        Item c = new Item(3);
+        Item[] table = new Item[1000];
+        Arrays.fill(table, 0, 400, a);
+        Arrays.fill(table, 400, 410, null);
+        table[410] = b;
+        Arrays.fill(table, 411, 999, a);
+        table[999] = c;
+
+        byte[] runs = dump(table, true);
+        byte[] separate = dump(table, false);
+        test.check(runs.length < separate.length / 10, "runs not shorter: " + runs.length + " vs " + separate.length);
+        for(byte[] data : new byte[][]{runs, separate}) {
+            String format = (data == runs) ? "table" : "separate entries";
+            Item[] loaded = new Item[table.length];
+            SRDumpable before = load(data, loaded);
+            test.check(loaded[999] == before, "object dumped before table not shared in " + format);
+            for(int i = 0; i < table.length; i++) {
+                test.check((loaded[i] == null) == (table[i] == null), "entry #" + i + " in " + format);
+                if(table[i] != null)
+                    test.check(loaded[i].value == table[i].value, "value of entry #" + i + " in " + format);
+            }
+            test.check(loaded[0] == loaded[399] && loaded[0] == loaded[411] && loaded[0] == loaded[998],
+                "repeated entries not shared in " + format);
+            test.check(loaded[0] != loaded[410], "distinct entries shared in " + format);
+        }
+
+        checkRejected(runs, new Item[table.length - 1], "shorter table");
+        checkRejected(runs, new Item[table.length + 1], "longer table");
+        SRDumpable[] mixed = Arrays.copyOf(table, table.length, SRDumpable[].class);
+        mixed[5] = new Other();
+        checkRejected(dump(mixed, true), new Item[table.length], "object of wrong type");
+        test.passed();
+    }
+}
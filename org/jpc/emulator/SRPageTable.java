@@ -0,0 +1,252 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Pages of a savestate stored outside the main savestate stream, each
+ * compressed separately so that they can be read individually when first
+ * needed instead of all at once when loading.
+ */
+public final class SRPageTable
+{
+    private List<Object> pages;     //Contents, or pages still compressed in another table.
+    private boolean copyPages;
+    private byte[] data;
+    private int[] offsets;
+    private int[] compressedLengths;
+    private int[] lengths;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * Creates empty table for dumping.
+     * @param copyPages copy pages when added, so they may be modified afterwards.
+     */
+    public SRPageTable(boolean copyPages)
+    {
+        pages = new ArrayList<Object>();
+        this.copyPages = copyPages;
+    }
+
+    private SRPageTable(byte[] data, int[] offsets, int[] compressedLengths, int[] lengths)
+    {
+        this.data = data;
+        this.offsets = offsets;
+        this.compressedLengths = compressedLengths;
+        this.lengths = lengths;
+    }
+
+    int addPage(byte[] x)
+    {
+        pages.add(copyPages ? x.clone() : x);
+        return pages.size() - 1;
+    }
+
+    //The compressed page is copied as is when writing.
+    int addPage(Page page)
+    {
+        pages.add(page);
+        return pages.size() - 1;
+    }
+
+    public int getPageCount()
+    {
+        return (pages != null) ? pages.size() : lengths.length;
+    }
+
+    /**
+     * Writes the table. Pages are written compressed one by one, followed by
+     * the offset, compressed length, length and CRC-32 of compressed data of
+     * each page and finally the number of pages.
+     */
+    public void write(OutputStream out, int level) throws IOException
+    {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+        Deflater deflater = new Deflater(level);
+        byte[] scratch = new byte[8192];
+        int[] compressedLengths = new int[pages.size()];
+        int[] lengths = new int[pages.size()];
+        int[] checksums = new int[pages.size()];
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < pages.size(); i++) {
+            crc.reset();
+            if(pages.get(i) instanceof Page) {
+                Page page = (Page)pages.get(i);
+                SRPageTable source = page.table;
+                output.write(source.data, source.offsets[page.ordinal], source.compressedLengths[page.ordinal]);
+                crc.update(source.data, source.offsets[page.ordinal], source.compressedLengths[page.ordinal]);
+                compressedLengths[i] = source.compressedLengths[page.ordinal];
+                lengths[i] = source.lengths[page.ordinal];
+                checksums[i] = (int)crc.getValue();
+                continue;
+            }
+            byte[] x = (byte[])pages.get(i);
+            deflater.reset();
+            deflater.setInput(x);
+            deflater.finish();
+            while(!deflater.finished()) {
+                int r = deflater.deflate(scratch);
+                output.write(scratch, 0, r);
+                crc.update(scratch, 0, r);
+                compressedLengths[i] += r;
+            }
+            lengths[i] = x.length;
+            checksums[i] = (int)crc.getValue();
+        }
+        deflater.end();
+        int offset = 0;
+        for(int i = 0; i < pages.size(); i++) {
+            output.writeInt(offset);
+            output.writeInt(compressedLengths[i]);
+            output.writeInt(lengths[i]);
+            output.writeInt(checksums[i]);
+            offset += compressedLengths[i];
+        }
+        output.writeInt(pages.size());
+        output.close();
+    }
+
+    /**
+     * Reads table written by <code>write</code>. The compressed data is
+     * checked against the index, but pages stay compressed until loaded.
+     */
+    public static SRPageTable read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] scratch = new byte[65536];
+        int r;
+        while((r = in.read(scratch)) >= 0)
+            buf.write(scratch, 0, r);
+        byte[] data = buf.toByteArray();
+
+        if(data.length < 4)
+            throw new IOException("Savestate page table truncated");
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(data, data.length - 4, 4));
+        int count = index.readInt();
+        if(count < 0 || (long)count * INDEX_ENTRY_SIZE > data.length - 4)
+            throw new IOException("Savestate page table corrupt");
+        int indexStart = data.length - 4 - INDEX_ENTRY_SIZE * count;
+        index = new DataInputStream(new ByteArrayInputStream(data, indexStart, INDEX_ENTRY_SIZE * count));
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        int[] compressedLengths = new int[count];
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < count; i++) {
+            offsets[i] = index.readInt();
+            compressedLengths[i] = index.readInt();
+            lengths[i] = index.readInt();
+            int checksum = index.readInt();
+            if(offsets[i] < 0 || compressedLengths[i] < 0 || lengths[i] < 0 ||
+                (long)offsets[i] + compressedLengths[i] > indexStart)
+                throw new IOException("Savestate page table entry #" + i + " corrupt");
+            crc.reset();
+            crc.update(data, offsets[i], compressedLengths[i]);
+            if((int)crc.getValue() != checksum)
+                throw new IOException("Savestate page #" + i + " is corrupt");
+        }
+        return new SRPageTable(data, offsets, compressedLengths, lengths);
+    }
+
+    byte[] loadPage(int ordinal) throws IOException
+    {
+        if(ordinal < 0 || ordinal >= offsets.length)
+            throw new IOException("Savestate refers to page #" + ordinal + " missing from its page table");
+        byte[] x = new byte[lengths[ordinal]];
+        if(x.length == 0)
+            return x;
+        //Not all pages may ever get loaded, so there is no point to end a shared inflater at.
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, offsets[ordinal], compressedLengths[ordinal]);
+        try {
+            int filled = 0;
+            while(!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+                //Past the end of page only the end of stream may remain.
+                if(filled < x.length)
+                    filled += inflater.inflate(x, filled, x.length - filled);
+                else if(inflater.inflate(new byte[1]) > 0)
+                    break;
+            }
+            if(filled < x.length || !inflater.finished())
+                throw new IOException("Savestate page #" + ordinal + " is corrupt");
+        } catch(DataFormatException e) {
+            throw new IOException("Savestate page #" + ordinal + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return x;
+    }
+
+    Page getPage(int ordinal) throws IOException
+    {
+        if(ordinal < 0 || ordinal >= offsets.length)
+            throw new IOException("Savestate refers to page #" + ordinal + " missing from its page table");
+        return new Page(this, ordinal);
+    }
+
+    /**
+     * Page of the table that hasn't been read yet.
+     */
+    public static final class Page
+    {
+        private final SRPageTable table;
+        private final int ordinal;
+
+        private Page(SRPageTable table, int ordinal)
+        {
+            this.table = table;
+            this.ordinal = ordinal;
+        }
+
+        public int getLength()
+        {
+            return table.lengths[ordinal];
+        }
+
+        byte[] read() throws IOException
+        {
+            return table.loadPage(ordinal);
+        }
+
+        /**
+         * Reads the page. Fails with IllegalStateException if it is corrupt.
+         */
+        public byte[] load()
+        {
+            try {
+                return read();
+            } catch(IOException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.jpc.TestCheck;
+
+public class SRPageTableTest
+{
+    private static final TestCheck test = new TestCheck("Page table");
+
+    private static byte[] page(Random random, int size)
+    {
+        byte[] x = new byte[size];
+        for(int i = 0; i < size; i += 16)
+            x[i] = (byte)random.nextInt();
+        return x;
+    }
+
+    private static byte[] write(SRPageTable table) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        table.write(out, Deflater.DEFAULT_COMPRESSION);
+        return out.toByteArray();
+    }
+
+    private static void checkRejected(final byte[] data, final int ordinal, String what) throws Exception
+    {
+        test.checkRejected(new TestCheck.Attempt() {
+            public void run() throws IOException
+            {
+                SRPageTable.read(new ByteArrayInputStream(data)).loadPage(ordinal);
+            }
+        }, what);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(2);
+        byte[][] pages = new byte[][]{page(random, 4096), new byte[0], page(random, 4096), page(random, 65536)};
+
+        SRPageTable table = new SRPageTable(true);
+        for(int i = 0; i < pages.length; i++)
+            test.check(table.addPage(pages[i]) == i, "ordinal of page #" + i);
+        test.check(table.getPageCount() == pages.length, "page count before write");
+        byte[] original = pages[0].clone();
+        pages[0][0] ^= 1;
+        byte[] data = write(table);
+        pages[0] = original;
+        SRPageTable loaded = SRPageTable.read(new ByteArrayInputStream(data));
+        test.check(loaded.getPageCount() == pages.length, "page count after read");
+        for(int i = 0; i < pages.length; i++)
+            test.check(Arrays.equals(loaded.loadPage(i), pages[i]), "page #" + i);
+        test.check(Arrays.equals(loaded.getPage(3).load(), pages[3]), "deferred page");
+        test.check(SRPageTable.read(new ByteArrayInputStream(write(new SRPageTable(false)))).getPageCount() == 0,
+            "empty table");
+
+        //Without copying, the table writes the page as it is at write time.
+        SRPageTable shared = new SRPageTable(false);
+        byte[] modified = pages[0].clone();
+        shared.addPage(modified);
+        modified[0] ^= 1;
+        test.check(Arrays.equals(SRPageTable.read(new ByteArrayInputStream(write(shared))).loadPage(0), modified),
+            "page shared with table");
+
+        //Pages dumped through the stream land in the table.
+        Object[] owners = new Object[]{new Object(), new Object(), new Object()};
+        byte[][] dumped = new byte[][]{pages[0], null, pages[3]};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SRDumper dumper = new SRDumper(out);
+        SRPageTable streamTable = new SRPageTable(true);
+        dumper.usePageTable(streamTable);
+        for(int i = 0; i < owners.length; i++) {
+            dumper.dumpInt(i);
+            dumper.dumpPage(owners[i], 1, dumped[i]);
+        }
+        dumper.flush();
+        byte[] stream = out.toByteArray();
+        test.check(stream.length < 4096, "page written to stream");
+        test.check(streamTable.getPageCount() == 2, "pages in table " + streamTable.getPageCount());
+        test.check(dumper.getPages().lookupPage(owners[2], 1) == 2, "table pages tracked");
+        SRPageTable streamLoaded = SRPageTable.read(new ByteArrayInputStream(write(streamTable)));
+
+        SRLoader loader = new SRLoader(new ByteArrayInputStream(stream));
+        loader.setPageTable(streamLoaded);
+        test.check(loader.loadInt() == 0, "stream out of sync");
+        test.check(loader.nextIsTablePage(), "table page not seen");
+        SRPageTable.Page deferred = loader.loadTablePage(owners[0], 1);
+        test.check(loader.loadInt() == 1, "stream out of sync");
+        test.check(!loader.nextIsTablePage() && loader.loadPage(owners[1], 1) == null, "missing page");
+        test.check(loader.loadInt() == 2, "stream out of sync");
+        test.check(Arrays.equals(loader.loadPage(owners[2], 1), pages[3]), "page loaded through stream");
+        test.check(Arrays.equals(deferred.load(), pages[0]), "page loaded later");
+        test.check(loader.getPages().lookupPage(owners[2], 1) == 2, "loaded table pages tracked");
+
+        List<byte[]> scanned = SRLoader.scanPages(new ByteArrayInputStream(stream), null, streamLoaded);
+        test.check(scanned.size() == 3, "scanned page count " + scanned.size());
+        for(int i = 0; i < dumped.length; i++)
+            test.check(Arrays.equals(scanned.get(i), dumped[i]), "scanned page #" + i);
+        try {
+            SRLoader.scanPages(new ByteArrayInputStream(stream), null);
+            test.fail("table page scanned without table");
+        } catch(IOException e) {
+        }
+
+        //Unread pages are passed on compressed to another table, and read when dumped into the stream.
+        for(boolean paged : new boolean[]{true, false}) {
+            out = new ByteArrayOutputStream();
+            dumper = new SRDumper(out);
+            SRPageTable copyTable = new SRPageTable(false);
+            if(paged)
+                dumper.usePageTable(copyTable);
+            dumper.dumpTablePage(owners[0], 1, deferred);
+            dumper.flush();
+            loader = new SRLoader(new ByteArrayInputStream(out.toByteArray()));
+            if(paged) {
+                test.check(copyTable.getPageCount() == 1 && loader.nextIsTablePage(), "unread page not passed on");
+                loader.setPageTable(SRPageTable.read(new ByteArrayInputStream(write(copyTable))));
+            } else
+                test.check(!loader.nextIsTablePage(), "unread page not written into stream");
+            test.check(Arrays.equals(loader.loadPage(owners[0], 1), pages[0]), "unread page dumped again");
+        }
+
+        checkRejected(new byte[3], 0, "truncated table");
+        checkRejected(Arrays.copyOf(data, data.length - 1), 0, "table without count");
+        checkRejected(Arrays.copyOfRange(data, 1, data.length), 0, "table missing start");
+        byte[] hugeCount = data.clone();
+        hugeCount[data.length - 4] = 0x7F;
+        checkRejected(hugeCount, 0, "page count past table");
+        byte[] badOffset = data.clone();
+        badOffset[data.length - 4 - 16 * pages.length] = 0x7F;
+        checkRejected(badOffset, 0, "page past end of table");
+        byte[] badLength = data.clone();
+        badLength[data.length - 4 - 16 * pages.length + 10] ^= 0x01;
+        checkRejected(badLength, 0, "wrong page length");
+        byte[] corrupt = data.clone();
+        corrupt[5] ^= 0x55;
+        try {
+            SRPageTable.read(new ByteArrayInputStream(corrupt));
+            test.fail("corrupt page accepted before loading it");
+        } catch(IOException e) {
+        }
+        checkRejected(data, pages.length, "page past end of index");
+        test.passed();
+    }
+}
@@ -38,17 +38,11 @@ public class StatusDumper
     PrintStream underlyingPrintStream;
     static final Boolean TRUE;
     static final Boolean FALSE;
-    java.util.HashMap<String, Boolean> seenObjects;
-    java.util.HashMap<Integer, ObjectListEntry> chainingLists;
+    private ObjectNumberMap objectIndices;
+    private java.util.List<String> objectNames;
+    private java.util.BitSet seenObjects;
     int objectsCount;
 
-    static class ObjectListEntry
-    {
-        public Object object;
-        public String num;
-        public ObjectListEntry next;
-    }
-
     static
     {
         TRUE = new Boolean(true);
@@ -60,8 +54,9 @@ public class StatusDumper
         extraIndent = -1;
         nextObjectNumber = new java.util.HashMap<String, Integer>();
         underlyingPrintStream = ps;
-        seenObjects = new java.util.HashMap<String, Boolean>();
-        chainingLists = new java.util.HashMap<Integer, ObjectListEntry>();
+        objectIndices = new ObjectNumberMap();
+        objectNames = new java.util.ArrayList<String>();
+        seenObjects = new java.util.BitSet();
         objectsCount = 0;
     }
 
@@ -155,48 +150,11 @@ public class StatusDumper
         }
     }
 
-    private void addObject(Object O, String n)
-    {
-        Integer hcode = new Integer(O.hashCode());
-        ObjectListEntry e = new ObjectListEntry();
-        e.object = O;
-        e.num = n;
-        e.next = null;
-        if(!chainingLists.containsKey(hcode)) {
-            chainingLists.put(hcode, e);
-        } else {
-            e.next = chainingLists.get(hcode);
-            chainingLists.put(hcode, e);
-        }
-    }
-
-    private String lookupObject(Object O)
-    {
-        Integer hcode = new Integer(O.hashCode());
-        if(!chainingLists.containsKey(hcode))
-            return null;
-        ObjectListEntry e = chainingLists.get(hcode);
-        while(e != null) {
-            if(e.object == O)
-                return e.num;
-            e = e.next;
-        }
-        return null;
-    }
-
-    public String objectNumber(Object O)
+    private int objectIndex(Object O)
     {
-        String assignedNum;
-        boolean isNew = false;
-
-        if(O == null)
-            return "NULL";
-
-        assignedNum = lookupObject(O);
-        if(assignedNum == null)
-            isNew = true;
-
-        if(isNew) {
+        int index = objectIndices.get(O);
+        if(index == -1) {
+            String assignedNum;
             String cName = O.getClass().getName();
             if(!nextObjectNumber.containsKey(cName)) {
                 nextObjectNumber.put(cName, new Integer(1));
@@ -206,21 +164,29 @@ public class StatusDumper
                 nextObjectNumber.put(cName, new Integer(seqno + 1));
                 assignedNum = cName + "-" + (seqno + 1);
             }
-            addObject(O, assignedNum);
-            seenObjects.put(assignedNum, FALSE);
+            index = objectNames.size();
+            objectNames.add(assignedNum);
+            objectIndices.put(O, index);
         }
-        return assignedNum;
+        return index;
+    }
+
+    public String objectNumber(Object O)
+    {
+        if(O == null)
+            return "NULL";
+        return objectNames.get(objectIndex(O));
     }
 
     public boolean dumped(Object O)
     {
-        boolean seenBefore = false;
-        String obj = objectNumber(O);
+        if(O == null)
+            return true;    //Nothing to dump.
+        int index = objectIndex(O);
 
-        seenBefore = seenObjects.get(obj).booleanValue();
-        if(!seenBefore) {
+        if(!seenObjects.get(index)) {
             extraIndent++;
-            seenObjects.put(obj, TRUE);
+            seenObjects.set(index);
             objectsCount++;
             return false;
         } else
@@ -44,6 +44,8 @@ public class Timer implements Comparable<Timer>, SRDumpable
     private TimerResponsive callback;
     private boolean enabled;
     private Clock myOwner;
+    int queueIndex = -1;        //Slot in TimerPriorityQueue heap, -1 if not queued.
+    long queueSequence;         //Insertion order in TimerPriorityQueue, for breaking ties.
 
     /**
      * Constructs a <code>Timer</code> which fires events on the specified
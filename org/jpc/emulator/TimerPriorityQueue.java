@@ -30,10 +30,12 @@
 package org.jpc.emulator;
 
 import java.io.*;
+import java.util.*;
 
 //The reason this exists is that standard Java PriorityQueue breaks ties in arbitiary way. This
 //application requires that ties are broken deterministically. In this case, the policy is first-
-//in-first-out.
+//in-first-out. Timers remember their insertion sequence number and heap slot, so that removal
+//doesn't need to search.
 
 
 /**
@@ -42,21 +44,16 @@ import java.io.*;
  */
 public class TimerPriorityQueue implements SRDumpable
 {
-    private Node first, last;
-
-    public static class Node
-    {
-        public Timer timer;
-        public Node next;
-    }
+    private Timer[] heap;
+    private int size;
+    private long nextSequence;
 
     public void dumpSRPartial(SRDumper output) throws IOException
     {
-        Node current = first;
-        while(current != null) {
+        //Dump in firing order so savestates don't depend on heap layout.
+        for(Timer timer : sortedTimers()) {
             output.dumpBoolean(true);
-            output.dumpObject(current.timer);
-            current = current.next;
+            output.dumpObject(timer);
         }
         output.dumpBoolean(false);
     }
@@ -64,29 +61,27 @@ public class TimerPriorityQueue implements SRDumpable
     public TimerPriorityQueue(SRLoader input) throws IOException
     {
         input.objectCreated(this);
+        heap = new Timer[16];
         boolean present = input.loadBoolean();
-        first = null;
         while(present) {
-            if(last != null)
-                last = last.next = new Node();
-            else
-                last = first = new Node();
-            last.timer = (Timer)input.loadObject();
+            //Timers come in firing order, so appending keeps the heap property.
+            Timer timer = (Timer)input.loadObject();
+            timer.queueSequence = nextSequence++;
+            append(timer);
             present = input.loadBoolean();
         }
     }
 
     public TimerPriorityQueue()
     {
+        heap = new Timer[16];
     }
 
     public void dumpStatusPartial(StatusDumper output)
     {
         //super.dumpStatusPartial(output); <no superclass 20090704>
-        Node current = first;
-        while(current != null) {
-            output.println("\ttimernode <object #" + output.objectNumber(current.timer) + ">"); if(current.timer != null) current.timer.dumpStatus(output);
-            current = current.next;
+        for(Timer timer : sortedTimers()) {
+            output.println("\ttimernode <object #" + output.objectNumber(timer) + ">"); if(timer != null) timer.dumpStatus(output);
         }
     }
 
@@ -102,59 +97,106 @@ public class TimerPriorityQueue implements SRDumpable
 
     public Timer peek()
     {
-        if(first != null)
-            return first.timer;
+        if(size > 0)
+            return heap[0];
         else
             return null;
     }
 
     public void remove(Timer t)
     {
-        Node previousNode = null;
-        Node currentNode = first;
-
-        while(currentNode != null) {
-            if(currentNode.timer == t) {
-                if(previousNode == null)
-                    first = currentNode.next;
-                else
-                    previousNode.next = currentNode.next;
-                if(currentNode == last)
-                    last = previousNode;
-                return;
-            }
-            previousNode = currentNode;
-            currentNode = currentNode.next;
+        int index = t.queueIndex;
+        if(index < 0 || index >= size || heap[index] != t)
+            return;
+
+        t.queueIndex = -1;
+        size--;
+        if(index == size) {
+            heap[size] = null;
+            return;
         }
+        Timer moved = heap[size];
+        heap[size] = null;
+        heap[index] = moved;
+        moved.queueIndex = index;
+        if(!siftUp(index))
+            siftDown(index);
     }
 
     public void offer(Timer t)
     {
-        Node newNode = new Node();
-        newNode.timer = t;
-        Node previousNode = null;
-        Node currentNode = first;
-
-        while(currentNode != null) {
-            if(t.compareTo(currentNode.timer) < 0) {
-                //This is the first node that's later than node to be added. Insert
-                //between previousNode and currentNode.
-                newNode.next = currentNode;
-                if(previousNode == null)
-                    first = newNode;
-                else
-                    previousNode.next = newNode;
-                return;
+        t.queueSequence = nextSequence++;
+        append(t);
+        siftUp(size - 1);
+    }
+
+    private void append(Timer t)
+    {
+        if(size == heap.length) {
+            Timer[] newHeap = new Timer[2 * heap.length];
+            System.arraycopy(heap, 0, newHeap, 0, size);
+            heap = newHeap;
+        }
+        heap[size] = t;
+        t.queueIndex = size;
+        size++;
+    }
+
+    private static boolean before(Timer a, Timer b)
+    {
+        int order = a.compareTo(b);
+        if(order != 0)
+            return order < 0;
+        return a.queueSequence < b.queueSequence;
+    }
+
+    private boolean siftUp(int index)
+    {
+        Timer t = heap[index];
+        int start = index;
+        while(index > 0) {
+            int parent = (index - 1) >> 1;
+            if(!before(t, heap[parent]))
+                break;
+            heap[index] = heap[parent];
+            heap[index].queueIndex = index;
+            index = parent;
+        }
+        heap[index] = t;
+        t.queueIndex = index;
+        return index != start;
+    }
+
+    private void siftDown(int index)
+    {
+        Timer t = heap[index];
+        while(true) {
+            int child = 2 * index + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && before(heap[child + 1], heap[child]))
+                child++;
+            if(!before(heap[child], t))
+                break;
+            heap[index] = heap[child];
+            heap[index].queueIndex = index;
+            index = child;
+        }
+        heap[index] = t;
+        t.queueIndex = index;
+    }
+
+    private Timer[] sortedTimers()
+    {
+        Timer[] timers = new Timer[size];
+        System.arraycopy(heap, 0, timers, 0, size);
+        Arrays.sort(timers, new Comparator<Timer>() {
+            public int compare(Timer a, Timer b)
+            {
+                return before(a, b) ? -1 : (before(b, a) ? 1 : 0);
             }
-            previousNode = currentNode;
-            currentNode = currentNode.next;
-         }
-        //All existing timers should go first.
-        if(previousNode != null)
-            previousNode.next = newNode;
-        else
-            first = newNode;
-        last = newNode;
+        });
+        return timers;
     }
 
     public String toString()
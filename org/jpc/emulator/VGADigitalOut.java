@@ -48,6 +48,11 @@ public class VGADigitalOut implements SRDumpable
         chan.addFrameVideo(timeNow, (short)width, (short)height, buffer);
     }
 
+    public boolean isConnected()
+    {
+        return chan != null && chan.isConnected();
+    }
+
     public void setSink(Output out, String name)
     {
         chan = new OutputChannelVideo(out, name);
@@ -48,6 +48,8 @@ public abstract class AddressSpace extends AbstractMemory
     public static final int INDEX_SHIFT = 12;
     public static final int INDEX_SIZE = 1 << (32 - INDEX_SHIFT);
 
+    private int mappingGeneration;
+
     public void dumpStatusPartial(StatusDumper output)
     {
         super.dumpStatusPartial(output);
@@ -273,6 +275,24 @@ public abstract class AddressSpace extends AbstractMemory
      */
     protected abstract void replaceBlocks(Memory original, Memory replacement);
 
+    /**
+     * Returns a counter that changes whenever the mapping of addresses to
+     * blocks in this address space may have changed.
+     * @return current mapping generation.
+     */
+    public final int getMappingGeneration()
+    {
+        return mappingGeneration;
+    }
+
+    /**
+     * Marks the mapping of addresses to blocks as changed.
+     */
+    protected final void mappingsChanged()
+    {
+        mappingGeneration++;
+    }
+
     public abstract int executeReal(Processor cpu, int address);
     public abstract int executeProtected(Processor cpu, int address);
     public abstract int executeVirtual8086(Processor cpu, int address);
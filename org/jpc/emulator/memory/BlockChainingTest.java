@@ -0,0 +1,372 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory;
+
+import java.util.*;
+
+import org.jpc.TestCheck;
+import org.jpc.emulator.Clock;
+import org.jpc.emulator.motherboard.InterruptController;
+import org.jpc.emulator.memory.codeblock.*;
+import org.jpc.emulator.memory.codeblock.optimised.*;
+import org.jpc.emulator.processor.*;
+
+//Runs random self-modifying code through the code block memory, which chains blocks, and on a second machine one
+//freshly decoded block per dispatch. Both have to stay in step.
+public class BlockChainingTest
+{
+    private static final TestCheck test = new TestCheck("Block chaining");
+    private static final int RAM_SIZE = 4 << 20;
+    private static final int CODE_SEGMENT = 0x1000;
+    private static final int CODE_START = 0xE00;  //Code crosses into the next page.
+    private static final int DATA = 0x100000;
+    private static final int VECTOR = 0x20;
+    private static final int BLOCKS = 48;
+    private static final int DISPATCHES = 20000;
+    private static final long FLAT_CODE = 0x00CF9A000000FFFFL;
+    private static final long FLAT_DATA = 0x00CF92000000FFFFL;
+
+    private static class FixedInterrupt extends InterruptController
+    {
+        public boolean initialised()
+        {
+            return true;
+        }
+
+        public int cpuGetInterrupt()
+        {
+            return VECTOR;
+        }
+    }
+
+    private static class MemorySource implements ByteSource
+    {
+        private AddressSpace memory;
+        private int start;
+        private int position;
+
+        MemorySource(AddressSpace _memory, int _start)
+        {
+            memory = _memory;
+            start = position = _start;
+        }
+
+        public byte getByte()
+        {
+            return memory.getByte(position++);
+        }
+
+        public void skip(int count)
+        {
+            position += count;
+        }
+
+        public void reset()
+        {
+            position = start;
+        }
+    }
+
+    private static class Machine
+    {
+        boolean protectedMode;
+        boolean chained;
+        PhysicalAddressSpace physical;
+        LinearAddressSpace linear;
+        Processor cpu;
+        OptimisedCompiler interpreter = new OptimisedCompiler();
+
+        Machine(boolean _protectedMode, boolean _chained)
+        {
+            protectedMode = _protectedMode;
+            chained = _chained;
+            physical = new PhysicalAddressSpace(chained ? new CodeBlockManager() : null, RAM_SIZE);
+            physical.setGateA20State(true);
+            linear = new LinearAddressSpace();
+            linear.acceptComponent(physical);
+            physical.acceptComponent(linear);
+            cpu = new Processor(new Clock(), 1);
+            cpu.acceptComponent(linear);
+            cpu.acceptComponent(physical);
+            cpu.acceptComponent(new FixedInterrupt());
+            cpu.reset();
+            if(protectedMode) {
+                cpu.cs = SegmentFactory.createProtectedModeSegment(linear, 0x08, FLAT_CODE);
+                cpu.ds = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+                cpu.ss = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+                cpu.eip = (CODE_SEGMENT << 4) + CODE_START;
+            } else {
+                cpu.cs = SegmentFactory.createRealModeSegment(physical, CODE_SEGMENT);
+                cpu.ds = SegmentFactory.createRealModeSegment(physical, DATA >>> 4);
+                cpu.ss = SegmentFactory.createRealModeSegment(physical, (DATA >>> 4) + 0x1000);
+                cpu.eip = CODE_START;
+            }
+            cpu.esp = 0x8000;
+        }
+
+        //One round of the dispatch loop in PC.
+        void dispatch()
+        {
+            try {
+                int count;
+                if(chained && protectedMode)
+                    count = linear.executeProtected(cpu, cpu.getInstructionPointer());
+                else if(chained)
+                    count = physical.executeReal(cpu, cpu.getInstructionPointer());
+                else if(protectedMode)
+                    count = interpreter.getProtectedModeCodeBlock(new ProtectedModeUDecoder().decodeProtected(
+                        new MemorySource(linear, cpu.getInstructionPointer()), true,
+                        CodeBlockManager.BLOCK_LIMIT)).execute(cpu);
+                else
+                    count = interpreter.getRealModeCodeBlock(new RealModeUDecoder().decodeReal(
+                        new MemorySource(physical, cpu.getInstructionPointer()),
+                        CodeBlockManager.BLOCK_LIMIT)).execute(cpu);
+                cpu.instructionsExecuted += count;
+                if(!cpu.eflagsLastAborted) {
+                    if(protectedMode)
+                        cpu.processProtectedModeInterrupts(1);
+                    else
+                        cpu.processRealModeInterrupts(1);
+                }
+            } catch(ProcessorException e) {
+                if(protectedMode)
+                    cpu.handleProtectedModeException(e);
+                else
+                    cpu.handleRealModeException(e);
+            }
+        }
+
+        String state()
+        {
+            return "executed=" + cpu.instructionsExecuted + " eax=" + Integer.toHexString(cpu.eax) + " ecx=" +
+                Integer.toHexString(cpu.ecx) + " edx=" + Integer.toHexString(cpu.edx) + " ebx=" +
+                Integer.toHexString(cpu.ebx) + " esp=" + Integer.toHexString(cpu.esp) + " ebp=" +
+                Integer.toHexString(cpu.ebp) + " esi=" + Integer.toHexString(cpu.esi) + " edi=" +
+                Integer.toHexString(cpu.edi) + " cs=" + Integer.toHexString(cpu.cs.getSelector()) + " eip=" +
+                Integer.toHexString(cpu.eip) + " eflags=" + Integer.toHexString(cpu.getEFlags()) + " if=" +
+                cpu.eflagsInterruptEnable + "/" + cpu.eflagsInterruptEnableSoon;
+        }
+    }
+
+    //Blocks of straight line code, each starting with a MOV AL that other blocks patch the immediate of, and ending
+    //in a jump to the start of some block. The code segment starts with an interrupt handler jumping to block 0.
+    private static class Generator
+    {
+        private Random random;
+        private boolean protectedMode;
+        private byte[] code = new byte[8192];
+        private int length;
+        private int[] starts = new int[BLOCKS];
+        private List<Integer> patches = new ArrayList<Integer>();   //Positions of patch addresses.
+        private List<Integer> jumps = new ArrayList<Integer>();     //Positions of jump offsets.
+        private List<Integer> targets = new ArrayList<Integer>();   //Block each jump goes to.
+
+        Generator(Random _random, boolean _protectedMode)
+        {
+            random = _random;
+            protectedMode = _protectedMode;
+        }
+
+        private void emit(int value)
+        {
+            code[length++] = (byte)value;
+        }
+
+        private void emitImmediate(int bytes)
+        {
+            for(int i = 0; i < bytes; i++)
+                emit(random.nextInt(256));
+        }
+
+        private void emitWord(int value)
+        {
+            emit(value);
+            emit(value >>> 8);
+            if(protectedMode) {
+                emit(value >>> 16);
+                emit(value >>> 24);
+            }
+        }
+
+        private void jump(int opcode, int block)
+        {
+            if(opcode > 0xFF)
+                emit(opcode >>> 8);
+            emit(opcode);
+            jumps.add(length);
+            targets.add(block);
+            emitWord(0);
+        }
+
+        //Stack writes stay away from the code, so SP is not a destination.
+        private int register()
+        {
+            int reg = random.nextInt(7);
+            return reg < 4 ? reg : reg + 1;
+        }
+
+        private void instruction()
+        {
+            int immediate = protectedMode ? 4 : 2;
+            switch(random.nextInt(9)) {
+            case 0:
+                emit((random.nextInt(8) << 3) | 2 | random.nextInt(2));
+                emit(0xC0 | (register() << 3) | random.nextInt(8));
+                break;
+            case 1:
+                emit((random.nextInt(8) << 3) | 5);
+                emitImmediate(immediate);
+                break;
+            case 2:
+                emit(0xB8 + register());
+                emitImmediate(immediate);
+                break;
+            case 3:
+                emit(0x40 + random.nextInt(2) * 8 + register());
+                break;
+            case 4:
+                //Loads and stores through DS, away from the code.
+                emit(0x88 + random.nextInt(4));
+                if(protectedMode) {
+                    emit(0x05 | (register() << 3));
+                    emitWord(DATA + random.nextInt(0x10000));
+                } else {
+                    emit(0x06 | (register() << 3));
+                    emitWord(random.nextInt(0xFF00));
+                }
+                break;
+            case 5:
+                emit(new int[]{0xF5, 0xF8, 0xF9, 0xFA, 0xFB}[random.nextInt(5)]);
+                break;
+            default:
+                //MOV byte [CS:address], imm8 to the MOV AL of some block.
+                if(!protectedMode)
+                    emit(0x2E);
+                emit(0xC6);
+                emit(protectedMode ? 0x05 : 0x06);
+                patches.add(length);
+                emitWord(0);
+                emitImmediate(1);
+            }
+        }
+
+        byte[] generate()
+        {
+            //Handler: mov sp, 0x8000 then jump to block 0.
+            emit(0xBC);
+            emitWord(0x8000);
+            jump(0xE9, 0);
+            length = CODE_START;
+            for(int block = 0; block < BLOCKS; block++) {
+                starts[block] = length;
+                emit(0xB0);
+                emitImmediate(1);
+                int count = random.nextInt(6);
+                for(int i = 0; i < count; i++)
+                    instruction();
+                //The last block can't fall through.
+                if(block + 1 < BLOCKS && random.nextBoolean())
+                    jump(0x0F80 + random.nextInt(16), random.nextInt(BLOCKS));
+                else
+                    jump(0xE9, random.nextInt(BLOCKS));
+            }
+
+            int base = protectedMode ? CODE_SEGMENT << 4 : 0;
+            for(int i = 0; i < jumps.size(); i++) {
+                int end = jumps.get(i) + (protectedMode ? 4 : 2);
+                length = jumps.get(i);
+                emitWord(starts[targets.get(i)] - end);
+            }
+            for(int position : patches) {
+                length = position;
+                emitWord(base + starts[random.nextInt(BLOCKS)] + 1);
+            }
+            return code;
+        }
+    }
+
+    private static void compareMemory(Machine a, Machine b, String what) throws Exception
+    {
+        for(int i = 0; i < RAM_SIZE; i += 4)
+            if(a.physical.getDoubleWord(i) != b.physical.getDoubleWord(i))
+                test.fail(what + ": memory at " + Integer.toHexString(i));
+    }
+
+    private static int testMode(Random random, boolean protectedMode) throws Exception
+    {
+        String mode = protectedMode ? "protected mode" : "real mode";
+        Machine chained = new Machine(protectedMode, true);
+        Machine reference = new Machine(protectedMode, false);
+        byte[] code = new Generator(random, protectedMode).generate();
+        int handler = CODE_SEGMENT << 4;
+        for(int i = 0; i < code.length; i++) {
+            chained.physical.setByte(handler + i, code[i]);
+            reference.physical.setByte(handler + i, code[i]);
+        }
+        for(int i = 0; i < 256; i++) {
+            chained.physical.setDoubleWord(4 * i, CODE_SEGMENT << 16);
+            reference.physical.setDoubleWord(4 * i, CODE_SEGMENT << 16);
+        }
+
+        int blocks = 0;
+        for(int n = 0; n < DISPATCHES; n++) {
+            //Protected mode has no interrupt table.
+            if(!protectedMode && random.nextInt(50) == 0) {
+                chained.cpu.raiseInterrupt();
+                reference.cpu.raiseInterrupt();
+            }
+            chained.dispatch();
+            do {
+                reference.dispatch();
+                blocks++;
+            } while(reference.cpu.instructionsExecuted < chained.cpu.instructionsExecuted);
+            String expected = reference.state();
+            String got = chained.state();
+            if(!expected.equals(got))
+                test.fail(mode + " dispatch " + n + ": expected " + expected + ", got " + got);
+            if(n % 1000 == 0)
+                compareMemory(reference, chained, mode + " dispatch " + n);
+        }
+        compareMemory(reference, chained, mode);
+        return blocks;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(2);
+        int blocks = 0;
+        for(int i = 0; i < 4; i++) {
+            blocks += testMode(random, false);
+            blocks += testMode(random, true);
+        }
+        test.check(blocks > 8 * DISPATCHES * 2, "only " + blocks + " blocks for " + 8 * DISPATCHES + " dispatches");
+        test.passed();
+    }
+}
@@ -0,0 +1,293 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory;
+
+import org.jpc.emulator.memory.codeblock.*;
+import org.jpc.emulator.processor.Processor;
+
+/**
+ * Code blocks decoded in one mode in a page of memory, indexed by start offset.
+ * <p>
+ * Pages with few blocks keep them in a short list sorted by offset. Once a page
+ * gets many blocks, the index switches to one entry per byte, with the bytes
+ * inside a block holding a placeholder. Both forms reach the same blocks on a
+ * write, so code invalidation does not depend on which form a page uses.
+ */
+final class CodeBlockIndex
+{
+    private static final BlankCodeBlock PLACEHOLDER = new BlankCodeBlock();
+    private static final int DENSE_THRESHOLD = 32;
+
+    private final int size;
+    private int[] starts;
+    private CodeBlock[] blocks;
+    private int count;
+    private CodeBlock[] dense;
+
+    CodeBlockIndex(int size)
+    {
+        this.size = size;
+        starts = new int[4];
+        blocks = new CodeBlock[4];
+    }
+
+    /**
+     * Returns the block starting at <code>offset</code>, or <code>null</code>
+     * if there is none.
+     */
+    CodeBlock get(int offset)
+    {
+        if(dense != null) {
+            CodeBlock b = dense[offset];
+            return (b == PLACEHOLDER) ? null : b;
+        }
+        int i = find(offset);
+        return (i >= 0) ? blocks[i] : null;
+    }
+
+    /**
+     * Swaps the block at <code>offset</code> for one covering the same bytes.
+     */
+    void replace(int offset, CodeBlock block)
+    {
+        if(dense != null) {
+            dense[offset] = block;
+            return;
+        }
+        int i = find(offset);
+        if(i >= 0)
+            blocks[i] = block;
+        else
+            insert(-i - 1, offset, block);
+    }
+
+    void set(int offset, CodeBlock block)
+    {
+        remove(offset);
+        if(block == null)
+            return;
+
+        if(dense == null && count == DENSE_THRESHOLD)
+            makeDense();
+
+        if(dense != null) {
+            dense[offset] = block;
+            int len = block.getX86Length();
+            for(int i = offset + 1; (i < offset + len) && (i < size); i++)
+                if(dense[i] == null)
+                    dense[i] = PLACEHOLDER;
+        } else
+            insert(-find(offset) - 1, offset, block);
+    }
+
+    /**
+     * Invalidates blocks reached by a write to <code>start</code> to
+     * <code>end</code> inclusive. These start in the range, or before it with
+     * code running without a gap up to the range.
+     */
+    void regionAltered(int start, int end)
+    {
+        if(dense != null) {
+            for(int i = end; i >= 0; i--) {
+                CodeBlock b = dense[i];
+                if(b == null) {
+                    if(i < start)
+                        break;
+                    else
+                        continue;
+                }
+
+                if(b == PLACEHOLDER)
+                    continue;
+
+                if(!b.handleMemoryRegionChange(start, end)) {
+                    remove(i);
+                    b.invalidate();
+                }
+            }
+            return;
+        }
+
+        int low = start;
+        for(boolean extended = true; extended; ) {
+            extended = false;
+            for(int i = 0; (i < count) && (starts[i] < low); i++)
+                if(starts[i] + Math.max(blocks[i].getX86Length(), 1) >= low) {
+                    low = starts[i];
+                    extended = true;
+                    break;
+                }
+        }
+
+        for(int i = count - 1; i >= 0; i--) {
+            if(starts[i] > end || starts[i] < low)
+                continue;
+
+            CodeBlock b = blocks[i];
+            if(!b.handleMemoryRegionChange(start, end)) {
+                delete(i);
+                b.invalidate();
+            }
+        }
+    }
+
+    private void remove(int offset)
+    {
+        if(dense == null) {
+            int i = find(offset);
+            if(i >= 0)
+                delete(i);
+            return;
+        }
+
+        CodeBlock b = dense[offset];
+        if((b == null) || (b == PLACEHOLDER))
+            return;
+
+        dense[offset] = null;
+        int len = b.getX86Length();
+        for(int i = offset + 1; (i < offset + len) && (i < size); i++)
+            if(dense[i] == PLACEHOLDER)
+                dense[i] = null;
+
+        //Put back the placeholders of blocks overlapping the removed one.
+        for(int i = Math.min(offset + len, size) - 1; i >= 0; i--) {
+            if(dense[i] == null) {
+                if(i < offset)
+                    break;
+                else
+                    continue;
+            }
+            if(dense[i] == PLACEHOLDER)
+                continue;
+
+            len = dense[i].getX86Length();
+            for(int j = i + 1; (j < i + len) && (j < size); j++)
+                if(dense[j] == null)
+                    dense[j] = PLACEHOLDER;
+        }
+    }
+
+    private int find(int offset)
+    {
+        int low = 0;
+        int high = count - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(starts[mid] < offset)
+                low = mid + 1;
+            else if(starts[mid] > offset)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private void insert(int i, int offset, CodeBlock block)
+    {
+        if(count == starts.length) {
+            int[] newStarts = new int[2 * count];
+            CodeBlock[] newBlocks = new CodeBlock[2 * count];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(blocks, 0, newBlocks, 0, count);
+            starts = newStarts;
+            blocks = newBlocks;
+        }
+        System.arraycopy(starts, i, starts, i + 1, count - i);
+        System.arraycopy(blocks, i, blocks, i + 1, count - i);
+        starts[i] = offset;
+        blocks[i] = block;
+        count++;
+    }
+
+    private void delete(int i)
+    {
+        count--;
+        System.arraycopy(starts, i + 1, starts, i, count - i);
+        System.arraycopy(blocks, i + 1, blocks, i, count - i);
+        blocks[count] = null;
+    }
+
+    private void makeDense()
+    {
+        dense = new CodeBlock[size];
+        for(int i = 0; i < count; i++)
+            dense[starts[i]] = blocks[i];
+        for(int i = 0; i < count; i++) {
+            int offset = starts[i];
+            int len = blocks[i].getX86Length();
+            for(int j = offset + 1; (j < offset + len) && (j < size); j++)
+                if(dense[j] == null)
+                    dense[j] = PLACEHOLDER;
+        }
+        starts = null;
+        blocks = null;
+        count = 0;
+    }
+
+    //This class does not need to be dumpable because codeblocks can't be saved.
+    private static class BlankCodeBlock implements CodeBlock
+    {
+        public int getX86Length()
+        {
+            return 0;
+        }
+
+        public int getX86Count()
+        {
+            return 0;
+        }
+
+        public int execute(Processor cpu)
+        {
+            throw new IllegalStateException("Placeholder block executed");
+        }
+
+        public void invalidate()
+        {
+        }
+
+        public boolean handleMemoryRegionChange(int startAddress, int endAddress)
+        {
+            return false;
+        }
+
+        public String getDisplayString()
+        {
+            return "\n\n<<Blank Block>>\n\n";
+        }
+
+        public String toString()
+        {
+            return " -- Blank --\n";
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory;
+
+import java.util.*;
+
+import org.jpc.TestCheck;
+import org.jpc.emulator.memory.codeblock.CodeBlock;
+import org.jpc.emulator.processor.Processor;
+
+//Compares CodeBlockIndex against the per-byte array with placeholders it replaced.
+public class CodeBlockIndexTest
+{
+    private static final TestCheck test = new TestCheck("Code block index");
+    private static final int SIZE = 512;
+
+    private static class Block implements CodeBlock
+    {
+        int id;
+        int length;
+        boolean survives;
+        boolean invalid;
+
+        Block(int _id, int _length, boolean _survives)
+        {
+            id = _id;
+            length = _length;
+            survives = _survives;
+        }
+
+        public int getX86Length()
+        {
+            return length;
+        }
+
+        public int getX86Count()
+        {
+            return 1;
+        }
+
+        public int execute(Processor cpu)
+        {
+            throw new IllegalStateException("Test block executed");
+        }
+
+        public String getDisplayString()
+        {
+            return "Test block #" + id;
+        }
+
+        public boolean handleMemoryRegionChange(int startAddress, int endAddress)
+        {
+            return survives;
+        }
+
+        public void invalidate()
+        {
+            invalid = true;
+        }
+    }
+
+    //The per-byte index LazyCodeBlockMemory used for every page.
+    private static class Reference
+    {
+        private static final Block PLACEHOLDER = new Block(-1, 0, false);
+        private CodeBlock[] buffer = new CodeBlock[SIZE];
+
+        CodeBlock get(int offset)
+        {
+            CodeBlock b = buffer[offset];
+            return (b == PLACEHOLDER) ? null : b;
+        }
+
+        void replace(int offset, CodeBlock block)
+        {
+            buffer[offset] = block;
+        }
+
+        void set(int offset, CodeBlock block)
+        {
+            remove(offset);
+            if(block == null)
+                return;
+
+            buffer[offset] = block;
+            int len = block.getX86Length();
+            for(int i = offset + 1; (i < offset + len) && (i < SIZE); i++)
+                if(buffer[i] == null)
+                    buffer[i] = PLACEHOLDER;
+        }
+
+        void regionAltered(int start, int end)
+        {
+            for(int i = end; i >= 0; i--) {
+                CodeBlock b = buffer[i];
+                if(b == null) {
+                    if(i < start)
+                        break;
+                    else
+                        continue;
+                }
+
+                if(b == PLACEHOLDER)
+                    continue;
+
+                if(!b.handleMemoryRegionChange(start, end)) {
+                    remove(i);
+                    b.invalidate();
+                }
+            }
+        }
+
+        private void remove(int offset)
+        {
+            CodeBlock b = buffer[offset];
+            if((b == null) || (b == PLACEHOLDER))
+                return;
+
+            buffer[offset] = null;
+            int len = b.getX86Length();
+            for(int i = offset + 1; (i < offset + len) && (i < SIZE); i++)
+                if(buffer[i] == PLACEHOLDER)
+                    buffer[i] = null;
+
+            for(int i = Math.min(offset + len, SIZE) - 1; i >= 0; i--) {
+                if(buffer[i] == null) {
+                    if(i < offset)
+                        break;
+                    else
+                        continue;
+                }
+                if(buffer[i] == PLACEHOLDER)
+                    continue;
+
+                len = buffer[i].getX86Length();
+                for(int j = i + 1; (j < i + len) && (j < SIZE); j++)
+                    if(buffer[j] == null)
+                        buffer[j] = PLACEHOLDER;
+            }
+        }
+    }
+
+    private static int id(CodeBlock b)
+    {
+        return (b == null) ? 0 : ((Block)b).id;
+    }
+
+    private static void compare(CodeBlockIndex index, Reference reference, List<Block[]> issued, String what)
+        throws Exception
+    {
+        for(int i = 0; i < SIZE; i++)
+            test.check(id(index.get(i)) == id(reference.get(i)), what + ": block at " + i);
+        for(Block[] pair : issued)
+            test.check(pair[0].invalid == pair[1].invalid, what + ": invalidation of block #" + pair[0].id);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(10);
+        for(int run = 0; run < 200; run++) {
+            CodeBlockIndex index = new CodeBlockIndex(SIZE);
+            Reference reference = new Reference();
+            List<Block[]> issued = new ArrayList<Block[]>();
+            //Some runs stay below the dense threshold, the others cross it.
+            int spread = (run % 2 == 0) ? SIZE : 64;
+            int maxLength = 1 + random.nextInt(24);
+            for(int step = 0; step < 300; step++) {
+                int op = random.nextInt(10);
+                String what = "run " + run + " step " + step;
+                if(op < 6) {
+                    int offset = random.nextInt(spread);
+                    if(random.nextInt(8) == 0) {
+                        index.set(offset, null);
+                        reference.set(offset, null);
+                    } else {
+                        int length = 1 + random.nextInt(maxLength);
+                        boolean survives = random.nextInt(4) == 0;
+                        Block[] pair = new Block[]{new Block(issued.size() + 1, length, survives),
+                            new Block(issued.size() + 1, length, survives)};
+                        issued.add(pair);
+                        index.set(offset, pair[0]);
+                        reference.set(offset, pair[1]);
+                    }
+                } else if(op < 9) {
+                    int start = random.nextInt(SIZE);
+                    int end = Math.min(start + random.nextInt(8), SIZE - 1);
+                    index.regionAltered(start, end);
+                    reference.regionAltered(start, end);
+                } else {
+                    int offset = random.nextInt(spread);
+                    CodeBlock old = reference.get(offset);
+                    if(old == null)
+                        continue;
+                    Block[] pair = new Block[]{new Block(issued.size() + 1, old.getX86Length(), false),
+                        new Block(issued.size() + 1, old.getX86Length(), false)};
+                    issued.add(pair);
+                    index.replace(offset, pair[0]);
+                    reference.replace(offset, pair[1]);
+                }
+                compare(index, reference, issued, what);
+            }
+        }
+        test.passed();
+    }
+}
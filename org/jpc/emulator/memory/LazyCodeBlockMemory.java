@@ -32,11 +32,13 @@ package org.jpc.emulator.memory;
 import org.jpc.emulator.StatusDumper;
 import org.jpc.emulator.SRLoader;
 import org.jpc.emulator.SRDumper;
+import org.jpc.emulator.SRPageTable;
 import org.jpc.emulator.TraceTrap;
 import java.util.Arrays;
 import java.io.*;
 import org.jpc.emulator.memory.codeblock.*;
 import org.jpc.emulator.processor.Processor;
+import org.jpc.emulator.processor.ProcessorException;
 
 /**
  * <code>Memory</code> object with simple execute capabilities.  Uses a
@@ -50,14 +52,19 @@ import org.jpc.emulator.processor.Processor;
 public class LazyCodeBlockMemory extends AbstractMemory {
 
     private CodeBlockManager codeBlockManager;
-    private static final BlankCodeBlock PLACEHOLDER = new BlankCodeBlock();
-    private RealModeCodeBlock[] realCodeBuffer;
-    private ProtectedModeCodeBlock[] protectedCodeBuffer;
-    private Virtual8086ModeCodeBlock[] virtual8086CodeBuffer;
+    private CodeBlockIndex realCodeIndex;
+    private CodeBlockIndex protectedCodeIndex;
+    private CodeBlockIndex virtual8086CodeIndex;
     private static final int ALLOCATION_THRESHOLD = 10;
+    private static final int CHAIN_LIMIT = 32;
     private final int size;
+    private final int codeLineShift;
+    private long codeLines;         //Bit per line that has code or is just after code.
     private byte[] buffer = null;
+    private SRPageTable.Page unreadBuffer;  //Contents in savestate not read yet.
+    private boolean bufferShared;           //Contents still referred to by a savestate capture.
     private int nullReadCount = 0;
+    private long modificationCount;  //Bumped on every write that may change the contents.
     private TraceTrap page0Hack;   //Not a real hack.
 
     public void setPage0Hack(TraceTrap tt)
@@ -67,7 +74,16 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     public boolean isDirty()
     {
-        return (buffer != null);
+        return (buffer != null || unreadBuffer != null);
+    }
+
+    /**
+     * Returns a counter that changes whenever the contents of this block may
+     * have changed, letting callers cache values read from it.
+     */
+    public long getModificationCount()
+    {
+        return modificationCount;
     }
 
     public void dumpStatusPartial(StatusDumper output)
@@ -75,6 +91,8 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         super.dumpStatusPartial(output);
         output.println("\tsize " + size + " nullReadCount " + nullReadCount);
         output.println("\tbuffer:");
+        if(unreadBuffer != null)
+            allocateBuffer();
         output.printArray(buffer, "buffer");
         //Skip the codeblocks. They are cache.
     }
@@ -93,7 +111,13 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     {
         super.dumpSRPartial(output);
         output.dumpInt(size);
-        output.dumpArray(buffer);
+        if(unreadBuffer != null)
+            output.dumpTablePage(this, modificationCount, unreadBuffer);
+        else
+            output.dumpPage(this, modificationCount, buffer);
+        //The dumper holds on to the contents, so copy them before the next write.
+        if(buffer != null && output.defersPages())
+            bufferShared = true;
         output.dumpInt(nullReadCount);
         output.dumpObject(codeBlockManager);
         output.dumpBoolean(false);  //FPU hack flag no longer supported.
@@ -104,7 +128,18 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     {
         super(input);
         size = input.loadInt();
-        buffer = input.loadArrayByte();
+        codeLineShift = codeLineShift(size);
+        int length;
+        if(input.nextIsTablePage()) {
+            unreadBuffer = input.loadTablePage(this, modificationCount);
+            length = unreadBuffer.getLength();
+        } else {
+            buffer = input.loadPage(this, modificationCount);
+            length = (buffer != null) ? buffer.length : size;
+        }
+        if(length != size)
+            throw new IOException("Savestate has " + length + " bytes of contents for memory block of " + size +
+                " bytes");
         nullReadCount = input.loadInt();
         codeBlockManager = (CodeBlockManager)input.loadObject();
         if(input.objectEndsHere())
@@ -119,6 +154,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
      */
     public LazyCodeBlockMemory(int size, CodeBlockManager manager) {
         this.size = size;
+        this.codeLineShift = codeLineShift(size);
         this.codeBlockManager = manager;
     }
 
@@ -126,28 +162,97 @@ public class LazyCodeBlockMemory extends AbstractMemory {
      * Should probably be made private.
      */
     protected void constructCodeBlocksArray() {
-        realCodeBuffer = new RealModeCodeBlock[(int) getSize()];
-        protectedCodeBuffer = new ProtectedModeCodeBlock[(int) getSize()];
-        virtual8086CodeBuffer = new Virtual8086ModeCodeBlock[(int) getSize()];
+        realCodeIndex = new CodeBlockIndex(size);
+        protectedCodeIndex = new CodeBlockIndex(size);
+        virtual8086CodeIndex = new CodeBlockIndex(size);
     }
 
     private void constructRealCodeBlocksArray() {
-        realCodeBuffer = new RealModeCodeBlock[(int) getSize()];
+        realCodeIndex = new CodeBlockIndex(size);
     }
 
     private void constructVirtual8086CodeBlocksArray() {
-        virtual8086CodeBuffer = new Virtual8086ModeCodeBlock[(int) getSize()];
+        virtual8086CodeIndex = new CodeBlockIndex(size);
     }
 
     private void constructProtectedCodeBlocksArray() {
-        protectedCodeBuffer = new ProtectedModeCodeBlock[(int) getSize()];
+        protectedCodeIndex = new CodeBlockIndex(size);
     }
 
     public int executeProtected(Processor cpu, int offset) {
-        int x86Count = 0;
         int ip = cpu.getInstructionPointer();
+        int generation = cpu.linearMemory.getMappingGeneration();
+        int x86Count = executeProtectedBlock(cpu, ip & AddressSpace.BLOCK_MASK);
+
+        for(int i = 0; i < CHAIN_LIMIT; i++) {
+            int next = chainTarget(cpu, ip, cpu.linearMemory, generation);
+            if(next < 0)
+                break;
+            cpu.instructionsExecuted += x86Count;
+            x86Count = executeProtectedBlock(cpu, next);
+        }
+        return x86Count;
+    }
+
+    public int executeReal(Processor cpu, int offset) {
+        int ip = cpu.getInstructionPointer();
+        int generation = cpu.physicalMemory.getMappingGeneration();
+        int x86Count = executeRealBlock(cpu, ip & AddressSpace.BLOCK_MASK);
+
+        for(int i = 0; i < CHAIN_LIMIT; i++) {
+            int next = chainTarget(cpu, ip, cpu.physicalMemory, generation);
+            if(next < 0)
+                break;
+            cpu.instructionsExecuted += x86Count;
+            x86Count = executeRealBlock(cpu, next);
+        }
+        return x86Count;
+    }
+
+    public int executeVirtual8086(Processor cpu, int offset) {
+        int ip = cpu.getInstructionPointer();
+        int generation = cpu.linearMemory.getMappingGeneration();
+        int x86Count = executeVirtual8086Block(cpu, ip & AddressSpace.BLOCK_MASK);
+
+        for(int i = 0; i < CHAIN_LIMIT; i++) {
+            int next = chainTarget(cpu, ip, cpu.linearMemory, generation);
+            if(next < 0)
+                break;
+            cpu.instructionsExecuted += x86Count;
+            x86Count = executeVirtual8086Block(cpu, next);
+        }
+        return x86Count;
+    }
+
+    /**
+     * Finds where execution can continue in this page without going back to the
+     * dispatch loop.
+     * <p>
+     * This is only possible if the dispatch loop would do nothing between the
+     * blocks and the next block is in the same page, which still maps to this
+     * object. The code buffers serve as the successor links, as the code
+     * modification checks keep them valid.
+     * @return offset of the next block or -1 if the dispatch loop must run.
+     */
+    private int chainTarget(Processor cpu, int ip, AddressSpace space, int generation)
+    {
+        if(!cpu.canChainBlocks() || space.getMappingGeneration() != generation)
+            return -1;
+        int next;
+        try {
+            next = cpu.getInstructionPointer();
+        } catch (ProcessorException e) {
+            //Let the dispatch loop raise it.
+            return -1;
+        }
+        if(((next ^ ip) & AddressSpace.INDEX_MASK) != 0)
+            return -1;
+        return next & AddressSpace.BLOCK_MASK;
+    }
+
+    private int executeProtectedBlock(Processor cpu, int offset) {
+        int x86Count = 0;
 
-        offset = ip & AddressSpace.BLOCK_MASK;
         ProtectedModeCodeBlock block = getProtectedModeCodeBlockAt(offset);
         try
         {
@@ -165,18 +270,16 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         catch (CodeBlockReplacementException e)
         {
             block = (ProtectedModeCodeBlock) e.getReplacement();
-            protectedCodeBuffer[offset] = block;
+            protectedCodeIndex.replace(offset, block);
             x86Count += block.execute(cpu);
         }
 
         return x86Count;
     }
 
-    public int executeReal(Processor cpu, int offset) {
+    private int executeRealBlock(Processor cpu, int offset) {
         int x86Count = 0;
-        int ip = cpu.getInstructionPointer();
 
-        offset = ip & AddressSpace.BLOCK_MASK;
         RealModeCodeBlock block = getRealModeCodeBlockAt(offset);
         try
         {
@@ -194,18 +297,16 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         catch (CodeBlockReplacementException e)
         {
             block = (RealModeCodeBlock) e.getReplacement();
-            realCodeBuffer[offset] = block;
+            realCodeIndex.replace(offset, block);
             x86Count += block.execute(cpu);
         }
 
         return x86Count;
     }
 
-    public int executeVirtual8086(Processor cpu, int offset) {
+    private int executeVirtual8086Block(Processor cpu, int offset) {
         int x86Count = 0;
-        int ip = cpu.getInstructionPointer();
 
-        offset = ip & AddressSpace.BLOCK_MASK;
         Virtual8086ModeCodeBlock block = getVirtual8086ModeCodeBlockAt(offset);
         try
         {
@@ -223,7 +324,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         catch (CodeBlockReplacementException e)
         {
             block = (Virtual8086ModeCodeBlock) e.getReplacement();
-            virtual8086CodeBuffer[offset] = block;
+            virtual8086CodeIndex.replace(offset, block);
             x86Count += block.execute(cpu);
         }
 
@@ -231,232 +332,94 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     }
 
     private RealModeCodeBlock getRealModeCodeBlockAt(int offset) {
-        try {
-            return realCodeBuffer[offset];
-        } catch (NullPointerException e) {
+        if(realCodeIndex == null)
             constructRealCodeBlocksArray();
-            return realCodeBuffer[offset];
-        }
+        return (RealModeCodeBlock)realCodeIndex.get(offset);
     }
 
     private ProtectedModeCodeBlock getProtectedModeCodeBlockAt(int offset) {
-        try {
-            return protectedCodeBuffer[offset];
-        } catch (NullPointerException e) {
+        if(protectedCodeIndex == null)
             constructProtectedCodeBlocksArray();
-            return protectedCodeBuffer[offset];
-        }
+        return (ProtectedModeCodeBlock)protectedCodeIndex.get(offset);
     }
 
     private Virtual8086ModeCodeBlock getVirtual8086ModeCodeBlockAt(int offset) {
-        try {
-            return virtual8086CodeBuffer[offset];
-        } catch (NullPointerException e) {
+        if(virtual8086CodeIndex == null)
             constructVirtual8086CodeBlocksArray();
-            return virtual8086CodeBuffer[offset];
-        }
+        return (Virtual8086ModeCodeBlock)virtual8086CodeIndex.get(offset);
     }
 
-    private void removeVirtual8086CodeBlockAt(int offset)
+    private void setVirtual8086CodeBlockAt(int offset, Virtual8086ModeCodeBlock block)
     {
-        Virtual8086ModeCodeBlock b = virtual8086CodeBuffer[offset];
-        if((b == null) || (b == PLACEHOLDER))
-            return;
-
-        virtual8086CodeBuffer[offset] = null;
-        int len = b.getX86Length();
-        for(int i = offset + 1; (i < offset + len) && (i < virtual8086CodeBuffer.length); i++)
-            if(virtual8086CodeBuffer[i] == PLACEHOLDER)
-                virtual8086CodeBuffer[i] = null;
-
-        for(int i = Math.min(offset + len, virtual8086CodeBuffer.length) - 1; i >= 0; i--) {
-            if(virtual8086CodeBuffer[i] == null) {
-                if(i < offset)
-                    break;
-                else
-                    continue;
-            }
-            if(virtual8086CodeBuffer[i] == PLACEHOLDER)
-                continue;
-
-            Virtual8086ModeCodeBlock bb = virtual8086CodeBuffer[i];
-            len = bb.getX86Length();
-
-            for(int j = i + 1; (j < i + len) && (j < virtual8086CodeBuffer.length); j++)
-                if(virtual8086CodeBuffer[j] == null)
-                    virtual8086CodeBuffer[j] = PLACEHOLDER;
-        }
+        virtual8086CodeIndex.set(offset, block);
+        if(block != null)
+            markCode(offset, block.getX86Length());
     }
 
-    private void removeProtectedCodeBlockAt(int offset)
+    private void setProtectedCodeBlockAt(int offset, ProtectedModeCodeBlock block)
     {
-        ProtectedModeCodeBlock b = protectedCodeBuffer[offset];
-        if((b == null) || (b == PLACEHOLDER))
-            return;
-
-        protectedCodeBuffer[offset] = null;
-        int len = b.getX86Length();
-        for(int i = offset + 1; (i < offset + len) && (i < protectedCodeBuffer.length); i++)
-            if(protectedCodeBuffer[i] == PLACEHOLDER)
-                protectedCodeBuffer[i] = null;
-
-        for(int i = Math.min(offset + len, protectedCodeBuffer.length) - 1; i >= 0; i--) {
-            if(protectedCodeBuffer[i] == null) {
-                if(i < offset)
-                    break;
-                else
-                    continue;
-            }
-            if(protectedCodeBuffer[i] == PLACEHOLDER)
-                continue;
-
-            ProtectedModeCodeBlock bb = protectedCodeBuffer[i];
-            len = bb.getX86Length();
-
-            for(int j = i + 1; (j < i + len) && (j < protectedCodeBuffer.length); j++)
-                if(protectedCodeBuffer[j] == null)
-                    protectedCodeBuffer[j] = PLACEHOLDER;
-        }
+        protectedCodeIndex.set(offset, block);
+        if(block != null)
+            markCode(offset, block.getX86Length());
     }
 
-    private void removeRealCodeBlockAt(int offset)
+    private void setRealCodeBlockAt(int offset, RealModeCodeBlock block)
     {
-        RealModeCodeBlock b = realCodeBuffer[offset];
-        if((b == null) || (b == PLACEHOLDER))
-            return;
-
-        realCodeBuffer[offset] = null;
-        int len = b.getX86Length();
-        for(int i = offset + 1; (i < offset + len) && (i < realCodeBuffer.length); i++)
-            if(realCodeBuffer[i] == PLACEHOLDER)
-                realCodeBuffer[i] = null;
-
-        for(int i = Math.min(offset + len, realCodeBuffer.length) - 1; i >= 0; i--) {
-            if(realCodeBuffer[i] == null) {
-                if(i < offset)
-                    break;
-                else
-                    continue;
-            }
-            if(realCodeBuffer[i] == PLACEHOLDER)
-                continue;
-
-            RealModeCodeBlock bb = realCodeBuffer[i];
-            len = bb.getX86Length();
-
-            for(int j = i + 1; (j < i + len) && (j < realCodeBuffer.length); j++)
-                if(realCodeBuffer[j] == null)
-                    realCodeBuffer[j] = PLACEHOLDER;
-        }
+        realCodeIndex.set(offset, block);
+        if(block != null)
+            markCode(offset, block.getX86Length());
     }
 
-    private void setVirtual8086CodeBlockAt(int offset, Virtual8086ModeCodeBlock block)
+    private static int codeLineShift(int size)
     {
-        removeVirtual8086CodeBlockAt(offset);
-        if(block == null)
-            return;
-
-        virtual8086CodeBuffer[offset] = block;
-        int len = block.getX86Length();
-        for(int i = offset + 1; (i < offset + len) && (i < virtual8086CodeBuffer.length); i++)
-            if(virtual8086CodeBuffer[i] == null)
-                virtual8086CodeBuffer[i] = PLACEHOLDER;
+        int shift = 0;
+        while(((size - 1) >> shift) >= 64)
+            shift++;
+        return shift;
     }
 
-    private void setProtectedCodeBlockAt(int offset, ProtectedModeCodeBlock block)
+    private long codeLineMask(int start, int end)
     {
-        removeProtectedCodeBlockAt(offset);
-        if(block == null)
-            return;
-
-        protectedCodeBuffer[offset] = block;
-        int len = block.getX86Length();
-        for(int i = offset + 1; (i < offset + len) && (i < protectedCodeBuffer.length); i++)
-            if(protectedCodeBuffer[i] == null)
-                protectedCodeBuffer[i] = PLACEHOLDER;
+        int first = start >> codeLineShift;
+        int last = Math.min(end, size - 1) >> codeLineShift;
+        if(first > last)
+            return 0;
+        return (-1L << first) & (-1L >>> (63 - last));
     }
 
-    private void setRealCodeBlockAt(int offset, RealModeCodeBlock block)
+    /**
+     * Marks lines holding code of block at <code>offset</code>. The byte just
+     * after the block is marked too, as writes there also reach the block in
+     * <code>regionAltered</code>.
+     */
+    private void markCode(int offset, int len)
     {
-        removeRealCodeBlockAt(offset);
-        if(block == null)
-            return;
-
-        realCodeBuffer[offset] = block;
-        int len = block.getX86Length();
-        for(int i = offset + 1; (i < offset + len) && (i < realCodeBuffer.length); i++)
-            if(realCodeBuffer[i] == null)
-                realCodeBuffer[i] = PLACEHOLDER;
+        codeLines |= codeLineMask(offset, offset + Math.max(len, 1));
     }
 
     private void regionAltered(int start, int end) {
-        if(realCodeBuffer != null) {
-            for(int i = end; i >= 0; i--) {
-                RealModeCodeBlock b = realCodeBuffer[i];
-                if(b == null) {
-                    if(i < start)
-                        break;
-                    else
-                        continue;
-                }
-
-                if(b == PLACEHOLDER)
-                    continue;
-
-                if(!b.handleMemoryRegionChange(start, end)) {
-                    removeRealCodeBlockAt(i);
-                    b.invalidate();
-                }
-            }
-        }
-
-        if(protectedCodeBuffer != null) {
-            for(int i = end; i >= 0; i--) {
-                ProtectedModeCodeBlock b = protectedCodeBuffer[i];
-                if(b == null) {
-                    if(i < start)
-                        break;
-                    else
-                        continue;
-                }
-
-                if(b == PLACEHOLDER)
-                    continue;
-
-                if(!b.handleMemoryRegionChange(start, end)) {
-                    removeProtectedCodeBlockAt(i);
-                    b.invalidate();
-                }
-            }
-        }
+        //Nothing to check if no block could be reached from the range.
+        if((codeLines & codeLineMask(start, end)) == 0)
+            return;
 
-        if(virtual8086CodeBuffer != null) {
-            for(int i = end; i >= 0; i--) {
-                Virtual8086ModeCodeBlock b = virtual8086CodeBuffer[i];
-                if(b == null) {
-                    if(i < start)
-                        break;
-                    else
-                        continue;
-                }
-
-                if(b == PLACEHOLDER)
-                    continue;
-
-                if(!b.handleMemoryRegionChange(start, end)) {
-                    removeVirtual8086CodeBlockAt(i);
-                    b.invalidate();
-                }
-            }
-        }
+        if(realCodeIndex != null)
+            realCodeIndex.regionAltered(start, end);
+        if(protectedCodeIndex != null)
+            protectedCodeIndex.regionAltered(start, end);
+        if(virtual8086CodeIndex != null)
+            virtual8086CodeIndex.regionAltered(start, end);
     }
 
     public void clear()
     {
-        realCodeBuffer = null;
-        protectedCodeBuffer = null;
-        virtual8086CodeBuffer = null;
+        modificationCount++;
+        codeLines = 0;
+        realCodeIndex = null;
+        protectedCodeIndex = null;
+        virtual8086CodeIndex = null;
         buffer = null;
+        bufferShared = false;
+        unreadBuffer = null;
     }
 
     public String toString()
@@ -464,54 +427,14 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         return "LazyCodeBlockMemory[" + getSize() + "]";
     }
 
-    //This class does not need to be dumpable because codeblocks can't be saved.
-    private static class BlankCodeBlock implements RealModeCodeBlock, ProtectedModeCodeBlock, Virtual8086ModeCodeBlock
-    {
-        private static final RuntimeException executeException = new NullPointerException();
-
-        public int getX86Length()
-        {
-            return 0;
-        }
-
-        public int getX86Count()
-        {
-            return 0;
-        }
-
-        public int execute(Processor cpu)
-        {
-            throw executeException;
-        }
-
-        public void invalidate()
-        {
-        }
-
-        public boolean handleMemoryRegionChange(int startAddress, int endAddress)
-        {
-            return false;
-        }
-
-        public String getDisplayString()
-        {
-            return "\n\n<<Blank Block>>\n\n";
-        }
-
-        public String toString()
-        {
-            return " -- Blank --\n";
-        }
-    }
-
     public ProtectedModeCodeBlock getProtectedBlock(int offset, boolean size)
     {
-        if(protectedCodeBuffer == null) {
+        if(protectedCodeIndex == null) {
             allocateBuffer();
-            protectedCodeBuffer = new ProtectedModeCodeBlock[(int) getSize()];
+            protectedCodeIndex = new CodeBlockIndex(this.size);
         }
-        ProtectedModeCodeBlock block = protectedCodeBuffer[offset];
-        if((block != null) && (block != PLACEHOLDER))
+        ProtectedModeCodeBlock block = (ProtectedModeCodeBlock)protectedCodeIndex.get(offset);
+        if(block != null)
             return block;
 
         block = codeBlockManager.getProtectedModeCodeBlockAt(this, offset, size);
@@ -521,12 +444,12 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     public Virtual8086ModeCodeBlock getVirtual8086Block(int offset)
     {
-        if(virtual8086CodeBuffer == null) {
+        if(virtual8086CodeIndex == null) {
             allocateBuffer();
-            virtual8086CodeBuffer = new Virtual8086ModeCodeBlock[(int) getSize()];
+            virtual8086CodeIndex = new CodeBlockIndex(size);
         }
-        Virtual8086ModeCodeBlock block = virtual8086CodeBuffer[offset];
-        if((block != null) && (block != PLACEHOLDER))
+        Virtual8086ModeCodeBlock block = (Virtual8086ModeCodeBlock)virtual8086CodeIndex.get(offset);
+        if(block != null)
             return block;
 
         block = codeBlockManager.getVirtual8086ModeCodeBlockAt(this, offset);
@@ -536,12 +459,12 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     public RealModeCodeBlock getRealBlock(int offset)
     {
-        if(realCodeBuffer == null) {
+        if(realCodeIndex == null) {
             allocateBuffer();
-            realCodeBuffer = new RealModeCodeBlock[(int) getSize()];
+            realCodeIndex = new CodeBlockIndex(size);
         }
-        RealModeCodeBlock block = realCodeBuffer[offset];
-        if((block != null) && (block != PLACEHOLDER))
+        RealModeCodeBlock block = (RealModeCodeBlock)realCodeIndex.get(offset);
+        if(block != null)
             return block;
 
         block = codeBlockManager.getRealModeCodeBlockAt(this, offset);
@@ -552,16 +475,27 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     //begin lazy memory methods
     private final void allocateBuffer()
     {
-        if(buffer == null)
+        if(buffer != null)
+            return;
+        if(unreadBuffer != null) {
+            buffer = unreadBuffer.load();
+            unreadBuffer = null;
+        } else
             buffer = new byte[size];
     }
 
+    private final void unshareBuffer()
+    {
+        buffer = buffer.clone();
+        bufferShared = false;
+    }
+
     public void copyContentsIntoArray(int address, byte[] buf, int off, int len)
     {
         try {
             System.arraycopy(buffer, address, buf, off, len);
         } catch (NullPointerException e) {
-            if(++nullReadCount == ALLOCATION_THRESHOLD) {
+            if(unreadBuffer != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 System.arraycopy(buffer, address, buf, off, len);
             } else
@@ -571,6 +505,9 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     public void loadInitialContents(int address, byte[] buf, int off, int len)
     {
+        modificationCount++;
+        if(bufferShared)
+            unshareBuffer();
         try {
             System.arraycopy(buf, off, buffer, address, len);
         } catch (NullPointerException e) {
@@ -581,6 +518,9 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     public void copyArrayIntoContents(int address, byte[] buf, int off, int len)
     {
+        modificationCount++;
+        if(bufferShared)
+            unshareBuffer();
         try {
             System.arraycopy(buf, off, buffer, address, len);
         } catch (NullPointerException e) {
@@ -597,7 +537,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     public boolean isAllocated()
     {
-        return (buffer != null);
+        return (buffer != null || unreadBuffer != null);
     }
 
     public byte getByte(int offset)
@@ -605,7 +545,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         try {
             return buffer[offset];
         } catch (NullPointerException e) {
-            if(++nullReadCount == ALLOCATION_THRESHOLD) {
+            if(unreadBuffer != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 return buffer[offset];
             } else
@@ -616,6 +556,9 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     public void setByte(int offset, byte data) {
         if(getByte(offset) == data)
             return;
+        modificationCount++;
+        if(bufferShared)
+            unshareBuffer();
         try {
             if(page0Hack != null && (offset == 0x41A || offset == 0x41C))
                 page0Hack.doPotentialTrap(TraceTrap.TRACE_STOP_BIOS_KBD);
@@ -634,7 +577,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
             result |= buffer[offset] << 8;
             return (short) result;
         } catch (NullPointerException e) {
-            if(++nullReadCount == ALLOCATION_THRESHOLD) {
+            if(unreadBuffer != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 int result = 0xFF & buffer[offset];
                 offset++;
@@ -656,7 +599,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
             result |= (buffer[offset]) << 24;
             return result;
         } catch (NullPointerException e) {
-            if(++nullReadCount == ALLOCATION_THRESHOLD) {
+            if(unreadBuffer != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 int result = 0xFF & buffer[offset];
                 offset++;
@@ -674,6 +617,9 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     public void setWord(int offset, short data) {
         if(getWord(offset) == data)
             return;
+        modificationCount++;
+        if(bufferShared)
+            unshareBuffer();
         try {
             if(page0Hack != null && (offset == 0x41A || offset == 0x41C))
                 page0Hack.doPotentialTrap(TraceTrap.TRACE_STOP_BIOS_KBD);
@@ -692,6 +638,9 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     public void setDoubleWord(int offset, int data) {
         if(getDoubleWord(offset) == data)
             return;
+        modificationCount++;
+        if(bufferShared)
+            unshareBuffer();
         try {
             buffer[offset] = (byte) data;
             offset++;
@@ -62,9 +62,55 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
     private int baseAddress, lastAddress;
     private PhysicalAddressSpace target;
 
-    private byte[] pageSize;
-    private final Set<Integer> nonGlobalPages;
-    private Memory[] readUserIndex, readSupervisorIndex, writeUserIndex, writeSupervisorIndex, readIndex, writeIndex;
+    //The translation cache is kept in 4MB chunks allocated on demand. Each page carries the generation it was
+    //last filled in, so flushes just bump a counter and stale pages read back as empty.
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int READ_USER = 0;
+    private static final int READ_SUPERVISOR = 1;
+    private static final int WRITE_USER = 2;
+    private static final int WRITE_SUPERVISOR = 3;
+
+    private static final class TLBChunk
+    {
+        final Memory[][] entries = new Memory[4][CHUNK_SIZE];
+        final byte[] pageSize = new byte[CHUNK_SIZE];
+        final boolean[] nonGlobal = new boolean[CHUNK_SIZE];
+        final int[] generation = new int[CHUNK_SIZE];
+    }
+
+    //Table of chunks taken out of the cache by a flush, read with the generations current at the time.
+    private static final class DetachedTable
+    {
+        final TLBChunk[] chunks;
+        final int table;
+        final int flushGeneration, partialFlushGeneration;
+
+        DetachedTable(TLBChunk[] chunks, int table, int flushGeneration, int partialFlushGeneration)
+        {
+            this.chunks = chunks;
+            this.table = table;
+            this.flushGeneration = flushGeneration;
+            this.partialFlushGeneration = partialFlushGeneration;
+        }
+    }
+
+    private TLBChunk[] tlb;
+    private int generation, flushGeneration, partialFlushGeneration;
+    private int readTable, writeTable;
+
+    //Tables accessed since the last flush. A flush leaves the current read and write tables serving their
+    //old entries from the detached chunks until the next setSupervisor(), like the old per-mode index arrays did.
+    private final boolean[] tablePresent = new boolean[4];
+    private DetachedTable detachedRead, detachedWrite;
+
+    //Present page directory entries read by recent walks. They stay valid while the directory page is unwritten.
+    private final int[] directoryEntries = new int[1024];
+    private final boolean[] directoryCached = new boolean[1024];
+    private LazyCodeBlockMemory directoryBlock;
+    private long directoryBlockWrites;
+    private int directoryMappingGeneration;
 
     /**
      * Constructs a <code>LinearAddressSpace</code> with paging initially disabled
@@ -79,12 +125,10 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         globalPagesEnabled = false;
         writeProtectUserPages = false;
         pageSizeExtensions = false;
+        readTable = READ_USER;
+        writeTable = WRITE_USER;
 
-        nonGlobalPages = new HashSet<Integer>();
-
-        pageSize = new byte[INDEX_SIZE];
-        for(int i=0; i < INDEX_SIZE; i++)
-            pageSize[i] = FOUR_K;
+        tlb = new TLBChunk[INDEX_SIZE >>> CHUNK_SHIFT];
     }
 
     public void dumpStatusPartial(StatusDumper output)
@@ -97,18 +141,19 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         output.println("\ttarget <object #" + output.objectNumber(target) + ">"); if(target != null) target.dumpStatus(output);
 
         output.println("\tpageSize:");
-        output.printArray(pageSize, "pageSize");
+        output.printArray(getPageSizes(), "pageSize");
 
         output.println("\tnonGlobalPages:");
-        for(Integer value : nonGlobalPages)
-            output.println("\t\t" + value.intValue());
-
-        dumpMemoryTableStatus(output, readUserIndex, "readUserIndex");
-        dumpMemoryTableStatus(output, readSupervisorIndex, "readSupervisorIndex");
-        dumpMemoryTableStatus(output, readIndex, "readIndex");
-        dumpMemoryTableStatus(output, writeUserIndex, "writeUserIndex");
-        dumpMemoryTableStatus(output, writeSupervisorIndex, "writeSupervisorIndex");
-        dumpMemoryTableStatus(output, writeIndex, "writeIndex");
+        for(int i = 0; i < INDEX_SIZE; i++)
+            if(isNonGlobal(i))
+                output.println("\t\t" + i);
+
+        dumpMemoryTableStatus(output, READ_USER, null, "readUserIndex");
+        dumpMemoryTableStatus(output, READ_SUPERVISOR, null, "readSupervisorIndex");
+        dumpMemoryTableStatus(output, readTable, detachedRead, "readIndex");
+        dumpMemoryTableStatus(output, WRITE_USER, null, "writeUserIndex");
+        dumpMemoryTableStatus(output, WRITE_SUPERVISOR, null, "writeSupervisorIndex");
+        dumpMemoryTableStatus(output, writeTable, detachedWrite, "writeIndex");
     }
 
     public void dumpStatus(StatusDumper output)
@@ -140,16 +185,17 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         output.dumpInt(baseAddress);
         output.dumpInt(lastAddress);
         output.dumpObject(target);
-        output.dumpArray(pageSize);
-        for(Integer value : nonGlobalPages) {
-            output.dumpBoolean(true);
-            output.dumpInt(value.intValue());
-        }
+        output.dumpArray(getPageSizes());
+        for(int i = 0; i < INDEX_SIZE; i++)
+            if(isNonGlobal(i)) {
+                output.dumpBoolean(true);
+                output.dumpInt(i);
+            }
         output.dumpBoolean(false);
-        dumpMemoryTableSR(output, readUserIndex);
-        dumpMemoryTableSR(output, readSupervisorIndex);
-        dumpMemoryTableSR(output, writeUserIndex);
-        dumpMemoryTableSR(output, writeSupervisorIndex);
+        dumpMemoryTableSR(output, READ_USER);
+        dumpMemoryTableSR(output, READ_SUPERVISOR);
+        dumpMemoryTableSR(output, WRITE_USER);
+        dumpMemoryTableSR(output, WRITE_SUPERVISOR);
     }
 
     public LinearAddressSpace(SRLoader input) throws IOException
@@ -171,125 +217,285 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         baseAddress = input.loadInt();
         lastAddress = input.loadInt();
         target = (PhysicalAddressSpace)(input.loadObject());
-        pageSize = input.loadArrayByte();
-        nonGlobalPages = new HashSet<Integer>();
+        tlb = new TLBChunk[INDEX_SIZE >>> CHUNK_SHIFT];
+        byte[] pageSize = input.loadArrayByte();
+        for(int i = 0; i < pageSize.length; i++)
+            if(pageSize[i] != FOUR_K)
+                setPageSize(i, pageSize[i]);
         boolean nextNGPFlag = input.loadBoolean();
         while(nextNGPFlag) {
-            Integer tNGPKey = new Integer(input.loadInt());
-            nonGlobalPages.add(tNGPKey);
+            setNonGlobal(input.loadInt());
             nextNGPFlag = input.loadBoolean();
         }
-        readUserIndex = loadMemoryTableSR(input);
-        readSupervisorIndex = loadMemoryTableSR(input);
-        writeUserIndex = loadMemoryTableSR(input);
-        writeSupervisorIndex = loadMemoryTableSR(input);
-        if(isSupervisor) {
-            readIndex = readSupervisorIndex;
-            writeIndex = writeSupervisorIndex;
-        } else {
-           readIndex = readUserIndex;
-           writeIndex = writeUserIndex;
-        }
+        loadMemoryTableSR(input, READ_USER);
+        loadMemoryTableSR(input, READ_SUPERVISOR);
+        loadMemoryTableSR(input, WRITE_USER);
+        loadMemoryTableSR(input, WRITE_SUPERVISOR);
+        readTable = isSupervisor ? READ_SUPERVISOR : READ_USER;
+        writeTable = isSupervisor ? WRITE_SUPERVISOR : WRITE_USER;
     }
 
-    //The reason for adding that present bitmap is to speed up loading/dumping. Processing 1Mi objects
-    //would take too long otherwise.
-    private Memory[] loadMemoryTableSR(SRLoader input) throws IOException
+    //Tables are dumped as runs of identical entries to speed up loading/dumping. Processing 1Mi objects
+    //would take too long otherwise. Older savestates have bitmap of present entries instead.
+    private void loadMemoryTableSR(SRLoader input, int table) throws IOException
     {
         boolean dTablePresent = input.loadBoolean();
         if(!dTablePresent)
-            return null;
+            return;
 
-        Memory[] mem = new Memory[input.loadInt()];
+        tablePresent[table] = true;
+        int length = input.loadInt();
+        if(input.nextIsObjectTable()) {
+            Memory[] entries = new Memory[length];
+            input.loadObjectTable(entries);
+            for(int i = 0; i < length; i++)
+                if(entries[i] != null)
+                    setIndexValue(table, i, entries[i]);
+            return;
+        }
         byte[] presentMap = input.loadArrayByte();
-        for(int i = 0; i < mem.length; i++)
+        for(int i = 0; i < length; i++)
             if((presentMap[i / 8] & (1 << (i % 8))) != 0)
-                mem[i] = (Memory)(input.loadObject());
-        return mem;
+                setIndexValue(table, i, (Memory)(input.loadObject()));
     }
 
-
-    private void dumpMemoryTableSR(SRDumper output, Memory[] mem) throws IOException
+    private void dumpMemoryTableSR(SRDumper output, int table) throws IOException
     {
-        if(mem == null) {
+        if(!tablePresent[table]) {
             output.dumpBoolean(false);
         } else {
+            Memory[] entries = new Memory[INDEX_SIZE];
+            for(int i = 0; i < INDEX_SIZE; i++)
+                entries[i] = getIndexValue(table, i);
             output.dumpBoolean(true);
-            output.dumpInt(mem.length);
-            byte[] presentMap = new byte[(mem.length + 7) / 8];
-            for(int i = 0; i < mem.length; i++)
-                if(mem[i] != null) {
-                    presentMap[i / 8] |= (1 << (i % 8));
-                }
-            output.dumpArray(presentMap);
-            for(int i = 0; i < mem.length; i++)
-                if(mem[i] != null)
-                    output.dumpObject(mem[i]);
+            output.dumpInt(INDEX_SIZE);
+            output.dumpObjectTable(entries);
         }
     }
 
-    private void dumpMemoryTableStatus(StatusDumper output, Memory[] mem, String name)
+    private void dumpMemoryTableStatus(StatusDumper output, int table, DetachedTable detached, String name)
     {
-        if(mem == null) {
+        if(detached == null && !tablePresent[table]) {
             output.println("\t" + name +" null");
-        } else {
-            for(int i = 0; i < mem.length; i++) {
-                if(mem[i] != null)    //Don't dump null pages, gets seriously annoying.
-                    output.println("\t" + name + "[" + i + "] <object #" + output.objectNumber(mem[i]) + ">"); if(mem[i] != null) mem[i].dumpStatus(output);
+            return;
+        }
+        for(int i = 0; i < INDEX_SIZE; i++) {
+            Memory m = (detached != null) ? getDetachedValue(detached, i) : getIndexValue(table, i);
+            if(m != null) {   //Don't dump null pages, gets seriously annoying.
+                output.println("\t" + name + "[" + i + "] <object #" + output.objectNumber(m) + ">");
+                m.dumpStatus(output);
             }
         }
     }
 
-    private Memory[] createReadIndex()
+    private boolean isStale(TLBChunk chunk, int i)
     {
-        if(isSupervisor)
-            return (readIndex = readSupervisorIndex = new Memory[INDEX_SIZE]);
-        else
-            return (readIndex = readUserIndex = new Memory[INDEX_SIZE]);
+        return isStale(chunk, i, flushGeneration, partialFlushGeneration);
     }
 
-    private Memory[] createWriteIndex()
+    private static boolean isStale(TLBChunk chunk, int i, int flushGeneration, int partialFlushGeneration)
     {
-        if(isSupervisor)
-            return (writeIndex = writeSupervisorIndex = new Memory[INDEX_SIZE]);
-        else
-            return (writeIndex = writeUserIndex = new Memory[INDEX_SIZE]);
+        int g = chunk.generation[i];
+        return g < flushGeneration || (chunk.nonGlobal[i] && g < partialFlushGeneration);
+    }
+
+    private static void resetPage(TLBChunk chunk, int i, int generation)
+    {
+        for(Memory[] entries : chunk.entries)
+            entries[i] = null;
+        chunk.pageSize[i] = FOUR_K;
+        chunk.nonGlobal[i] = false;
+        chunk.generation[i] = generation;
+    }
+
+    private Memory getIndexValue(int table, int index)
+    {
+        TLBChunk chunk = tlb[index >>> CHUNK_SHIFT];
+        if(chunk == null)
+            return null;
+        int i = index & CHUNK_MASK;
+        if(isStale(chunk, i))
+            return null;
+        return chunk.entries[table][i];
+    }
+
+    //Returns the chunk holding index, first clearing the page if a flush has passed it by.
+    private TLBChunk liveChunk(int index)
+    {
+        TLBChunk chunk = tlb[index >>> CHUNK_SHIFT];
+        if(chunk == null)
+            chunk = tlb[index >>> CHUNK_SHIFT] = new TLBChunk();
+        int i = index & CHUNK_MASK;
+        if(isStale(chunk, i))
+            resetPage(chunk, i, generation);
+        chunk.generation[i] = generation;
+        return chunk;
+    }
+
+    private void setIndexValue(int table, int index, Memory value)
+    {
+        liveChunk(index).entries[table][index & CHUNK_MASK] = value;
+    }
+
+    private void clearIndex(int index)
+    {
+        if(tlb[index >>> CHUNK_SHIFT] == null)
+            return;
+        TLBChunk chunk = liveChunk(index);
+        int i = index & CHUNK_MASK;
+        for(Memory[] entries : chunk.entries)
+            entries[i] = null;
+        chunk.nonGlobal[i] = false;
+    }
+
+    private byte getPageSize(int index)
+    {
+        TLBChunk chunk = tlb[index >>> CHUNK_SHIFT];
+        if(chunk == null || isStale(chunk, index & CHUNK_MASK))
+            return FOUR_K;
+        return chunk.pageSize[index & CHUNK_MASK];
+    }
+
+    private void setPageSize(int index, byte size)
+    {
+        if(size == FOUR_K && tlb[index >>> CHUNK_SHIFT] == null)
+            return;
+        liveChunk(index).pageSize[index & CHUNK_MASK] = size;
+    }
+
+    private boolean isNonGlobal(int index)
+    {
+        TLBChunk chunk = tlb[index >>> CHUNK_SHIFT];
+        if(chunk == null || isStale(chunk, index & CHUNK_MASK))
+            return false;
+        return chunk.nonGlobal[index & CHUNK_MASK];
+    }
+
+    private void setNonGlobal(int index)
+    {
+        liveChunk(index).nonGlobal[index & CHUNK_MASK] = true;
+    }
+
+    private byte[] getPageSizes()
+    {
+        byte[] pageSize = new byte[INDEX_SIZE];
+        for(int i = 0; i < INDEX_SIZE; i++)
+            pageSize[i] = getPageSize(i);
+        return pageSize;
+    }
+
+    private static Memory getDetachedValue(DetachedTable detached, int index)
+    {
+        TLBChunk chunk = detached.chunks[index >>> CHUNK_SHIFT];
+        int i = index & CHUNK_MASK;
+        if(chunk == null || isStale(chunk, i, detached.flushGeneration, detached.partialFlushGeneration))
+            return null;
+        return chunk.entries[detached.table][i];
+    }
+
+    private static void setDetachedValue(DetachedTable detached, int index, Memory value)
+    {
+        TLBChunk chunk = detached.chunks[index >>> CHUNK_SHIFT];
+        if(chunk == null)
+            chunk = detached.chunks[index >>> CHUNK_SHIFT] = new TLBChunk();
+        int i = index & CHUNK_MASK;
+        if(isStale(chunk, i, detached.flushGeneration, detached.partialFlushGeneration))
+            resetPage(chunk, i, detached.flushGeneration);
+        chunk.entries[detached.table][i] = value;
+    }
+
+    private void nextGeneration()
+    {
+        if(generation == Integer.MAX_VALUE) {
+            tlb = new TLBChunk[INDEX_SIZE >>> CHUNK_SHIFT];
+            generation = flushGeneration = partialFlushGeneration = 0;
+        }
+        generation++;
+    }
+
+    private boolean directoryCacheValid()
+    {
+        if(directoryBlock != null && directoryBlock.getModificationCount() == directoryBlockWrites &&
+            target.getMappingGeneration() == directoryMappingGeneration)
+            return true;
+
+        Arrays.fill(directoryCached, false);
+        Memory block = target.getReadMemoryBlockAt(baseAddress);
+        if(!(block instanceof LazyCodeBlockMemory)) {
+            directoryBlock = null;
+            return false;
+        }
+        directoryBlock = (LazyCodeBlockMemory)block;
+        directoryBlockWrites = directoryBlock.getModificationCount();
+        directoryMappingGeneration = target.getMappingGeneration();
+        return true;
+    }
+
+    private int getDirectoryEntry(int directoryAddress)
+    {
+        if(!directoryCacheValid())
+            return target.getDoubleWord(directoryAddress);
+
+        int i = (directoryAddress >>> 2) & 0x3FF;
+        if(directoryCached[i])
+            return directoryEntries[i];
+
+        int value = target.getDoubleWord(directoryAddress);
+        //Only present entries, so skipping the read never changes the block's null read count.
+        if((value & 0x1) != 0) {
+            directoryEntries[i] = value;
+            directoryCached[i] = true;
+        }
+        return value;
+    }
+
+    private void setDirectoryEntry(int directoryAddress, int value)
+    {
+        boolean valid = directoryCacheValid();
+        target.setDoubleWord(directoryAddress, value);
+        if(valid) {
+            //Our own accessed/dirty update leaves the other cached entries intact.
+            int i = (directoryAddress >>> 2) & 0x3FF;
+            directoryBlockWrites = directoryBlock.getModificationCount();
+            directoryEntries[i] = value;
+            directoryCached[i] = true;
+        }
     }
 
     private void setReadIndexValue(int index, Memory value)
     {
-        try {
-            readIndex[index] = value;
-        } catch (NullPointerException e) {
-            createReadIndex()[index] = value;
+        if(detachedRead != null) {
+            setDetachedValue(detachedRead, index, value);
+            return;
         }
+        tablePresent[readTable] = true;
+        setIndexValue(readTable, index, value);
     }
 
     private Memory getReadIndexValue(int index)
     {
-        try {
-            return readIndex[index];
-        } catch (NullPointerException e) {
-            return createReadIndex()[index];
-        }
+        if(detachedRead != null)
+            return getDetachedValue(detachedRead, index);
+        tablePresent[readTable] = true;
+        return getIndexValue(readTable, index);
     }
 
     private void setWriteIndexValue(int index, Memory value)
     {
-        try {
-            writeIndex[index] = value;
-        } catch (NullPointerException e) {
-            createWriteIndex()[index] = value;
+        if(detachedWrite != null) {
+            setDetachedValue(detachedWrite, index, value);
+            return;
         }
+        tablePresent[writeTable] = true;
+        setIndexValue(writeTable, index, value);
     }
 
     private Memory getWriteIndexValue(int index)
     {
-        try {
-            return writeIndex[index];
-        } catch (NullPointerException e) {
-            return createWriteIndex()[index];
-        }
+        if(detachedWrite != null)
+            return getDetachedValue(detachedWrite, index);
+        tablePresent[writeTable] = true;
+        return getIndexValue(writeTable, index);
     }
 
     /**
@@ -322,14 +528,12 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
      */
     public void setSupervisor(boolean value)
     {
+        if(isSupervisor != value || detachedRead != null || detachedWrite != null)
+            mappingsChanged();
         isSupervisor = value;
-        if(isSupervisor) {
-            readIndex = readSupervisorIndex;
-            writeIndex = writeSupervisorIndex;
-        } else {
-           readIndex = readUserIndex;
-           writeIndex = writeUserIndex;
-        }
+        detachedRead = detachedWrite = null;
+        readTable = isSupervisor ? READ_SUPERVISOR : READ_USER;
+        writeTable = isSupervisor ? WRITE_SUPERVISOR : WRITE_USER;
     }
 
     /**
@@ -410,9 +614,9 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
     public void setWriteProtectUserPages(boolean value)
     {
         if(value) {
-            if(writeSupervisorIndex != null)
-                for(int i = 0; i < INDEX_SIZE; i++)
-                    nullIndex(writeSupervisorIndex, i);
+            for(TLBChunk chunk : tlb)
+                if(chunk != null)
+                    Arrays.fill(chunk.entries[WRITE_SUPERVISOR], null);
         }
 
         writeProtectUserPages = value;
@@ -425,40 +629,35 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
      */
     public void flush()
     {
-        for(int i = 0; i < INDEX_SIZE; i++)
-            pageSize[i] = FOUR_K;
-
-        nonGlobalPages.clear();
-
-        readUserIndex = null;
-        writeUserIndex = null;
-        readSupervisorIndex = null;
-        writeSupervisorIndex = null;
+        mappingsChanged();
+        boolean detachRead = detachedRead == null && tablePresent[readTable];
+        boolean detachWrite = detachedWrite == null && tablePresent[writeTable];
+        if(detachRead || detachWrite) {
+            //Everything goes stale below, so the chunks can be handed over as they are.
+            TLBChunk[] chunks = tlb;
+            tlb = new TLBChunk[chunks.length];
+            if(detachRead)
+                detachedRead = new DetachedTable(chunks, readTable, flushGeneration, partialFlushGeneration);
+            if(detachWrite)
+                detachedWrite = new DetachedTable(chunks, writeTable, flushGeneration, partialFlushGeneration);
+        }
+        Arrays.fill(tablePresent, false);
+        nextGeneration();
+        flushGeneration = partialFlushGeneration = generation;
+        directoryBlock = null;
     }
 
     private void partialFlush()
     {
+        mappingsChanged();
         if(globalPagesEnabled) {
-            for(Integer value : nonGlobalPages) {
-                int index = value.intValue();
-                nullIndex(readSupervisorIndex, index);
-                nullIndex(writeSupervisorIndex, index);
-                nullIndex(readUserIndex, index);
-                nullIndex(writeUserIndex, index);
-                pageSize[index] = FOUR_K;
-            }
-            nonGlobalPages.clear();
+            nextGeneration();
+            partialFlushGeneration = generation;
+            directoryBlock = null;
         } else
             flush();
     }
 
-    private static void nullIndex(Memory[] array, int index)
-    {
-        try {
-            array[index] = null;
-        } catch (NullPointerException e) {}
-    }
-
     /**
      * Changes the base address of the translation tables and flushes the
      * translation cache.
@@ -484,22 +683,15 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
      */
     public void invalidateTLBEntry(int offset)
     {
+        mappingsChanged();
         int index = offset >>> INDEX_SHIFT;
-        if(pageSize[index] == FOUR_K) {
-            nullIndex(readSupervisorIndex, index);
-            nullIndex(writeSupervisorIndex, index);
-            nullIndex(readUserIndex, index);
-            nullIndex(writeUserIndex, index);
-            nonGlobalPages.remove(Integer.valueOf(index));
+        directoryCached[offset >>> 22] = false;
+        if(getPageSize(index) == FOUR_K) {
+            clearIndex(index);
         } else {
             index &= 0xFFC00;
-            for(int i = 0; i < 1024; i++, index++) {
-                nullIndex(readSupervisorIndex, index);
-                nullIndex(writeSupervisorIndex, index);
-                nullIndex(readUserIndex, index);
-                nullIndex(writeUserIndex, index);
-                nonGlobalPages.remove(Integer.valueOf(index));
-            }
+            for(int i = 0; i < 1024; i++, index++)
+                clearIndex(index);
         }
     }
 
@@ -508,13 +700,13 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         int idx = offset >>> INDEX_SHIFT;
         if(pagingDisabled) {
             setReadIndexValue(idx, target.getReadMemoryBlockAt(offset));
-            return readIndex[idx];
+            return getReadIndexValue(idx);
         }
 
         lastAddress = offset;
 
         int directoryAddress = baseAddress | (0xFFC & (offset >>> 20)); // This should be (offset >>> 22) << 2.
-        int directoryRawBits = target.getDoubleWord(directoryAddress);
+        int directoryRawBits = getDirectoryEntry(directoryAddress);
 
         boolean directoryPresent = (0x1 & directoryRawBits) != 0;
         if(!directoryPresent) {
@@ -535,7 +727,7 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
 
             if((directoryRawBits & 0x20) == 0) {
                 directoryRawBits |= 0x20;
-                target.setDoubleWord(directoryAddress, directoryRawBits);
+                setDirectoryEntry(directoryAddress, directoryRawBits);
             }
 
             int fourMegPageStartAddress = 0xFFC00000 & directoryRawBits;
@@ -548,15 +740,15 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
             {
                 Memory m = target.getReadMemoryBlockAt(fourMegPageStartAddress);
                 fourMegPageStartAddress += BLOCK_SIZE;
-                pageSize[tableIndex] = FOUR_M;
+                setPageSize(tableIndex, FOUR_M);
                 setReadIndexValue(tableIndex++, m);
                 if(directoryGlobal)
                     continue;
 
-                nonGlobalPages.add(Integer.valueOf(i));
+                setNonGlobal(i);
             }
 
-            return readIndex[idx];
+            return getReadIndexValue(idx);
         } else {
             int directoryBaseAddress = directoryRawBits & 0xFFFFF000;
 //            boolean directoryPageLevelWriteThrough = (0x8 & directoryRawBits) != 0;
@@ -595,12 +787,12 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
             if(!pageCacheEnabled)
                 return target.getReadMemoryBlockAt(fourKStartAddress);
 
-            pageSize[idx] = FOUR_K;
+            setPageSize(idx, FOUR_K);
             if(!tableGlobal)
-                nonGlobalPages.add(Integer.valueOf(idx));
+                setNonGlobal(idx);
 
             setReadIndexValue(idx, target.getReadMemoryBlockAt(fourKStartAddress));
-            return readIndex[idx];
+            return getReadIndexValue(idx);
         }
     }
 
@@ -609,13 +801,13 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         int idx = offset >>> INDEX_SHIFT;
         if(pagingDisabled) {
             setWriteIndexValue(idx, target.getWriteMemoryBlockAt(offset));
-            return writeIndex[idx];
+            return getWriteIndexValue(idx);
         }
 
         lastAddress = offset;
 
         int directoryAddress = baseAddress | (0xFFC & (offset >>> 20)); // This should be (offset >>> 22) << 2.
-        int directoryRawBits = target.getDoubleWord(directoryAddress);
+        int directoryRawBits = getDirectoryEntry(directoryAddress);
 
         boolean directoryPresent = (0x1 & directoryRawBits) != 0;
         if(!directoryPresent) {
@@ -654,7 +846,7 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
             //Mark it dirty and accessed.
             if((directoryRawBits & 0x60) != 0x60) {
                 directoryRawBits |= 0x60;
-                target.setDoubleWord(directoryAddress, directoryRawBits);
+                setDirectoryEntry(directoryAddress, directoryRawBits);
             }
 
             int fourMegPageStartAddress = 0xFFC00000 & directoryRawBits;
@@ -666,16 +858,16 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
             for(int i=0; i<1024; i++) {
                 Memory m = target.getWriteMemoryBlockAt(fourMegPageStartAddress);
                 fourMegPageStartAddress += BLOCK_SIZE;
-                pageSize[tableIndex] = FOUR_M;
+                setPageSize(tableIndex, FOUR_M);
                 setWriteIndexValue(tableIndex++, m);
 
                 if(directoryGlobal)
                     continue;
 
-                nonGlobalPages.add(Integer.valueOf(i));
+                setNonGlobal(i);
             }
 
-            return writeIndex[idx];
+            return getWriteIndexValue(idx);
         } else {
             int directoryBaseAddress = directoryRawBits & 0xFFFFF000;
 //            boolean directoryPageLevelWriteThrough = (0x8 & directoryRawBits) != 0;
@@ -732,13 +924,13 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
             if(!pageCacheEnabled)
                 return target.getWriteMemoryBlockAt(fourKStartAddress);
 
-            pageSize[idx] = FOUR_K;
+            setPageSize(idx, FOUR_K);
 
             if(!tableGlobal)
-                nonGlobalPages.add(Integer.valueOf(idx));
+                setNonGlobal(idx);
 
             setWriteIndexValue(idx, target.getWriteMemoryBlockAt(fourKStartAddress));
-            return writeIndex[idx];
+            return getWriteIndexValue(idx);
         }
     }
 
@@ -760,32 +952,14 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
      */
     protected void replaceBlocks(Memory oldBlock, Memory newBlock)
     {
-        try {
-            for(int i = 0; i < INDEX_SIZE; i++)
-                if(readUserIndex[i] == oldBlock)
-                    readUserIndex[i] = newBlock;
-        } catch (NullPointerException e) {
-        }
-
-        try {
-            for(int i = 0; i < INDEX_SIZE; i++)
-                if(writeUserIndex[i] == oldBlock)
-                    writeUserIndex[i] = newBlock;
-        } catch (NullPointerException e) {
-        }
-
-        try {
-            for(int i = 0; i < INDEX_SIZE; i++)
-                if(readSupervisorIndex[i] == oldBlock)
-                    readSupervisorIndex[i] = newBlock;
-        } catch (NullPointerException e) {
-        }
-
-        try {
-            for(int i = 0; i < INDEX_SIZE; i++)
-                if(writeSupervisorIndex[i] == oldBlock)
-                    writeSupervisorIndex[i] = newBlock;
-        } catch (NullPointerException e) {
+        mappingsChanged();
+        for(TLBChunk chunk : tlb) {
+            if(chunk == null)
+                continue;
+            for(Memory[] entries : chunk.entries)
+                for(int i = 0; i < CHUNK_SIZE; i++)
+                    if(entries[i] == oldBlock)
+                        entries[i] = newBlock;
         }
     }
 
@@ -1118,10 +1292,8 @@ public final class LinearAddressSpace extends AddressSpace implements HardwareCo
         writeProtectUserPages = false;
         pageSizeExtensions = false;
 
-        readUserIndex = null;
-        writeUserIndex = null;
-        readSupervisorIndex = null;
-        writeSupervisorIndex = null;
+        tlb = new TLBChunk[INDEX_SIZE >>> CHUNK_SHIFT];
+        generation = flushGeneration = partialFlushGeneration = 0;
     }
 
     public boolean initialised()
@@ -0,0 +1,507 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory;
+
+import java.util.*;
+
+import org.jpc.TestCheck;
+import org.jpc.emulator.processor.ProcessorException;
+
+import static org.jpc.emulator.memory.AddressSpace.*;
+
+//Runs random page table edits, mode switches, flushes and accesses against LinearAddressSpace and against the
+//translation cache it used to have: four per-mode index arrays, no directory entry cache. Results, faults and
+//accessed/dirty bits written back to physical memory must all match.
+public class LinearAddressSpaceTest
+{
+    private static final TestCheck test = new TestCheck("Linear address space");
+    private static final int RAM_SIZE = 16 << 20;
+    private static final int[] DIRECTORIES = new int[]{0x1000, 0x2000};
+    private static final int TABLES = 0x10000;
+    private static final int TABLE_COUNT = 16;
+    private static final int FRAMES = 0x100000;
+    private static final int FRAME_COUNT = 128;
+    private static final int[] REGIONS = new int[]{0, 1, 2, 3, 512, 513, 1023};
+    private static final int PAGES = 64;
+    private static final int COMPARED = 0x200000;
+
+    private static final byte FOUR_M = (byte) 0x01;
+    private static final byte FOUR_K = (byte) 0x00;
+
+    private static class Fault extends Exception
+    {
+        private static final long serialVersionUID = 1;
+        int code;
+
+        Fault(int _code)
+        {
+            code = _code;
+        }
+    }
+
+    //LinearAddressSpace's translation cache as it was, with fault wrappers replaced by error codes.
+    private static class Reference
+    {
+        boolean isSupervisor, globalPagesEnabled, pagingDisabled = true, pageCacheEnabled, writeProtectUserPages;
+        boolean pageSizeExtensions;
+        int baseAddress, lastAddress;
+        PhysicalAddressSpace target;
+
+        byte[] pageSize = new byte[INDEX_SIZE];
+        Set<Integer> nonGlobalPages = new HashSet<Integer>();
+        Memory[] readUserIndex, readSupervisorIndex, writeUserIndex, writeSupervisorIndex, readIndex, writeIndex;
+
+        Reference(PhysicalAddressSpace _target)
+        {
+            target = _target;
+        }
+
+        private Memory[] createReadIndex()
+        {
+            if(isSupervisor)
+                return (readIndex = readSupervisorIndex = new Memory[INDEX_SIZE]);
+            else
+                return (readIndex = readUserIndex = new Memory[INDEX_SIZE]);
+        }
+
+        private Memory[] createWriteIndex()
+        {
+            if(isSupervisor)
+                return (writeIndex = writeSupervisorIndex = new Memory[INDEX_SIZE]);
+            else
+                return (writeIndex = writeUserIndex = new Memory[INDEX_SIZE]);
+        }
+
+        private void setReadIndexValue(int index, Memory value)
+        {
+            if(readIndex == null)
+                createReadIndex();
+            readIndex[index] = value;
+        }
+
+        private Memory getReadIndexValue(int index)
+        {
+            if(readIndex == null)
+                createReadIndex();
+            return readIndex[index];
+        }
+
+        private void setWriteIndexValue(int index, Memory value)
+        {
+            if(writeIndex == null)
+                createWriteIndex();
+            writeIndex[index] = value;
+        }
+
+        private Memory getWriteIndexValue(int index)
+        {
+            if(writeIndex == null)
+                createWriteIndex();
+            return writeIndex[index];
+        }
+
+        void setSupervisor(boolean value)
+        {
+            isSupervisor = value;
+            readIndex = isSupervisor ? readSupervisorIndex : readUserIndex;
+            writeIndex = isSupervisor ? writeSupervisorIndex : writeUserIndex;
+        }
+
+        void setPagingEnabled(boolean value)
+        {
+            pagingDisabled = !value;
+            flush();
+        }
+
+        void setPageSizeExtensionsEnabled(boolean value)
+        {
+            pageSizeExtensions = value;
+            flush();
+        }
+
+        void setGlobalPagesEnabled(boolean value)
+        {
+            if(globalPagesEnabled == value)
+                return;
+            globalPagesEnabled = value;
+            flush();
+        }
+
+        void setWriteProtectUserPages(boolean value)
+        {
+            if(value && writeSupervisorIndex != null)
+                Arrays.fill(writeSupervisorIndex, null);
+            writeProtectUserPages = value;
+        }
+
+        //The current read and write index keep pointing at the dropped arrays until setSupervisor().
+        void flush()
+        {
+            Arrays.fill(pageSize, FOUR_K);
+            nonGlobalPages.clear();
+            readUserIndex = writeUserIndex = readSupervisorIndex = writeSupervisorIndex = null;
+        }
+
+        private void nullIndex(int index)
+        {
+            for(Memory[] table : new Memory[][]{readSupervisorIndex, writeSupervisorIndex, readUserIndex,
+                writeUserIndex})
+                if(table != null)
+                    table[index] = null;
+        }
+
+        void setPageDirectoryBaseAddress(int address)
+        {
+            baseAddress = address & 0xFFFFF000;
+            if(globalPagesEnabled) {
+                for(Integer value : nonGlobalPages) {
+                    nullIndex(value.intValue());
+                    pageSize[value.intValue()] = FOUR_K;
+                }
+                nonGlobalPages.clear();
+            } else
+                flush();
+        }
+
+        void invalidateTLBEntry(int offset)
+        {
+            int index = offset >>> INDEX_SHIFT;
+            if(pageSize[index] == FOUR_K) {
+                nullIndex(index);
+                nonGlobalPages.remove(Integer.valueOf(index));
+            } else {
+                index &= 0xFFC00;
+                for(int i = 0; i < 1024; i++, index++) {
+                    nullIndex(index);
+                    nonGlobalPages.remove(Integer.valueOf(index));
+                }
+            }
+        }
+
+        private Memory validate(int offset, boolean write) throws Fault
+        {
+            int idx = offset >>> INDEX_SHIFT;
+            if(pagingDisabled) {
+                if(write) {
+                    setWriteIndexValue(idx, target.getWriteMemoryBlockAt(offset));
+                    return writeIndex[idx];
+                }
+                setReadIndexValue(idx, target.getReadMemoryBlockAt(offset));
+                return readIndex[idx];
+            }
+
+            lastAddress = offset;
+            int notPresent = (write ? 2 : 0) | (isSupervisor ? 0 : 4);
+            int directoryAddress = baseAddress | (0xFFC & (offset >>> 20));
+            int directoryRawBits = target.getDoubleWord(directoryAddress);
+            if((directoryRawBits & 0x1) == 0)
+                throw new Fault(notPresent);
+
+            boolean directoryGlobal = globalPagesEnabled && ((0x100 & directoryRawBits) != 0);
+            boolean directoryReadWrite = (0x2 & directoryRawBits) != 0;
+            boolean directoryUser = (0x4 & directoryRawBits) != 0;
+            int start;
+            int marked = write ? 0x60 : 0x20;
+            if(((0x80 & directoryRawBits) != 0) && pageSizeExtensions) {
+                checkAccess(directoryUser, directoryReadWrite, write);
+                if((directoryRawBits & marked) != marked)
+                    target.setDoubleWord(directoryAddress, directoryRawBits | marked);
+
+                start = 0xFFC00000 & directoryRawBits;
+                if(!pageCacheEnabled)
+                    return block(start | (offset & 0x3FFFFF), write);
+
+                int tableIndex = (0xFFC00000 & offset) >>> 12;
+                for(int i = 0; i < 1024; i++, tableIndex++, start += BLOCK_SIZE) {
+                    pageSize[tableIndex] = FOUR_M;
+                    if(write)
+                        setWriteIndexValue(tableIndex, target.getWriteMemoryBlockAt(start));
+                    else
+                        setReadIndexValue(tableIndex, target.getReadMemoryBlockAt(start));
+                    //Not tableIndex, as it always was.
+                    if(!directoryGlobal)
+                        nonGlobalPages.add(Integer.valueOf(i));
+                }
+                return write ? writeIndex[idx] : readIndex[idx];
+            }
+
+            int tableAddress = (directoryRawBits & 0xFFFFF000) | ((offset >>> 10) & 0xFFC);
+            int tableRawBits = target.getDoubleWord(tableAddress);
+            if((tableRawBits & 0x1) == 0)
+                throw new Fault(notPresent);
+
+            boolean tableGlobal = globalPagesEnabled && ((0x100 & tableRawBits) != 0);
+            boolean tableReadWrite = (0x2 & tableRawBits) != 0;
+            boolean pageIsUser = ((0x4 & tableRawBits) != 0) && directoryUser;
+            boolean pageIsReadWrite = pageIsUser ? (tableReadWrite && directoryReadWrite) :
+                (tableReadWrite || directoryReadWrite);
+            checkAccess(pageIsUser, pageIsReadWrite, write);
+            if((tableRawBits & marked) != marked)
+                target.setDoubleWord(tableAddress, tableRawBits | marked);
+
+            start = tableRawBits & 0xFFFFF000;
+            if(!pageCacheEnabled)
+                return block(start, write);
+
+            pageSize[idx] = FOUR_K;
+            if(!tableGlobal)
+                nonGlobalPages.add(Integer.valueOf(idx));
+            if(write) {
+                setWriteIndexValue(idx, target.getWriteMemoryBlockAt(start));
+                return writeIndex[idx];
+            }
+            setReadIndexValue(idx, target.getReadMemoryBlockAt(start));
+            return readIndex[idx];
+        }
+
+        private void checkAccess(boolean user, boolean readWrite, boolean write) throws Fault
+        {
+            if(!write) {
+                if(!user && !isSupervisor)
+                    throw new Fault(5);
+            } else if(user) {
+                if(!readWrite && (!isSupervisor || writeProtectUserPages))
+                    throw new Fault(isSupervisor ? 3 : 7);
+            } else if(!readWrite || !isSupervisor)
+                throw new Fault(isSupervisor ? 3 : 7);
+        }
+
+        private Memory block(int address, boolean write)
+        {
+            return write ? target.getWriteMemoryBlockAt(address) : target.getReadMemoryBlockAt(address);
+        }
+
+        int getDoubleWord(int offset) throws Fault
+        {
+            Memory m = getReadIndexValue(offset >>> INDEX_SHIFT);
+            if(m == null)
+                m = validate(offset, false);
+            return m.getDoubleWord(offset & BLOCK_MASK);
+        }
+
+        void setDoubleWord(int offset, int data) throws Fault
+        {
+            Memory m = getWriteIndexValue(offset >>> INDEX_SHIFT);
+            if(m == null)
+                m = validate(offset, true);
+            m.setDoubleWord(offset & BLOCK_MASK, data);
+        }
+
+        int getByte(int offset) throws Fault
+        {
+            Memory m = getReadIndexValue(offset >>> INDEX_SHIFT);
+            if(m == null)
+                m = validate(offset, false);
+            return m.getByte(offset & BLOCK_MASK);
+        }
+
+        void setByte(int offset, byte data) throws Fault
+        {
+            Memory m = getWriteIndexValue(offset >>> INDEX_SHIFT);
+            if(m == null)
+                m = validate(offset, true);
+            m.setByte(offset & BLOCK_MASK, data);
+        }
+    }
+
+    private static PhysicalAddressSpace newPhysical()
+    {
+        PhysicalAddressSpace physical = new PhysicalAddressSpace(null, RAM_SIZE);
+        physical.setGateA20State(true);
+        return physical;
+    }
+
+    private static int randomEntry(Random random, boolean directory)
+    {
+        int flags = random.nextInt(8) == 0 ? 0 : 1;
+        flags |= random.nextInt(4) != 0 ? 0x2 : 0;
+        flags |= random.nextInt(4) != 0 ? 0x4 : 0;
+        flags |= random.nextInt(4) == 0 ? 0x60 : 0;
+        flags |= random.nextInt(3) == 0 ? 0x100 : 0;
+        if(directory && random.nextInt(5) == 0)
+            return flags | 0x80 | (random.nextInt(2) << 22);
+        if(directory)
+            return flags | (TABLES + random.nextInt(TABLE_COUNT) * BLOCK_SIZE);
+        //Some pages map the paging structures themselves.
+        if(random.nextInt(10) == 0)
+            return flags | (random.nextBoolean() ? DIRECTORIES[random.nextInt(2)] : TABLES +
+                random.nextInt(TABLE_COUNT) * BLOCK_SIZE);
+        return flags | (FRAMES + random.nextInt(FRAME_COUNT) * BLOCK_SIZE);
+    }
+
+    private static int randomLinear(Random random)
+    {
+        return (REGIONS[random.nextInt(REGIONS.length)] << 22) | (random.nextInt(PAGES) << 12) |
+            random.nextInt(BLOCK_SIZE);
+    }
+
+    //Physical address of a page table or directory entry that the walks can reach.
+    private static int randomEntryAddress(Random random)
+    {
+        if(random.nextInt(3) == 0)
+            return DIRECTORIES[random.nextInt(2)] + 4 * REGIONS[random.nextInt(REGIONS.length)];
+        return TABLES + random.nextInt(TABLE_COUNT) * BLOCK_SIZE + 4 * random.nextInt(PAGES);
+    }
+
+    private static void comparePhysical(PhysicalAddressSpace a, PhysicalAddressSpace b, String what) throws Exception
+    {
+        for(int i = 0; i < COMPARED; i += 4)
+            if(a.getDoubleWord(i) != b.getDoubleWord(i))
+                test.fail(what + ": physical memory at " + Integer.toHexString(i));
+    }
+
+    private static String access(Reference reference, LinearAddressSpace linear, int op, int offset, int data)
+        throws Exception
+    {
+        String expected, got;
+        try {
+            if(op == 0)
+                expected = "read " + reference.getByte(offset);
+            else if(op == 1)
+                expected = "read " + reference.getDoubleWord(offset & ~3);
+            else if(op == 2) {
+                reference.setByte(offset, (byte)data);
+                expected = "written";
+            } else {
+                reference.setDoubleWord(offset & ~3, data);
+                expected = "written";
+            }
+        } catch(Fault e) {
+            expected = "fault " + e.code;
+        }
+        try {
+            if(op == 0)
+                got = "read " + linear.getByte(offset);
+            else if(op == 1)
+                got = "read " + linear.getDoubleWord(offset & ~3);
+            else if(op == 2) {
+                linear.setByte(offset, (byte)data);
+                got = "written";
+            } else {
+                linear.setDoubleWord(offset & ~3, data);
+                got = "written";
+            }
+        } catch(ProcessorException e) {
+            got = "fault " + e.getErrorCode();
+        }
+        if(!expected.equals(got))
+            return "expected " + expected + ", got " + got;
+        if(reference.lastAddress != linear.getLastWalkedAddress())
+            return "last walked address " + Integer.toHexString(linear.getLastWalkedAddress()) + ", expected " +
+                Integer.toHexString(reference.lastAddress);
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(8);
+        for(int run = 0; run < 12; run++) {
+            PhysicalAddressSpace referencePhysical = newPhysical();
+            PhysicalAddressSpace physical = newPhysical();
+            Reference reference = new Reference(referencePhysical);
+            LinearAddressSpace linear = new LinearAddressSpace();
+            linear.acceptComponent(physical);
+            physical.acceptComponent(linear);
+
+            for(int d = 0; d < DIRECTORIES.length; d++)
+                for(int region : REGIONS) {
+                    int value = randomEntry(random, true);
+                    referencePhysical.setDoubleWord(DIRECTORIES[d] + 4 * region, value);
+                    physical.setDoubleWord(DIRECTORIES[d] + 4 * region, value);
+                }
+            for(int t = 0; t < TABLE_COUNT; t++)
+                for(int p = 0; p < PAGES; p++) {
+                    int value = randomEntry(random, false);
+                    referencePhysical.setDoubleWord(TABLES + t * BLOCK_SIZE + 4 * p, value);
+                    physical.setDoubleWord(TABLES + t * BLOCK_SIZE + 4 * p, value);
+                }
+
+            boolean cache = run % 4 != 3;
+            reference.pageCacheEnabled = cache;
+            linear.setPageCacheEnabled(cache);
+            reference.setPageDirectoryBaseAddress(DIRECTORIES[0]);
+            linear.setPageDirectoryBaseAddress(DIRECTORIES[0]);
+            reference.setPagingEnabled(true);
+            linear.setPagingEnabled(true);
+
+            for(int step = 0; step < 4000; step++) {
+                String what = "run " + run + " step " + step;
+                int op = random.nextInt(100);
+                if(op < 70) {
+                    int offset = randomLinear(random);
+                    int kind = random.nextInt(4);
+                    String result = access(reference, linear, kind, offset, random.nextInt());
+                    if(result != null)
+                        test.fail(what + ": access " + kind + " at " + Integer.toHexString(offset) + ": " + result);
+                } else if(op < 80) {
+                    int address = randomEntryAddress(random);
+                    int value = randomEntry(random, address < TABLES);
+                    referencePhysical.setDoubleWord(address, value);
+                    physical.setDoubleWord(address, value);
+                } else if(op < 85) {
+                    int offset = randomLinear(random);
+                    reference.invalidateTLBEntry(offset);
+                    linear.invalidateTLBEntry(offset);
+                } else if(op < 90) {
+                    boolean supervisor = random.nextBoolean();
+                    reference.setSupervisor(supervisor);
+                    linear.setSupervisor(supervisor);
+                } else if(op < 94) {
+                    int directory = DIRECTORIES[random.nextInt(2)];
+                    reference.setPageDirectoryBaseAddress(directory);
+                    linear.setPageDirectoryBaseAddress(directory);
+                } else if(op < 95) {
+                    reference.flush();
+                    linear.flush();
+                } else if(op < 97) {
+                    boolean flag = random.nextBoolean();
+                    reference.setGlobalPagesEnabled(flag);
+                    linear.setGlobalPagesEnabled(flag);
+                } else if(op < 98) {
+                    boolean flag = random.nextBoolean();
+                    reference.setPageSizeExtensionsEnabled(flag);
+                    linear.setPageSizeExtensionsEnabled(flag);
+                } else if(op < 99) {
+                    boolean flag = random.nextBoolean();
+                    reference.setWriteProtectUserPages(flag);
+                    linear.setWriteProtectUserPages(flag);
+                } else {
+                    boolean flag = random.nextInt(4) != 0;
+                    reference.setPagingEnabled(flag);
+                    linear.setPagingEnabled(flag);
+                }
+                if(step % 500 == 0)
+                    comparePhysical(referencePhysical, physical, what);
+            }
+            comparePhysical(referencePhysical, physical, "run " + run);
+        }
+        test.passed();
+    }
+}
@@ -222,8 +222,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
             return null;
 
         Memory[] mem = new Memory[input.loadInt()];
-        for(int i = 0; i < mem.length; i++)
-            mem[i] = (Memory)(input.loadObject());
+        input.loadObjectTable(mem);
         return mem;
     }
 
@@ -268,8 +267,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
         } else {
             output.dumpBoolean(true);
             output.dumpInt(mem.length);
-            for(int i = 0; i < mem.length; i++)
-                output.dumpObject(mem[i]);
+            output.dumpObjectTable(mem);
         }
     }
 
@@ -322,6 +320,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
      * @param value status of the A20 line.
      */
     public void setGateA20State(boolean value) {
+        mappingsChanged();
         gateA20MaskState = value;
         if(value) {
             quickIndex = quickNonA20MaskedIndex;
@@ -376,6 +375,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
     }
 
     protected void replaceBlocks(Memory oldBlock, Memory newBlock) {
+        mappingsChanged();
         for(int i = 0; i < quickA20MaskedIndex.length; i++)
             if(quickA20MaskedIndex[i] == oldBlock)
                 quickA20MaskedIndex[i] = newBlock;
@@ -837,6 +837,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
     }
 
     private void setMemoryBlockAt(int i, Memory b) {
+        mappingsChanged();
         try {
             int idx = i >>> INDEX_SHIFT;
             quickNonA20MaskedIndex[idx] = b;
@@ -46,13 +46,17 @@ import org.jpc.emulator.memory.codeblock.optimised.*;
 public class CodeBlockManager implements SRDumpable
 {
     public static volatile int BLOCK_LIMIT = 1000; //minimum of 2 because of STI/CLI
+    public static volatile int COMPILE_THRESHOLD = 1000; //executions before compiling, <= 0 disables
     private CodeBlockFactory realModeChain,  protectedModeChain,  virtual8086ModeChain;
+    private CodeBlockFactory realModeEntry,  protectedModeEntry;
     private ByteSourceWrappedMemory byteSource;
 
     /**
      * Constructs a default manager.
      * <p>
-     * The default manager creates interpreted mode codeblocks.
+     * The default manager creates interpreted mode codeblocks, which get
+     * compiled to bytecode once hot unless <code>COMPILE_THRESHOLD</code> is
+     * not positive.
      */
     public CodeBlockManager()
     {
@@ -61,6 +65,15 @@ public class CodeBlockManager implements SRDumpable
         realModeChain = new DefaultCodeBlockFactory(new RealModeUDecoder(), new OptimisedCompiler(), BLOCK_LIMIT);
         protectedModeChain = new DefaultCodeBlockFactory(new ProtectedModeUDecoder(), new OptimisedCompiler(), BLOCK_LIMIT);
         virtual8086ModeChain = new DefaultCodeBlockFactory(new RealModeUDecoder(), new OptimisedCompiler(), BLOCK_LIMIT);
+
+        int threshold = COMPILE_THRESHOLD;
+        if(threshold > 0) {
+            realModeEntry = new CompilingCodeBlockFactory(realModeChain, threshold);
+            protectedModeEntry = new CompilingCodeBlockFactory(protectedModeChain, threshold);
+        } else {
+            realModeEntry = realModeChain;
+            protectedModeEntry = protectedModeChain;
+        }
     }
 
     public void dumpSRPartial(SRDumper output) throws IOException
@@ -113,7 +126,7 @@ public class CodeBlockManager implements SRDumpable
     {
         RealModeCodeBlock block;
 
-        if((block = tryRealModeFactory(realModeChain, memory, offset)) == null) {
+        if((block = tryRealModeFactory(realModeEntry, memory, offset)) == null) {
             System.err.println("Critical error: Can't find nor make suitable real mode codeblock.");
             throw new IllegalStateException("Couldn't find/make suitable realmode block");
         }
@@ -132,7 +145,7 @@ public class CodeBlockManager implements SRDumpable
     {
         ProtectedModeCodeBlock block;
 
-        if((block = tryProtectedModeFactory(protectedModeChain, memory, offset, operandSize)) == null) {
+        if((block = tryProtectedModeFactory(protectedModeEntry, memory, offset, operandSize)) == null) {
             System.err.println("Critical error: Can't find nor make suitable protected mode codeblock.");
             throw new IllegalStateException("Couldn't find/make suitable pmode block");
         }
@@ -0,0 +1,162 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory.codeblock;
+
+import org.jpc.emulator.memory.codeblock.compiled.BytecodeCompiler;
+import org.jpc.emulator.memory.codeblock.optimised.*;
+import org.jpc.emulator.processor.Processor;
+
+/**
+ * Second tier factory. Blocks from the interpreting factory are wrapped in
+ * counters and once a block has been executed often enough, it replaces itself
+ * with a block compiled to JVM bytecode (or the bare interpreted block if it
+ * can't be compiled).
+ */
+class CompilingCodeBlockFactory implements CodeBlockFactory
+{
+    private final CodeBlockFactory interpreted;
+    private final BytecodeCompiler compiler;
+    private final int threshold;
+
+    public CompilingCodeBlockFactory(CodeBlockFactory interpreted, int threshold)
+    {
+        this.interpreted = interpreted;
+        this.compiler = new BytecodeCompiler();
+        this.threshold = threshold;
+    }
+
+    public RealModeCodeBlock getRealModeCodeBlock(ByteSource source)
+    {
+        RealModeCodeBlock block = interpreted.getRealModeCodeBlock(source);
+        if(block instanceof RealModeUBlock)
+            return new CountingRealModeBlock((RealModeUBlock)block);
+        return block;
+    }
+
+    public ProtectedModeCodeBlock getProtectedModeCodeBlock(ByteSource source, boolean operandSize)
+    {
+        ProtectedModeCodeBlock block = interpreted.getProtectedModeCodeBlock(source, operandSize);
+        if(block instanceof ProtectedModeUBlock)
+            return new CountingProtectedModeBlock((ProtectedModeUBlock)block);
+        return block;
+    }
+
+    public Virtual8086ModeCodeBlock getVirtual8086ModeCodeBlock(ByteSource source)
+    {
+        //Not compiled, the V86 microcode interpreter differs too much.
+        return interpreted.getVirtual8086ModeCodeBlock(source);
+    }
+
+    private abstract class CountingBlock implements CodeBlock
+    {
+        private final CodeBlock inner;
+        private int executions;
+        private boolean invalidated;
+
+        CountingBlock(CodeBlock inner)
+        {
+            this.inner = inner;
+        }
+
+        abstract CodeBlock compile();
+
+        public int getX86Length()
+        {
+            return inner.getX86Length();
+        }
+
+        public int getX86Count()
+        {
+            return inner.getX86Count();
+        }
+
+        public int execute(Processor cpu)
+        {
+            if(++executions >= threshold && !invalidated) {
+                CodeBlock replacement = compile();
+                throw new CodeBlockReplacementException(replacement != null ? replacement : inner);
+            }
+            return inner.execute(cpu);
+        }
+
+        public String getDisplayString()
+        {
+            return inner.getDisplayString();
+        }
+
+        public boolean handleMemoryRegionChange(int startAddress, int endAddress)
+        {
+            return inner.handleMemoryRegionChange(startAddress, endAddress);
+        }
+
+        public void invalidate()
+        {
+            invalidated = true;
+            inner.invalidate();
+        }
+
+        public String toString()
+        {
+            return inner.toString();
+        }
+    }
+
+    private class CountingRealModeBlock extends CountingBlock implements RealModeCodeBlock
+    {
+        private final RealModeUBlock block;
+
+        CountingRealModeBlock(RealModeUBlock block)
+        {
+            super(block);
+            this.block = block;
+        }
+
+        CodeBlock compile()
+        {
+            return compiler.getRealModeCodeBlock(block.getAsInstructionSource());
+        }
+    }
+
+    private class CountingProtectedModeBlock extends CountingBlock implements ProtectedModeCodeBlock
+    {
+        private final ProtectedModeUBlock block;
+
+        CountingProtectedModeBlock(ProtectedModeUBlock block)
+        {
+            super(block);
+            this.block = block;
+        }
+
+        CodeBlock compile()
+        {
+            return compiler.getProtectedModeCodeBlock(block.getAsInstructionSource());
+        }
+    }
+}
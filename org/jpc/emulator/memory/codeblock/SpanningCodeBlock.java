@@ -29,16 +29,24 @@
 
 package org.jpc.emulator.memory.codeblock;
 
+import org.jpc.emulator.memory.AddressSpace;
 import org.jpc.emulator.processor.Processor;
 
 /**
- * Abstract <code>CodeBlock</code> instance that never caches a decode result.
- * This is necessary for blocks that span memory boundaries.
+ * Abstract <code>CodeBlock</code> instance for blocks that span memory boundaries.
+ * <p>
+ * Only the first page gets notified of writes, so the last decode result is
+ * reused only if the code bytes, read through the current mapping, are still the
+ * same.
  * @author Chris Dennis
  */
 public abstract class SpanningCodeBlock implements CodeBlock
 {
     private CodeBlock lastBlock;
+    private AddressSpace lastSpace;
+    private int lastAddress;
+    private boolean lastSizeFlag;
+    private byte[] lastBytes;
 
     public int getX86Length()
     {
@@ -56,10 +64,41 @@ public abstract class SpanningCodeBlock implements CodeBlock
 
     public int execute(Processor cpu)
     {
-        lastBlock = decode(cpu);
+        AddressSpace space = getCodeSpace(cpu);
+        int address = cpu.getInstructionPointer();
+        boolean sizeFlag = getSizeFlag(cpu);
+
+        if(!isDecodeCached(space, address, sizeFlag)) {
+            lastBytes = null;
+            lastBlock = decode(cpu);
+            cacheDecode(space, address, sizeFlag);
+        }
         return lastBlock.execute(cpu);
     }
 
+    private boolean isDecodeCached(AddressSpace space, int address, boolean sizeFlag)
+    {
+        if(lastBytes == null || space != lastSpace || address != lastAddress || sizeFlag != lastSizeFlag)
+            return false;
+        for(int i = 0; i < lastBytes.length; i++)
+            if(space.getByte(address + i) != lastBytes[i])
+                return false;
+        return true;
+    }
+
+    private void cacheDecode(AddressSpace space, int address, boolean sizeFlag)
+    {
+        if(lastBlock == null)
+            return;
+        byte[] bytes = new byte[lastBlock.getX86Length()];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = space.getByte(address + i);
+        lastSpace = space;
+        lastAddress = address;
+        lastSizeFlag = sizeFlag;
+        lastBytes = bytes;
+    }
+
     /**
      * Forces a new decode on the current memory state.
      * @param cpu processor state on which we are about to execute
@@ -67,16 +106,34 @@ public abstract class SpanningCodeBlock implements CodeBlock
      */
     protected abstract CodeBlock decode(Processor cpu);
 
+    /**
+     * Returns the address space code is decoded from.
+     * @param cpu processor state on which we are about to execute
+     * @return address space instruction pointer refers to
+     */
+    protected abstract AddressSpace getCodeSpace(Processor cpu);
+
+    /**
+     * Returns the default operand size flag the decode depends on.
+     * @param cpu processor state on which we are about to execute
+     * @return operand size flag, <code>false</code> if decode doesn't depend on it
+     */
+    protected boolean getSizeFlag(Processor cpu)
+    {
+        return false;
+    }
+
     /**
      * Indicates whether this block can handle a change in the memory contents
      * over the given range.  Spanning blocks always return <code>true</code>
-     * here as they never cache decode results.
+     * here, dropping the cached decode result.
      * @param startAddress offset of first byte in range (inclusive)
      * @param endAddress offset of last byte in range (exclusive)
      * @return whether code block has been invalidated
      */
     public boolean handleMemoryRegionChange(int startAddress, int endAddress)
     {
+        lastBytes = null;
         return true;
     }
 
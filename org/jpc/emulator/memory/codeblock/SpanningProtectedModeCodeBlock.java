@@ -70,6 +70,16 @@ class SpanningProtectedModeCodeBlock extends SpanningCodeBlock implements Protec
         return block;
     }
 
+    protected AddressSpace getCodeSpace(Processor cpu)
+    {
+        return cpu.linearMemory;
+    }
+
+    protected boolean getSizeFlag(Processor cpu)
+    {
+        return cpu.cs.getDefaultSizeFlag();
+    }
+
     public String toString()
     {
         return "Spanning Protected Mode CodeBlock";
@@ -63,6 +63,11 @@ class SpanningRealModeCodeBlock extends SpanningCodeBlock implements RealModeCod
         return block;
     }
 
+    protected AddressSpace getCodeSpace(Processor cpu)
+    {
+        return cpu.physicalMemory;
+    }
+
     public String toString()
     {
         return "Spanning Real Mode CodeBlock";
@@ -63,6 +63,11 @@ class SpanningVirtual8086ModeCodeBlock extends SpanningCodeBlock implements Virt
         return block;
     }
 
+    protected AddressSpace getCodeSpace(Processor cpu)
+    {
+        return cpu.linearMemory;
+    }
+
     public String toString()
     {
         return "Spanning Virtual8086 Mode CodeBlock";
@@ -0,0 +1,811 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory.codeblock.compiled;
+
+import java.io.*;
+
+import org.jpc.emulator.memory.codeblock.*;
+
+import static org.jpc.emulator.memory.codeblock.optimised.MicrocodeSet.*;
+
+/**
+ * Translates microcode sequences into dedicated JVM classes.
+ * <p>
+ * Each microcode is expanded inline, with the <code>reg0</code>, <code>reg1</code>,
+ * <code>reg2</code>, <code>addr0</code> and <code>seg0</code> working registers of
+ * the interpreter held in JVM locals and immediates folded into constants. Only a
+ * subset of the microcode set is understood; blocks using anything else are left
+ * to the interpreter. The generated code performs exactly the same processor state
+ * updates, in the same order, as the interpreted blocks.
+ */
+public class BytecodeCompiler
+{
+    //HotSpot refuses to JIT methods larger than this, which would make the block slower than interpreting.
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    private static final String PROCESSOR = "org/jpc/emulator/processor/Processor";
+    private static final String SEGMENT = "org/jpc/emulator/processor/Segment";
+    private static final String BASE = "org/jpc/emulator/memory/codeblock/compiled/CompiledCodeBlock";
+    private static final String PROTECTED_BASE = "org/jpc/emulator/memory/codeblock/compiled/CompiledProtectedModeBlock";
+    private static final String REAL_BASE = "org/jpc/emulator/memory/codeblock/compiled/CompiledRealModeBlock";
+    private static final String CLASS_PREFIX = "org/jpc/emulator/memory/codeblock/compiled/CompiledBlock";
+    private static final String P = "L" + PROCESSOR + ";";
+
+    private static final int REG0 = 2;
+    private static final int REG1 = 3;
+    private static final int REG2 = 4;
+    private static final int ADDR0 = 5;
+    private static final int SEG0 = 6;
+    private static final int LOCALS = 7;
+
+    private static int classCounter = 0;
+
+    private int[] bufferMicrocodes;
+    private int[] bufferPositions;
+    private int bufferOffset;
+
+    private boolean protectedMode;
+    private String superName;
+    private ClassFileBuilder classFile;
+    private ByteArrayOutputStream code;
+
+    public BytecodeCompiler()
+    {
+        bufferMicrocodes = new int[100];
+        bufferPositions = new int[100];
+        bufferOffset = 0;
+    }
+
+    /**
+     * Compiles a protected mode block.
+     * @param source instructions read from here.
+     * @return compiled block, or <code>null</code> if the block can't be compiled.
+     */
+    public ProtectedModeCodeBlock getProtectedModeCodeBlock(InstructionSource source)
+    {
+        return (ProtectedModeCodeBlock)compile(source, true);
+    }
+
+    /**
+     * Compiles a real mode block.
+     * @param source instructions read from here.
+     * @return compiled block, or <code>null</code> if the block can't be compiled.
+     */
+    public RealModeCodeBlock getRealModeCodeBlock(InstructionSource source)
+    {
+        return (RealModeCodeBlock)compile(source, false);
+    }
+
+    private CodeBlock compile(InstructionSource source, boolean protectedMode)
+    {
+        buildCodeBlockBuffers(source);
+        int[] microcodes = new int[bufferOffset];
+        int[] positions = new int[bufferOffset];
+        System.arraycopy(bufferMicrocodes, 0, microcodes, 0, bufferOffset);
+        System.arraycopy(bufferPositions, 0, positions, 0, bufferOffset);
+
+        this.protectedMode = protectedMode;
+        superName = protectedMode ? PROTECTED_BASE : REAL_BASE;
+        String name = CLASS_PREFIX + (classCounter++);
+        classFile = new ClassFileBuilder(name, superName);
+        code = new ByteArrayOutputStream();
+
+        try {
+            if(!translate(microcodes, positions))
+                return null;
+            if(code.size() > HUGE_METHOD_LIMIT)
+                return null;
+
+            ByteArrayOutputStream init = new ByteArrayOutputStream();
+            init.write(0x2a);   //aload_0
+            init.write(0x2b);   //aload_1
+            init.write(0x2c);   //aload_2
+            init.write(0xb7);   //invokespecial
+            writeShort(init, classFile.methodConstant(superName, "<init>", "([I[I)V"));
+            init.write(0xb1);   //return
+            classFile.addMethod(ClassFileBuilder.ACC_PUBLIC, "<init>", "([I[I)V", 3, 3, init.toByteArray());
+            classFile.addMethod(ClassFileBuilder.ACC_PROTECTED, "run", "(" + P + ")V", 8, LOCALS,
+                code.toByteArray());
+
+            Class<?> clazz = new BlockClassLoader().define(name.replace('/', '.'), classFile.toByteArray());
+            return (CodeBlock)clazz.getConstructor(int[].class, int[].class).newInstance(microcodes, positions);
+        } catch(Exception e) {
+            System.err.println("Warning: Failed to compile block: " + e);
+            return null;
+        } catch(LinkageError e) {
+            System.err.println("Warning: Generated block failed to load: " + e);
+            return null;
+        } finally {
+            classFile = null;
+            code = null;
+        }
+    }
+
+    private void buildCodeBlockBuffers(InstructionSource source)
+    {
+        bufferOffset = 0;
+        int position = 0;
+
+        while(source.getNext()) {
+            int uCodeLength = source.getLength();
+            int uCodeX86Length = source.getX86Length();
+            position += uCodeX86Length;
+
+            for(int i = 0; i < uCodeLength; i++) {
+                int data = source.getMicrocode();
+                try {
+                    bufferMicrocodes[bufferOffset] = data;
+                    bufferPositions[bufferOffset] = position;
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    int[] newMicrocodes = new int[bufferMicrocodes.length * 2];
+                    int[] newPositions = new int[bufferMicrocodes.length * 2];
+                    System.arraycopy(bufferMicrocodes, 0, newMicrocodes, 0, bufferMicrocodes.length);
+                    System.arraycopy(bufferPositions, 0, newPositions, 0, bufferPositions.length);
+                    bufferMicrocodes = newMicrocodes;
+                    bufferPositions = newPositions;
+                    bufferMicrocodes[bufferOffset] = data;
+                    bufferPositions[bufferOffset] = position;
+                }
+                bufferOffset++;
+            }
+        }
+    }
+
+    private boolean translate(int[] microcodes, int[] positions)
+    {
+        //All working registers start out cleared, like in the interpreter.
+        iconst(0); istore(REG0);
+        iconst(0); istore(REG1);
+        iconst(0); istore(REG2);
+        iconst(0); istore(ADDR0);
+        op(0x01); astore(SEG0);    //aconst_null
+
+        int position = 0;
+        while(position < microcodes.length) {
+            int index = position++;
+            int microcode = microcodes[index];
+            switch(microcode) {
+            case EIP_UPDATE:
+                op(0x2a); op(0x2b); iconst(positions[index]);
+                invoke(0xb6, BASE, "updateEIP", "(" + P + "I)V");
+                break;
+            case INSTRUCTION_START:
+                setPosition(index);
+                op(0x2a); op(0x2b);
+                invoke(0xb6, BASE, "instructionStart", "(" + P + ")V");
+                break;
+
+            case MEM_RESET: iconst(0); istore(ADDR0); op(0x01); astore(SEG0); break;
+
+            case LOAD0_EAX: loadRegister(REG0, "eax", 0, -1); break;
+            case LOAD0_ECX: loadRegister(REG0, "ecx", 0, -1); break;
+            case LOAD0_EDX: loadRegister(REG0, "edx", 0, -1); break;
+            case LOAD0_EBX: loadRegister(REG0, "ebx", 0, -1); break;
+            case LOAD0_ESP: loadRegister(REG0, "esp", 0, -1); break;
+            case LOAD0_EBP: loadRegister(REG0, "ebp", 0, -1); break;
+            case LOAD0_ESI: loadRegister(REG0, "esi", 0, -1); break;
+            case LOAD0_EDI: loadRegister(REG0, "edi", 0, -1); break;
+
+            case LOAD1_EAX: loadRegister(REG1, "eax", 0, -1); break;
+            case LOAD1_ECX: loadRegister(REG1, "ecx", 0, -1); break;
+            case LOAD1_EDX: loadRegister(REG1, "edx", 0, -1); break;
+            case LOAD1_EBX: loadRegister(REG1, "ebx", 0, -1); break;
+            case LOAD1_ESP: loadRegister(REG1, "esp", 0, -1); break;
+            case LOAD1_EBP: loadRegister(REG1, "ebp", 0, -1); break;
+            case LOAD1_ESI: loadRegister(REG1, "esi", 0, -1); break;
+            case LOAD1_EDI: loadRegister(REG1, "edi", 0, -1); break;
+
+            case STORE0_EAX: storeRegister(REG0, "eax", 0, -1); break;
+            case STORE0_ECX: storeRegister(REG0, "ecx", 0, -1); break;
+            case STORE0_EDX: storeRegister(REG0, "edx", 0, -1); break;
+            case STORE0_EBX: storeRegister(REG0, "ebx", 0, -1); break;
+            case STORE0_ESP: storeRegister(REG0, "esp", 0, -1); break;
+            case STORE0_EBP: storeRegister(REG0, "ebp", 0, -1); break;
+            case STORE0_ESI: storeRegister(REG0, "esi", 0, -1); break;
+            case STORE0_EDI: storeRegister(REG0, "edi", 0, -1); break;
+
+            case STORE1_EAX: storeRegister(REG1, "eax", 0, -1); break;
+            case STORE1_ECX: storeRegister(REG1, "ecx", 0, -1); break;
+            case STORE1_EDX: storeRegister(REG1, "edx", 0, -1); break;
+            case STORE1_EBX: storeRegister(REG1, "ebx", 0, -1); break;
+            case STORE1_ESP: storeRegister(REG1, "esp", 0, -1); break;
+            case STORE1_EBP: storeRegister(REG1, "ebp", 0, -1); break;
+            case STORE1_ESI: storeRegister(REG1, "esi", 0, -1); break;
+            case STORE1_EDI: storeRegister(REG1, "edi", 0, -1); break;
+
+            case LOAD0_AX: loadRegister(REG0, "eax", 0, 0xffff); break;
+            case LOAD0_CX: loadRegister(REG0, "ecx", 0, 0xffff); break;
+            case LOAD0_DX: loadRegister(REG0, "edx", 0, 0xffff); break;
+            case LOAD0_BX: loadRegister(REG0, "ebx", 0, 0xffff); break;
+            case LOAD0_SP: loadRegister(REG0, "esp", 0, 0xffff); break;
+            case LOAD0_BP: loadRegister(REG0, "ebp", 0, 0xffff); break;
+            case LOAD0_SI: loadRegister(REG0, "esi", 0, 0xffff); break;
+            case LOAD0_DI: loadRegister(REG0, "edi", 0, 0xffff); break;
+
+            case STORE0_AX: storeRegister(REG0, "eax", 0, 0xffff); break;
+            case STORE0_CX: storeRegister(REG0, "ecx", 0, 0xffff); break;
+            case STORE0_DX: storeRegister(REG0, "edx", 0, 0xffff); break;
+            case STORE0_BX: storeRegister(REG0, "ebx", 0, 0xffff); break;
+            case STORE0_SP: storeRegister(REG0, "esp", 0, 0xffff); break;
+            case STORE0_BP: storeRegister(REG0, "ebp", 0, 0xffff); break;
+            case STORE0_SI: storeRegister(REG0, "esi", 0, 0xffff); break;
+            case STORE0_DI: storeRegister(REG0, "edi", 0, 0xffff); break;
+
+            case STORE1_AX: storeRegister(REG1, "eax", 0, 0xffff); break;
+            case STORE1_CX: storeRegister(REG1, "ecx", 0, 0xffff); break;
+            case STORE1_DX: storeRegister(REG1, "edx", 0, 0xffff); break;
+            case STORE1_BX: storeRegister(REG1, "ebx", 0, 0xffff); break;
+            case STORE1_SP: storeRegister(REG1, "esp", 0, 0xffff); break;
+            case STORE1_BP: storeRegister(REG1, "ebp", 0, 0xffff); break;
+            case STORE1_SI: storeRegister(REG1, "esi", 0, 0xffff); break;
+            case STORE1_DI: storeRegister(REG1, "edi", 0, 0xffff); break;
+
+            case LOAD1_AX: loadRegister(REG1, "eax", 0, 0xffff); break;
+            case LOAD1_CX: loadRegister(REG1, "ecx", 0, 0xffff); break;
+            case LOAD1_DX: loadRegister(REG1, "edx", 0, 0xffff); break;
+            case LOAD1_BX: loadRegister(REG1, "ebx", 0, 0xffff); break;
+            case LOAD1_SP: loadRegister(REG1, "esp", 0, 0xffff); break;
+            case LOAD1_BP: loadRegister(REG1, "ebp", 0, 0xffff); break;
+            case LOAD1_SI: loadRegister(REG1, "esi", 0, 0xffff); break;
+            case LOAD1_DI: loadRegister(REG1, "edi", 0, 0xffff); break;
+
+            case LOAD0_AL: loadRegister(REG0, "eax", 0, 0xff); break;
+            case LOAD0_CL: loadRegister(REG0, "ecx", 0, 0xff); break;
+            case LOAD0_DL: loadRegister(REG0, "edx", 0, 0xff); break;
+            case LOAD0_BL: loadRegister(REG0, "ebx", 0, 0xff); break;
+            case LOAD0_AH: loadRegister(REG0, "eax", 8, 0xff); break;
+            case LOAD0_CH: loadRegister(REG0, "ecx", 8, 0xff); break;
+            case LOAD0_DH: loadRegister(REG0, "edx", 8, 0xff); break;
+            case LOAD0_BH: loadRegister(REG0, "ebx", 8, 0xff); break;
+
+            case STORE0_AL: storeRegister(REG0, "eax", 0, 0xff); break;
+            case STORE0_CL: storeRegister(REG0, "ecx", 0, 0xff); break;
+            case STORE0_DL: storeRegister(REG0, "edx", 0, 0xff); break;
+            case STORE0_BL: storeRegister(REG0, "ebx", 0, 0xff); break;
+            case STORE0_AH: storeRegister(REG0, "eax", 8, 0xff); break;
+            case STORE0_CH: storeRegister(REG0, "ecx", 8, 0xff); break;
+            case STORE0_DH: storeRegister(REG0, "edx", 8, 0xff); break;
+            case STORE0_BH: storeRegister(REG0, "ebx", 8, 0xff); break;
+
+            case LOAD1_AL: loadRegister(REG1, "eax", 0, 0xff); break;
+            case LOAD1_CL: loadRegister(REG1, "ecx", 0, 0xff); break;
+            case LOAD1_DL: loadRegister(REG1, "edx", 0, 0xff); break;
+            case LOAD1_BL: loadRegister(REG1, "ebx", 0, 0xff); break;
+            case LOAD1_AH: loadRegister(REG1, "eax", 8, 0xff); break;
+            case LOAD1_CH: loadRegister(REG1, "ecx", 8, 0xff); break;
+            case LOAD1_DH: loadRegister(REG1, "edx", 8, 0xff); break;
+            case LOAD1_BH: loadRegister(REG1, "ebx", 8, 0xff); break;
+
+            case STORE1_AL: storeRegister(REG1, "eax", 0, 0xff); break;
+            case STORE1_CL: storeRegister(REG1, "ecx", 0, 0xff); break;
+            case STORE1_DL: storeRegister(REG1, "edx", 0, 0xff); break;
+            case STORE1_BL: storeRegister(REG1, "ebx", 0, 0xff); break;
+            case STORE1_AH: storeRegister(REG1, "eax", 8, 0xff); break;
+            case STORE1_CH: storeRegister(REG1, "ecx", 8, 0xff); break;
+            case STORE1_DH: storeRegister(REG1, "edx", 8, 0xff); break;
+            case STORE1_BH: storeRegister(REG1, "ebx", 8, 0xff); break;
+
+            case LOAD0_IB: iconst(microcodes[position++] & 0xff); istore(REG0); break;
+            case LOAD0_IW: iconst(microcodes[position++] & 0xffff); istore(REG0); break;
+            case LOAD0_ID: iconst(microcodes[position++]); istore(REG0); break;
+
+            case LOAD1_IB: iconst(microcodes[position++] & 0xff); istore(REG1); break;
+            case LOAD1_IW: iconst(microcodes[position++] & 0xffff); istore(REG1); break;
+            case LOAD1_ID: iconst(microcodes[position++]); istore(REG1); break;
+
+            case LOAD2_EAX: loadRegister(REG2, "eax", 0, -1); break;
+            case LOAD2_AX: loadRegister(REG2, "eax", 0, 0xffff); break;
+            case LOAD2_AL: loadRegister(REG2, "eax", 0, 0xff); break;
+            //The two interpreters disagree on this one.
+            case LOAD2_CL: loadRegister(REG2, "ecx", 0, protectedMode ? 0xffff : 0xff); break;
+            case LOAD2_IB: iconst(microcodes[position++] & 0xff); istore(REG2); break;
+
+            case LOAD_SEG_ES: loadSegment("es"); break;
+            case LOAD_SEG_CS: loadSegment("cs"); break;
+            case LOAD_SEG_SS: loadSegment("ss"); break;
+            case LOAD_SEG_DS: loadSegment("ds"); break;
+            case LOAD_SEG_FS: loadSegment("fs"); break;
+            case LOAD_SEG_GS: loadSegment("gs"); break;
+
+            case ADDR_REG1:
+            case ADDR_2REG1:
+            case ADDR_4REG1:
+            case ADDR_8REG1:
+                //No scaled index addressing in real mode interpreter.
+                if(!protectedMode)
+                    return false;
+                iload(ADDR0); iload(REG1);
+                shiftLeft(microcode == ADDR_REG1 ? 0 : (microcode == ADDR_2REG1 ? 1 :
+                    (microcode == ADDR_4REG1 ? 2 : 3)));
+                op(0x60); istore(ADDR0);     //iadd
+                break;
+
+            case ADDR_EAX: addressRegister("eax", 0); break;
+            case ADDR_ECX: addressRegister("ecx", 0); break;
+            case ADDR_EDX: addressRegister("edx", 0); break;
+            case ADDR_EBX: addressRegister("ebx", 0); break;
+            case ADDR_ESP: addressRegister("esp", 0); break;
+            case ADDR_EBP: addressRegister("ebp", 0); break;
+            case ADDR_ESI: addressRegister("esi", 0); break;
+            case ADDR_EDI: addressRegister("edi", 0); break;
+
+            case ADDR_AX: addressRegister("eax", -1); break;
+            case ADDR_CX: addressRegister("ecx", -1); break;
+            case ADDR_DX: addressRegister("edx", -1); break;
+            case ADDR_BX: addressRegister("ebx", -1); break;
+            case ADDR_SP: addressRegister("esp", -1); break;
+            case ADDR_BP: addressRegister("ebp", -1); break;
+            case ADDR_SI: addressRegister("esi", -1); break;
+            case ADDR_DI: addressRegister("edi", -1); break;
+
+            case ADDR_2EAX: addressRegister("eax", 1); break;
+            case ADDR_2ECX: addressRegister("ecx", 1); break;
+            case ADDR_2EDX: addressRegister("edx", 1); break;
+            case ADDR_2EBX: addressRegister("ebx", 1); break;
+            case ADDR_2ESP: addressRegister("esp", 1); break;
+            case ADDR_2EBP: addressRegister("ebp", 1); break;
+            case ADDR_2ESI: addressRegister("esi", 1); break;
+            case ADDR_2EDI: addressRegister("edi", 1); break;
+
+            case ADDR_4EAX: addressRegister("eax", 2); break;
+            case ADDR_4ECX: addressRegister("ecx", 2); break;
+            case ADDR_4EDX: addressRegister("edx", 2); break;
+            case ADDR_4EBX: addressRegister("ebx", 2); break;
+            case ADDR_4ESP: addressRegister("esp", 2); break;
+            case ADDR_4EBP: addressRegister("ebp", 2); break;
+            case ADDR_4ESI: addressRegister("esi", 2); break;
+            case ADDR_4EDI: addressRegister("edi", 2); break;
+
+            case ADDR_8EAX: addressRegister("eax", 3); break;
+            case ADDR_8ECX: addressRegister("ecx", 3); break;
+            case ADDR_8EDX: addressRegister("edx", 3); break;
+            case ADDR_8EBX: addressRegister("ebx", 3); break;
+            case ADDR_8ESP: addressRegister("esp", 3); break;
+            case ADDR_8EBP: addressRegister("ebp", 3); break;
+            case ADDR_8ESI: addressRegister("esi", 3); break;
+            case ADDR_8EDI: addressRegister("edi", 3); break;
+
+            case ADDR_IB: iload(ADDR0); iconst((byte)microcodes[position++]); op(0x60); istore(ADDR0); break;
+            case ADDR_IW: iload(ADDR0); iconst((short)microcodes[position++]); op(0x60); istore(ADDR0); break;
+            case ADDR_ID: iload(ADDR0); iconst(microcodes[position++]); op(0x60); istore(ADDR0); break;
+
+            case ADDR_MASK16: iload(ADDR0); iconst(0xffff); op(0x7e); istore(ADDR0); break;
+
+            case ADDR_uAL:
+                iload(ADDR0); iconst(0xff); getRegister("eax"); op(0x7e); op(0x60); istore(ADDR0);
+                break;
+
+            case LOAD0_ADDR: iload(ADDR0); istore(REG0); break;
+
+            case LOAD0_MEM_BYTE: loadMemory(index, REG0, "getByte", "B", 0xff); break;
+            case LOAD0_MEM_WORD: loadMemory(index, REG0, "getWord", "S", 0xffff); break;
+            case LOAD0_MEM_DWORD: loadMemory(index, REG0, "getDoubleWord", "I", -1); break;
+
+            case LOAD1_MEM_BYTE: loadMemory(index, REG1, "getByte", "B", 0xff); break;
+            case LOAD1_MEM_WORD: loadMemory(index, REG1, "getWord", "S", 0xffff); break;
+            case LOAD1_MEM_DWORD: loadMemory(index, REG1, "getDoubleWord", "I", -1); break;
+
+            case STORE0_MEM_BYTE: storeMemory(index, REG0, "setByte", "B"); break;
+            case STORE0_MEM_WORD: storeMemory(index, REG0, "setWord", "S"); break;
+            case STORE0_MEM_DWORD: storeMemory(index, REG0, "setDoubleWord", "I"); break;
+
+            case STORE1_MEM_BYTE: storeMemory(index, REG1, "setByte", "B"); break;
+            case STORE1_MEM_WORD: storeMemory(index, REG1, "setWord", "S"); break;
+            case STORE1_MEM_DWORD: storeMemory(index, REG1, "setDoubleWord", "I"); break;
+
+            case XOR: iload(REG0); iload(REG1); op(0x82); istore(REG0); break;
+            case AND: iload(REG0); iload(REG1); op(0x7e); istore(REG0); break;
+            case OR: iload(REG0); iload(REG1); op(0x80); istore(REG0); break;
+            case NOT: iload(REG0); iconst(-1); op(0x82); istore(REG0); break;
+
+            case SUB: iload(REG0); istore(REG2); iload(REG2); iload(REG1); op(0x64); istore(REG0); break;
+            case SBB:
+                iload(REG0); istore(REG2); iload(REG2); iload(REG1); op(0x2b); carry(); op(0x60); op(0x64);
+                istore(REG0);
+                break;
+            case ADD: iload(REG0); istore(REG2); iload(REG2); iload(REG1); op(0x60); istore(REG0); break;
+            case ADC:
+                iload(REG0); istore(REG2); iload(REG2); iload(REG1); op(0x60); op(0x2b); carry(); op(0x60);
+                istore(REG0);
+                break;
+            case NEG: iload(REG0); op(0x74); istore(REG0); break;
+            case INC: iinc(REG0, 1); break;
+            case DEC: iinc(REG0, -1); break;
+
+            case SIGN_EXTEND_8_16: iload(REG0); op(0x91); iconst(0xffff); op(0x7e); istore(REG0); break;
+            case SIGN_EXTEND_8_32: iload(REG0); op(0x91); istore(REG0); break;
+            case SIGN_EXTEND_16_32: iload(REG0); op(0x93); istore(REG0); break;
+
+            case CLC: op(0x2b); iconst(0); invoke(0xb6, PROCESSOR, "setCarryFlag", "(Z)V"); break;
+            case STC: op(0x2b); iconst(1); invoke(0xb6, PROCESSOR, "setCarryFlag", "(Z)V"); break;
+            case CLD: op(0x2b); iconst(0); putField(PROCESSOR, "eflagsDirection", "Z"); break;
+            case STD: op(0x2b); iconst(1); putField(PROCESSOR, "eflagsDirection", "Z"); break;
+            case CMC: op(0x2b); invoke(0xb8, BASE, "cmc", "(" + P + ")V"); break;
+            case CWD: op(0x2b); invoke(0xb8, BASE, "cwd", "(" + P + ")V"); break;
+            case CDQ: op(0x2b); invoke(0xb8, BASE, "cdq", "(" + P + ")V"); break;
+
+            case BITWISE_FLAGS_O8: flags("bitwise_flags", 0x91); break;
+            case BITWISE_FLAGS_O16: flags("bitwise_flags", 0x93); break;
+            case BITWISE_FLAGS_O32: flags("bitwise_flags", 0); break;
+
+            case SUB_O8_FLAGS: arithmeticFlags("sub_o8_flags", true); break;
+            case SUB_O16_FLAGS: arithmeticFlags("sub_o16_flags", true); break;
+            case SUB_O32_FLAGS: arithmeticFlags("sub_o32_flags", false); break;
+
+            case ADD_O8_FLAGS: arithmeticFlags("add_o8_flags", true); break;
+            case ADD_O16_FLAGS: arithmeticFlags("add_o16_flags", true); break;
+            case ADD_O32_FLAGS: arithmeticFlags("add_o32_flags", false); break;
+
+            case ADC_O8_FLAGS: arithmeticFlags("adc_o8_flags", true); break;
+            case ADC_O16_FLAGS: arithmeticFlags("adc_o16_flags", true); break;
+            case ADC_O32_FLAGS: arithmeticFlags("adc_o32_flags", false); break;
+
+            case SBB_O8_FLAGS: arithmeticFlags("sbb_o8_flags", true); break;
+            case SBB_O16_FLAGS: arithmeticFlags("sbb_o16_flags", true); break;
+            case SBB_O32_FLAGS: arithmeticFlags("sbb_o32_flags", false); break;
+
+            case INC_O8_FLAGS: flags("inc_flags", 0x91); break;
+            case INC_O16_FLAGS: flags("inc_flags", 0x93); break;
+            case INC_O32_FLAGS: flags("inc_flags", 0); break;
+
+            case DEC_O8_FLAGS: flags("dec_flags", 0x91); break;
+            case DEC_O16_FLAGS: flags("dec_flags", 0x93); break;
+            case DEC_O32_FLAGS: flags("dec_flags", 0); break;
+
+            case NEG_O8_FLAGS: flags("neg_flags", 0x91); break;
+            case NEG_O16_FLAGS: flags("neg_flags", 0x93); break;
+            case NEG_O32_FLAGS: flags("neg_flags", 0); break;
+
+            case JO_O8: jump(index, 0, 8); break;
+            case JNO_O8: jump(index, 1, 8); break;
+            case JC_O8: jump(index, 2, 8); break;
+            case JNC_O8: jump(index, 3, 8); break;
+            case JZ_O8: jump(index, 4, 8); break;
+            case JNZ_O8: jump(index, 5, 8); break;
+            case JNA_O8: jump(index, 6, 8); break;
+            case JA_O8: jump(index, 7, 8); break;
+            case JS_O8: jump(index, 8, 8); break;
+            case JNS_O8: jump(index, 9, 8); break;
+            case JP_O8: jump(index, 10, 8); break;
+            case JNP_O8: jump(index, 11, 8); break;
+            case JL_O8: jump(index, 12, 8); break;
+            case JNL_O8: jump(index, 13, 8); break;
+            case JNG_O8: jump(index, 14, 8); break;
+            case JG_O8: jump(index, 15, 8); break;
+
+            case JO_O16: jump(index, 0, 16); break;
+            case JNO_O16: jump(index, 1, 16); break;
+            case JC_O16: jump(index, 2, 16); break;
+            case JNC_O16: jump(index, 3, 16); break;
+            case JZ_O16: jump(index, 4, 16); break;
+            case JNZ_O16: jump(index, 5, 16); break;
+            case JNA_O16: jump(index, 6, 16); break;
+            case JA_O16: jump(index, 7, 16); break;
+            case JS_O16: jump(index, 8, 16); break;
+            case JNS_O16: jump(index, 9, 16); break;
+            case JP_O16: jump(index, 10, 16); break;
+            case JNP_O16: jump(index, 11, 16); break;
+            case JL_O16: jump(index, 12, 16); break;
+            case JNL_O16: jump(index, 13, 16); break;
+            case JNG_O16: jump(index, 14, 16); break;
+            case JG_O16: jump(index, 15, 16); break;
+
+            case JO_O32: jump(index, 0, 32); break;
+            case JNO_O32: jump(index, 1, 32); break;
+            case JC_O32: jump(index, 2, 32); break;
+            case JNC_O32: jump(index, 3, 32); break;
+            case JZ_O32: jump(index, 4, 32); break;
+            case JNZ_O32: jump(index, 5, 32); break;
+            case JNA_O32: jump(index, 6, 32); break;
+            case JA_O32: jump(index, 7, 32); break;
+            case JS_O32: jump(index, 8, 32); break;
+            case JNS_O32: jump(index, 9, 32); break;
+            case JP_O32: jump(index, 10, 32); break;
+            case JNP_O32: jump(index, 11, 32); break;
+            case JL_O32: jump(index, 12, 32); break;
+            case JNL_O32: jump(index, 13, 32); break;
+            case JNG_O32: jump(index, 14, 32); break;
+            case JG_O32: jump(index, 15, 32); break;
+
+            case JUMP_O8: jump(index, -1, 8); break;
+            case JUMP_O16: jump(index, -1, 16); break;
+            case JUMP_O32: jump(index, -1, 32); break;
+
+            default:
+                return false;
+            }
+        }
+        op(0xb1);       //return
+        return true;
+    }
+
+    private void loadRegister(int local, String register, int shift, int mask)
+    {
+        getRegister(register);
+        if(shift != 0) {
+            iconst(shift);
+            op(0x7a);       //ishr
+        }
+        if(mask != -1) {
+            iconst(mask);
+            op(0x7e);       //iand
+        }
+        istore(local);
+    }
+
+    private void storeRegister(int local, String register, int shift, int mask)
+    {
+        op(0x2b);
+        if(mask == -1) {
+            iload(local);
+        } else {
+            getRegister(register);
+            iconst(~(mask << shift));
+            op(0x7e);
+            iload(local);
+            if(shift != 0) {
+                iconst(shift);
+                op(0x78);   //ishl
+            }
+            iconst(mask << shift);
+            op(0x7e);
+            op(0x80);       //ior
+        }
+        putField(PROCESSOR, register, "I");
+    }
+
+    private void addressRegister(String register, int scale)
+    {
+        iload(ADDR0);
+        getRegister(register);
+        if(scale < 0)
+            op(0x93);       //i2s
+        else
+            shiftLeft(scale);
+        op(0x60);
+        istore(ADDR0);
+    }
+
+    private void shiftLeft(int count)
+    {
+        if(count == 0)
+            return;
+        iconst(count);
+        op(0x78);
+    }
+
+    private void loadSegment(String segment)
+    {
+        op(0x2b);
+        getField(PROCESSOR, segment, "L" + SEGMENT + ";");
+        astore(SEG0);
+    }
+
+    private void loadMemory(int index, int local, String method, String type, int mask)
+    {
+        setPosition(index);
+        aload(SEG0);
+        iload(ADDR0);
+        invoke(0xb6, SEGMENT, method, "(I)" + type);
+        if(mask != -1) {
+            iconst(mask);
+            op(0x7e);
+        }
+        istore(local);
+    }
+
+    private void storeMemory(int index, int local, String method, String type)
+    {
+        setPosition(index);
+        aload(SEG0);
+        iload(ADDR0);
+        iload(local);
+        if("B".equals(type))
+            op(0x91);       //i2b
+        else if("S".equals(type))
+            op(0x93);
+        invoke(0xb6, SEGMENT, method, "(I" + type + ")V");
+    }
+
+    private void carry()
+    {
+        invoke(0xb8, BASE, "carry", "(" + P + ")I");
+    }
+
+    private void flags(String method, int narrow)
+    {
+        op(0x2b);
+        iload(REG0);
+        String type = "I";
+        if(narrow != 0) {
+            op(narrow);
+            type = (narrow == 0x91) ? "B" : "S";
+        }
+        invoke(0xb8, BASE, method, "(" + P + type + ")V");
+    }
+
+    private void arithmeticFlags(String method, boolean withResult)
+    {
+        op(0x2b);
+        if(withResult)
+            iload(REG0);
+        iload(REG2);
+        iload(REG1);
+        invoke(0xb8, BASE, method, "(" + P + (withResult ? "III" : "II") + ")V");
+    }
+
+    private void jump(int index, int condition, int size)
+    {
+        setPosition(index);
+        int branch = -1;
+        if(condition >= 0) {
+            op(0x2b);
+            iconst(condition);
+            invoke(0xb8, BASE, "condition", "(" + P + "I)Z");
+            branch = code.size();
+            op(0x99);       //ifeq
+            writeShort(code, 0);
+        }
+        op(0x2b);
+        iload(REG0);
+        if(size == 8) {
+            op(0x91);
+            invoke(0xb8, superName, "jump_o8", "(" + P + "B)V");
+        } else if(size == 16) {
+            op(0x93);
+            invoke(0xb8, superName, "jump_o16", "(" + P + "S)V");
+        } else
+            invoke(0xb8, superName, "jump_o32", "(" + P + "I)V");
+        if(branch >= 0) {
+            byte[] current = code.toByteArray();
+            int offset = current.length - branch;
+            current[branch + 1] = (byte)(offset >> 8);
+            current[branch + 2] = (byte)offset;
+            code.reset();
+            code.write(current, 0, current.length);
+        }
+    }
+
+    private void setPosition(int index)
+    {
+        op(0x2a);
+        iconst(index + 1);
+        putField(BASE, "position", "I");
+    }
+
+    private void getRegister(String register)
+    {
+        op(0x2b);
+        getField(PROCESSOR, register, "I");
+    }
+
+    private void getField(String owner, String name, String type)
+    {
+        op(0xb4);
+        writeShort(code, classFile.fieldConstant(owner, name, type));
+    }
+
+    private void putField(String owner, String name, String type)
+    {
+        op(0xb5);
+        writeShort(code, classFile.fieldConstant(owner, name, type));
+    }
+
+    private void invoke(int opcode, String owner, String name, String descriptor)
+    {
+        op(opcode);
+        writeShort(code, classFile.methodConstant(owner, name, descriptor));
+    }
+
+    private void iconst(int value)
+    {
+        if(value >= -1 && value <= 5)
+            op(0x03 + value);
+        else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(0x10);
+            op(value & 0xff);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(0x11);
+            writeShort(code, value);
+        } else {
+            int constant = classFile.integerConstant(value);
+            if(constant < 256) {
+                op(0x12);
+                op(constant);
+            } else {
+                op(0x13);
+                writeShort(code, constant);
+            }
+        }
+    }
+
+    private void iload(int local)
+    {
+        if(local < 4)
+            op(0x1a + local);
+        else {
+            op(0x15);
+            op(local);
+        }
+    }
+
+    private void istore(int local)
+    {
+        if(local < 4)
+            op(0x3b + local);
+        else {
+            op(0x36);
+            op(local);
+        }
+    }
+
+    private void aload(int local)
+    {
+        op(0x19);
+        op(local);
+    }
+
+    private void astore(int local)
+    {
+        op(0x3a);
+        op(local);
+    }
+
+    private void iinc(int local, int amount)
+    {
+        op(0x84);
+        op(local);
+        op(amount & 0xff);
+    }
+
+    private void op(int value)
+    {
+        code.write(value);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value)
+    {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static class BlockClassLoader extends ClassLoader
+    {
+        BlockClassLoader()
+        {
+            super(CompiledCodeBlock.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes)
+        {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
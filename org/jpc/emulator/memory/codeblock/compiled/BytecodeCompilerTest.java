@@ -0,0 +1,431 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory.codeblock.compiled;
+
+import java.util.*;
+
+import org.jpc.TestCheck;
+import org.jpc.emulator.Clock;
+import org.jpc.emulator.memory.*;
+import org.jpc.emulator.memory.codeblock.*;
+import org.jpc.emulator.memory.codeblock.optimised.*;
+import org.jpc.emulator.processor.*;
+
+//Runs random blocks of the instructions the compiler understands both interpreted and compiled, on two
+//identical machines, and compares the processor state and memory afterwards.
+public class BytecodeCompilerTest
+{
+    private static final TestCheck test = new TestCheck("Bytecode compiler");
+    private static final int RAM_SIZE = 4 << 20;
+    private static final int CODE = 0x10000;
+    private static final int BLOCKS = 3000;
+    private static final long FLAT_CODE = 0x00CF9A000000FFFFL;
+    private static final long FLAT_DATA = 0x00CF92000000FFFFL;
+
+    private static class ArraySource implements ByteSource
+    {
+        private byte[] bytes;
+        private int position;
+
+        ArraySource(byte[] _bytes)
+        {
+            bytes = _bytes;
+        }
+
+        public byte getByte()
+        {
+            return bytes[position++];
+        }
+
+        public void skip(int count)
+        {
+            position += count;
+        }
+
+        public void reset()
+        {
+            position = 0;
+        }
+    }
+
+    private static class Machine
+    {
+        PhysicalAddressSpace physical;
+        LinearAddressSpace linear;
+        Processor cpu;
+
+        Machine(boolean protectedMode)
+        {
+            physical = new PhysicalAddressSpace(null, RAM_SIZE);
+            physical.setGateA20State(true);
+            linear = new LinearAddressSpace();
+            linear.acceptComponent(physical);
+            physical.acceptComponent(linear);
+            cpu = new Processor(new Clock(), 1);
+            cpu.acceptComponent(linear);
+            cpu.acceptComponent(physical);
+            cpu.reset();
+            loadSegments(protectedMode);
+        }
+
+        //Exceptions in real mode vector through the (random) interrupt table, so this is redone for every block.
+        void loadSegments(boolean protectedMode)
+        {
+            if(protectedMode) {
+                cpu.cs = SegmentFactory.createProtectedModeSegment(linear, 0x08, FLAT_CODE);
+                cpu.ds = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+                cpu.es = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+                cpu.ss = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+                cpu.fs = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+                cpu.gs = SegmentFactory.createProtectedModeSegment(linear, 0x10, FLAT_DATA);
+            } else {
+                cpu.cs = SegmentFactory.createRealModeSegment(physical, CODE >>> 4);
+                cpu.ds = SegmentFactory.createRealModeSegment(physical, 0x2000);
+                cpu.es = SegmentFactory.createRealModeSegment(physical, 0x3000);
+                cpu.ss = SegmentFactory.createRealModeSegment(physical, 0x4000);
+                cpu.fs = SegmentFactory.createRealModeSegment(physical, 0x5000);
+                cpu.gs = SegmentFactory.createRealModeSegment(physical, 0x6000);
+            }
+        }
+
+        String state()
+        {
+            return "eax=" + Integer.toHexString(cpu.eax) + " ecx=" + Integer.toHexString(cpu.ecx) + " edx=" +
+                Integer.toHexString(cpu.edx) + " ebx=" + Integer.toHexString(cpu.ebx) + " esp=" +
+                Integer.toHexString(cpu.esp) + " ebp=" + Integer.toHexString(cpu.ebp) + " esi=" +
+                Integer.toHexString(cpu.esi) + " edi=" + Integer.toHexString(cpu.edi) + " eip=" +
+                Integer.toHexString(cpu.eip) + " eflags=" + Integer.toHexString(cpu.getEFlags());
+        }
+    }
+
+    private static class Generator
+    {
+        private Random random;
+        private boolean protectedMode;
+        private byte[] code = new byte[256];
+        private int length;
+
+        Generator(Random _random, boolean _protectedMode)
+        {
+            random = _random;
+            protectedMode = _protectedMode;
+        }
+
+        private void emit(int value)
+        {
+            code[length++] = (byte)value;
+        }
+
+        private void emitImmediate(int bytes)
+        {
+            for(int i = 0; i < bytes; i++)
+                emit(random.nextInt(256));
+        }
+
+        private void modrm(boolean allowRegister)
+        {
+            int mod = random.nextInt(allowRegister ? 4 : 3);
+            int reg = random.nextInt(8);
+            int rm = random.nextInt(8);
+            emit((mod << 6) | (reg << 3) | rm);
+            if(mod == 3)
+                return;
+            if(!protectedMode) {
+                if(mod == 1)
+                    emitImmediate(1);
+                else if(mod == 2 || rm == 6)
+                    emitImmediate(2);
+                return;
+            }
+            if(rm == 4) {
+                int base = random.nextInt(8);
+                emit((random.nextInt(4) << 6) | (random.nextInt(8) << 3) | base);
+                if(mod == 0 && base == 5)
+                    displacement();
+            }
+            if(mod == 1)
+                emitImmediate(1);
+            else if(mod == 2 || (mod == 0 && rm == 5))
+                displacement();
+        }
+
+        //Keep flat addresses mostly inside RAM.
+        private void displacement()
+        {
+            int value = random.nextInt(0x10000);
+            emit(value);
+            emit(value >>> 8);
+            emit(0);
+            emit(0);
+        }
+
+        private void modrmWithReg(int reg, boolean allowRegister)
+        {
+            int start = length;
+            modrm(allowRegister);
+            code[start] = (byte)((code[start] & 0xC7) | (reg << 3));
+        }
+
+        private void instruction(boolean operandSize)
+        {
+            int immediate = operandSize ? 4 : 2;
+            switch(random.nextInt(15)) {
+            case 0:
+                emit((random.nextInt(8) << 3) | random.nextInt(4));
+                modrm(true);
+                break;
+            case 1:
+                int op = random.nextInt(8) << 3;
+                if(random.nextBoolean()) {
+                    emit(op | 4);
+                    emitImmediate(1);
+                } else {
+                    emit(op | 5);
+                    emitImmediate(immediate);
+                }
+                break;
+            case 2:
+                int group = 0x80 + random.nextInt(4);
+                if(group == 0x82)
+                    group = 0x83;
+                emit(group);
+                modrm(true);
+                emitImmediate(group == 0x81 ? immediate : 1);
+                break;
+            case 3:
+                emit(0x88 + random.nextInt(4));
+                modrm(true);
+                break;
+            case 4:
+                int reg = random.nextInt(16);
+                emit(0xB0 + reg);
+                emitImmediate(reg < 8 ? 1 : immediate);
+                break;
+            case 5:
+                boolean word = random.nextBoolean();
+                emit(word ? 0xC7 : 0xC6);
+                modrmWithReg(0, true);
+                emitImmediate(word ? immediate : 1);
+                break;
+            case 6:
+                emit(0x40 + random.nextInt(16));
+                break;
+            case 7:
+                emit(0xFE + random.nextInt(2));
+                modrmWithReg(random.nextInt(2), true);
+                break;
+            case 8:
+                emit(0x84 + random.nextInt(4));
+                modrm(true);
+                break;
+            case 9:
+                emit(0x8D);
+                modrm(false);
+                break;
+            case 10:
+                emit(0xF6 + random.nextInt(2));
+                modrmWithReg(2 + random.nextInt(2), true);
+                break;
+            case 11:
+                int[] single = new int[]{0x98, 0x99, 0xF5, 0xF8, 0xF9, 0xFC, 0xFD, 0x91, 0x92, 0x93, 0x96, 0x97};
+                emit(single[random.nextInt(single.length)]);
+                break;
+            case 12:
+                if(random.nextBoolean()) {
+                    emit(0xA8);
+                    emitImmediate(1);
+                } else {
+                    emit(0xA9);
+                    emitImmediate(immediate);
+                }
+                break;
+            case 13:
+                //Moves between the accumulator and a direct address.
+                emit(0xA0 + random.nextInt(4));
+                if(protectedMode)
+                    displacement();
+                else
+                    emitImmediate(2);
+                break;
+            default:
+                //Something the compiler doesn't handle (shifts), so that block falls back to the interpreter.
+                if(random.nextInt(8) == 0) {
+                    emit(0xD1);
+                    modrmWithReg(4, true);
+                } else {
+                    emit(0x30 + random.nextInt(4));
+                    modrm(true);
+                }
+            }
+        }
+
+        //Jumps stay inside the code segment, leaving it would fault.
+        private void nearOffset()
+        {
+            emit(random.nextInt(256));
+            emit(random.nextInt(64));
+            if(protectedMode) {
+                emit(0);
+                emit(0);
+            }
+        }
+
+        byte[] block()
+        {
+            length = 0;
+            int count = 1 + random.nextInt(12);
+            for(int i = 0; i < count; i++) {
+                boolean toggle = random.nextInt(6) == 0;
+                if(toggle)
+                    emit(0x66);
+                //No CS overrides in protected mode, the code segment isn't writable.
+                if(random.nextInt(8) == 0)
+                    emit(new int[]{0x26, 0x36, 0x3E, 0x64, 0x65, 0x2E}[random.nextInt(protectedMode ? 5 : 6)]);
+                instruction(protectedMode != toggle);
+            }
+            switch(random.nextInt(4)) {
+            case 0:
+                emit(0x70 + random.nextInt(16));
+                emit(random.nextInt(64));
+                break;
+            case 1:
+                emit(0xEB);
+                emit(random.nextInt(64));
+                break;
+            case 2:
+                emit(0x0F);
+                emit(0x80 + random.nextInt(16));
+                nearOffset();
+                break;
+            default:
+                emit(0xE9);
+                nearOffset();
+            }
+            return Arrays.copyOf(code, length);
+        }
+    }
+
+    private static String run(CodeBlock block, Machine machine)
+    {
+        try {
+            return "executed " + block.execute(machine.cpu) + " " + machine.state();
+        } catch(RuntimeException e) {
+            return "threw " + e + " " + machine.state();
+        }
+    }
+
+    private static void compareMemory(Machine a, Machine b, String what) throws Exception
+    {
+        for(int i = 0; i < RAM_SIZE; i += 4)
+            if(a.physical.getDoubleWord(i) != b.physical.getDoubleWord(i))
+                test.fail(what + ": memory at " + Integer.toHexString(i));
+    }
+
+    private static int testMode(Random random, boolean protectedMode) throws Exception
+    {
+        String mode = protectedMode ? "protected mode" : "real mode";
+        Machine interpreted = new Machine(protectedMode);
+        Machine compiled = new Machine(protectedMode);
+        for(int i = 0; i < RAM_SIZE; i += 4) {
+            int value = random.nextInt();
+            interpreted.physical.setDoubleWord(i, value);
+            compiled.physical.setDoubleWord(i, value);
+        }
+
+        Generator generator = new Generator(random, protectedMode);
+        OptimisedCompiler interpreter = new OptimisedCompiler();
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        int compiledBlocks = 0;
+        for(int n = 0; n < BLOCKS; n++) {
+            byte[] code = generator.block();
+            for(int i = 0; i < code.length; i++) {
+                interpreted.physical.setByte(CODE + i, code[i]);
+                compiled.physical.setByte(CODE + i, code[i]);
+            }
+
+            CodeBlock reference, block;
+            if(protectedMode) {
+                reference = interpreter.getProtectedModeCodeBlock(new ProtectedModeUDecoder().decodeProtected(
+                    new ArraySource(code), true, CodeBlockManager.BLOCK_LIMIT));
+                block = compiler.getProtectedModeCodeBlock(new ProtectedModeUDecoder().decodeProtected(
+                    new ArraySource(code), true, CodeBlockManager.BLOCK_LIMIT));
+            } else {
+                reference = interpreter.getRealModeCodeBlock(new RealModeUDecoder().decodeReal(
+                    new ArraySource(code), CodeBlockManager.BLOCK_LIMIT));
+                block = compiler.getRealModeCodeBlock(new RealModeUDecoder().decodeReal(
+                    new ArraySource(code), CodeBlockManager.BLOCK_LIMIT));
+            }
+            if(block == null)
+                continue;
+            compiledBlocks++;
+            String what = mode + " block " + n;
+            test.check(block.getX86Length() == reference.getX86Length(), what + ": length");
+            test.check(block.getX86Count() == reference.getX86Count(), what + ": instruction count");
+
+            int[] registers = new int[8];
+            for(int i = 0; i < registers.length; i++)
+                registers[i] = protectedMode ? random.nextInt(0x40000) : random.nextInt();
+            int eflags = random.nextInt() & 0xCD5;
+            for(Machine machine : new Machine[]{interpreted, compiled}) {
+                Processor cpu = machine.cpu;
+                cpu.eax = registers[0];
+                cpu.ecx = registers[1];
+                cpu.edx = registers[2];
+                cpu.ebx = registers[3];
+                cpu.esp = registers[4];
+                cpu.ebp = registers[5];
+                cpu.esi = registers[6];
+                cpu.edi = registers[7];
+                machine.loadSegments(protectedMode);
+                cpu.eip = protectedMode ? CODE : 0;
+                cpu.setEFlags(eflags);
+            }
+
+            String expected = run(reference, interpreted);
+            String got = run(block, compiled);
+            if(!expected.equals(got))
+                test.fail(what + " " + Arrays.toString(code) + ": expected " + expected + ", got " + got);
+            if(n % 100 == 0)
+                compareMemory(interpreted, compiled, what);
+        }
+        compareMemory(interpreted, compiled, mode);
+        return compiledBlocks;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(1);
+        int real = testMode(random, false);
+        int protectedBlocks = testMode(random, true);
+        test.check(real > BLOCKS / 2 && protectedBlocks > BLOCKS / 2, "only " + real + " real mode and " +
+            protectedBlocks + " protected mode blocks compiled");
+        test.passed();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory.codeblock.compiled;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Minimal JVM class file assembler used by the block compiler.
+ * <p>
+ * Only the features the generated blocks need are supported: a single superclass,
+ * no fields, and straight-line methods without exception tables. Class files are
+ * written as version 49 so no stack map frames need to be emitted.
+ */
+class ClassFileBuilder
+{
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PROTECTED = 0x0004;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAMEANDTYPE = 12;
+
+    private ByteArrayOutputStream constantPoolBytes;
+    private DataOutputStream constantPool;
+    private Map<String, Integer> constants;
+    private int nextConstant;
+    private int thisClass;
+    private int superClass;
+    private List<byte[]> methods;
+
+    public ClassFileBuilder(String name, String superName)
+    {
+        constantPoolBytes = new ByteArrayOutputStream();
+        constantPool = new DataOutputStream(constantPoolBytes);
+        constants = new HashMap<String, Integer>();
+        nextConstant = 1;
+        methods = new ArrayList<byte[]>();
+        thisClass = classConstant(name);
+        superClass = classConstant(superName);
+    }
+
+    private int utf8Constant(String value)
+    {
+        String key = "U" + value;
+        Integer index = constants.get(key);
+        if(index != null)
+            return index.intValue();
+        try {
+            constantPool.writeByte(CONSTANT_UTF8);
+            constantPool.writeUTF(value);
+        } catch(IOException e) {
+            throw new IllegalStateException("Can't write constant pool entry", e);
+        }
+        constants.put(key, nextConstant);
+        return nextConstant++;
+    }
+
+    private int indexedConstant(String key, int tag, int first, int second)
+    {
+        Integer index = constants.get(key);
+        if(index != null)
+            return index.intValue();
+        try {
+            constantPool.writeByte(tag);
+            constantPool.writeShort(first);
+            if(second >= 0)
+                constantPool.writeShort(second);
+        } catch(IOException e) {
+            throw new IllegalStateException("Can't write constant pool entry", e);
+        }
+        constants.put(key, nextConstant);
+        return nextConstant++;
+    }
+
+    public int classConstant(String name)
+    {
+        return indexedConstant("C" + name, CONSTANT_CLASS, utf8Constant(name), -1);
+    }
+
+    public int integerConstant(int value)
+    {
+        String key = "I" + value;
+        Integer index = constants.get(key);
+        if(index != null)
+            return index.intValue();
+        try {
+            constantPool.writeByte(CONSTANT_INTEGER);
+            constantPool.writeInt(value);
+        } catch(IOException e) {
+            throw new IllegalStateException("Can't write constant pool entry", e);
+        }
+        constants.put(key, nextConstant);
+        return nextConstant++;
+    }
+
+    private int nameAndTypeConstant(String name, String descriptor)
+    {
+        return indexedConstant("N" + name + ":" + descriptor, CONSTANT_NAMEANDTYPE, utf8Constant(name),
+            utf8Constant(descriptor));
+    }
+
+    public int fieldConstant(String owner, String name, String descriptor)
+    {
+        return indexedConstant("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF,
+            classConstant(owner), nameAndTypeConstant(name, descriptor));
+    }
+
+    public int methodConstant(String owner, String name, String descriptor)
+    {
+        return indexedConstant("M" + owner + "." + name + ":" + descriptor, CONSTANT_METHODREF,
+            classConstant(owner), nameAndTypeConstant(name, descriptor));
+    }
+
+    /**
+     * Adds a method to the class being built.
+     * @param access access flags.
+     * @param name method name.
+     * @param descriptor JVM method descriptor.
+     * @param maxStack maximum operand stack depth of the code.
+     * @param maxLocals number of local variable slots used by the code.
+     * @param code method bytecode.
+     */
+    public void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8Constant("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);     //Exception table.
+            out.writeShort(0);     //Attributes.
+            out.flush();
+        } catch(IOException e) {
+            throw new IllegalStateException("Can't write method", e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            constantPool.flush();
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(nextConstant);
+            out.write(constantPoolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);     //Interfaces.
+            out.writeShort(0);     //Fields.
+            out.writeShort(methods.size());
+            for(byte[] method : methods)
+                out.write(method);
+            out.writeShort(0);     //Attributes.
+            out.flush();
+        } catch(IOException e) {
+            throw new IllegalStateException("Can't write class file", e);
+        }
+        return bytes.toByteArray();
+    }
+}
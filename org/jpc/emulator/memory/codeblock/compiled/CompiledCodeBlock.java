@@ -0,0 +1,455 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory.codeblock.compiled;
+
+import org.jpc.emulator.processor.*;
+import org.jpc.emulator.memory.codeblock.*;
+
+/**
+ * Common base of codeblocks whose microcode sequence has been translated into
+ * a dedicated JVM class.
+ * <p>
+ * The generated subclass implements {@link #run} as straight-line code with the
+ * microcode working registers held in JVM locals. Everything the interpreter keeps
+ * across an abort (execute count, position and EIP update state) lives in fields
+ * here so that the mode specific subclasses can unwind exactly like the
+ * interpreted blocks do.
+ */
+public abstract class CompiledCodeBlock implements CodeBlock
+{
+    private final int[] microcodes;
+    protected final int[] cumulativeX86Length;
+    private final int x86Count;
+
+    protected int executeCount;
+    protected int position;
+    protected boolean eipUpdated;
+    private boolean invalidated;
+
+    protected CompiledCodeBlock(int[] microcodes, int[] cumulativeX86Length)
+    {
+        this.microcodes = microcodes;
+        this.cumulativeX86Length = cumulativeX86Length;
+        if(cumulativeX86Length.length == 0)
+            x86Count = 0;
+        else {
+            int count = 1;
+            for(int i = 1; i < cumulativeX86Length.length; i++)
+                if(cumulativeX86Length[i] > cumulativeX86Length[i-1]) count++;
+            x86Count = count;
+        }
+    }
+
+    /**
+     * Runs the translated microcode sequence. Implemented by generated code.
+     * @param cpu processor state on which to execute.
+     */
+    protected abstract void run(Processor cpu);
+
+    public int getX86Length()
+    {
+        if(microcodes.length == 0)
+            return 0;
+        return cumulativeX86Length[microcodes.length-1];
+    }
+
+    public int getX86Count()
+    {
+        return x86Count;
+    }
+
+    public boolean handleMemoryRegionChange(int startAddress, int endAddress)
+    {
+        return false;
+    }
+
+    public void invalidate()
+    {
+        invalidated = true;
+    }
+
+    public String getDisplayString()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append(this.toString()).append('\n');
+        for(int i=0; i<microcodes.length; i++)
+            buf.append(i).append(": ").append(microcodes[i]).append('\n');
+        return buf.toString();
+    }
+
+    protected final void updateEIP(Processor cpu, int length)
+    {
+        if(!eipUpdated) {
+            eipUpdated = true;
+            cpu.eip += length;
+        }
+    }
+
+    protected final void instructionStart(Processor cpu)
+    {
+        executeCount++;
+        if(cpu.eflagsMachineHalt) throw ProcessorException.TRACESTOP;
+        if(invalidated && cpu.SYSFLAG_FLUSHONMODIFY) {
+            invalidated = false;
+            throw ProcessorException.SELFMODIFIED;
+        }
+        //HALT being aborted is special.
+        if(!cpu.eflagsWaiting)
+            cpu.instructionExecuted();
+    }
+
+    /**
+     * Moves EIP back to the instruction that raised <code>e</code>, the same way
+     * the interpreted blocks do.
+     * @param cpu processor state.
+     * @param e exception raised while running the block.
+     */
+    protected final void rollbackEIP(Processor cpu, ProcessorException e)
+    {
+        int nextPosition = position - 1; //this makes position point at the microcode that just barfed
+
+        if (eipUpdated)
+            cpu.eip -= cumulativeX86Length[nextPosition]; // undo the eipUpdate
+
+        if (!e.pointsToSelf()) {
+            cpu.eip += cumulativeX86Length[nextPosition];
+        } else {
+            for (int selfPosition = nextPosition; selfPosition >= 0; selfPosition--) {
+                if (cumulativeX86Length[selfPosition] != cumulativeX86Length[nextPosition]) {
+                    cpu.eip += cumulativeX86Length[selfPosition];
+                    break;
+                }
+            }
+        }
+    }
+
+    protected final void reportFailure()
+    {
+        System.err.println("Critical error: Failed at index: " + (position -1) + " with microcode: " +
+            microcodes[position-1]);
+        System.err.println("Informational: Microcodes for failed block:");
+        System.err.println(this.getDisplayString());
+    }
+
+    public static int carry(Processor cpu)
+    {
+        return cpu.getCarryFlag() ? 1 : 0;
+    }
+
+    public static void cmc(Processor cpu)
+    {
+        cpu.setCarryFlag(!cpu.getCarryFlag());
+    }
+
+    public static void cwd(Processor cpu)
+    {
+        if((cpu.eax & 0x8000) == 0) cpu.edx &= 0xffff0000; else cpu.edx |= 0x0000ffff;
+    }
+
+    public static void cdq(Processor cpu)
+    {
+        if((cpu.eax & 0x80000000) == 0) cpu.edx = 0; else cpu.edx = -1;
+    }
+
+    public static void bitwise_flags(Processor cpu, byte result)
+    {
+        cpu.setOverflowFlag(false);
+        cpu.setCarryFlag(false);
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+    }
+
+    public static void bitwise_flags(Processor cpu, short result)
+    {
+        cpu.setOverflowFlag(false);
+        cpu.setCarryFlag(false);
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+    }
+
+    public static void bitwise_flags(Processor cpu, int result)
+    {
+        cpu.setOverflowFlag(false);
+        cpu.setCarryFlag(false);
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+    }
+
+    private static void arithmetic_flags_o8(Processor cpu, int result, int operand1, int operand2)
+    {
+        cpu.setZeroFlag((byte)result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag((byte)result);
+
+        cpu.setCarryFlag(result, Processor.CY_TWIDDLE_FF);
+        cpu.setAuxiliaryCarryFlag(operand1, operand2, result, Processor.AC_XOR);
+    }
+
+    private static void arithmetic_flags_o16(Processor cpu, int result, int operand1, int operand2)
+    {
+        cpu.setZeroFlag((short)result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag((short)result);
+
+        cpu.setCarryFlag(result, Processor.CY_TWIDDLE_FFFF);
+        cpu.setAuxiliaryCarryFlag(operand1, operand2, result, Processor.AC_XOR);
+    }
+
+    private static void arithmetic_flags_o32(Processor cpu, long result, int operand1, int operand2)
+    {
+        cpu.setZeroFlag((int)result);
+        cpu.setParityFlag((int)result);
+        cpu.setSignFlag((int)result);
+
+        cpu.setCarryFlag(result, Processor.CY_TWIDDLE_FFFFFFFF);
+        cpu.setAuxiliaryCarryFlag(operand1, operand2, (int)result, Processor.AC_XOR);
+    }
+
+    public static void add_o32_flags(Processor cpu, int operand1, int operand2)
+    {
+        long result = (0xffffffffl & operand1) + (0xffffffffl & operand2);
+
+        arithmetic_flags_o32(cpu, result, operand1, operand2);
+        cpu.setOverflowFlag((int)result, operand1, operand2, Processor.OF_ADD_INT);
+    }
+
+    public static void add_o16_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        arithmetic_flags_o16(cpu, result, operand1, operand2);
+        cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_ADD_SHORT);
+    }
+
+    public static void add_o8_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        arithmetic_flags_o8(cpu, result, operand1, operand2);
+        cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_ADD_BYTE);
+    }
+
+    public static void adc_o32_flags(Processor cpu, int operand1, int operand2)
+    {
+        int carry = (cpu.getCarryFlag() ? 1 : 0);
+        long result = (0xffffffffl & operand1) + (0xffffffffl & operand2) + carry;
+
+        if (cpu.getCarryFlag() && (operand2 == 0xffffffff)) {
+            arithmetic_flags_o32(cpu, result, operand1, operand2);
+            cpu.setOverflowFlag(false);
+            cpu.setCarryFlag(true);
+        } else {
+            cpu.setOverflowFlag((int)result, operand1, operand2, Processor.OF_ADD_INT);
+            arithmetic_flags_o32(cpu, result, operand1, operand2);
+        }
+    }
+
+    public static void adc_o16_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        if (cpu.getCarryFlag() && (operand2 == 0xffff)) {
+            arithmetic_flags_o16(cpu, result, operand1, operand2);
+            cpu.setOverflowFlag(false);
+            cpu.setCarryFlag(true);
+        } else {
+            cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_ADD_SHORT);
+            arithmetic_flags_o16(cpu, result, operand1, operand2);
+        }
+    }
+
+    public static void adc_o8_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        if (cpu.getCarryFlag() && (operand2 == 0xff)) {
+            arithmetic_flags_o8(cpu, result, operand1, operand2);
+            cpu.setOverflowFlag(false);
+            cpu.setCarryFlag(true);
+        } else {
+            cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_ADD_BYTE);
+            arithmetic_flags_o8(cpu, result, operand1, operand2);
+        }
+    }
+
+    public static void sub_o32_flags(Processor cpu, int operand1, int operand2)
+    {
+        long result = (0xffffffffl & operand1) - (0xffffffffl & operand2);
+
+        arithmetic_flags_o32(cpu, result, operand1, operand2);
+        cpu.setOverflowFlag((int)result, operand1, operand2, Processor.OF_SUB_INT);
+    }
+
+    public static void sub_o16_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        arithmetic_flags_o16(cpu, result, operand1, operand2);
+        cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_SUB_SHORT);
+    }
+
+    public static void sub_o8_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        arithmetic_flags_o8(cpu, result, operand1, operand2);
+        cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_SUB_BYTE);
+    }
+
+    public static void sbb_o32_flags(Processor cpu, int operand1, int operand2)
+    {
+        int carry = (cpu.getCarryFlag() ? 1 : 0);
+        long result = (0xffffffffl & operand1) - ((0xffffffffl & operand2) + carry);
+
+        cpu.setOverflowFlag((int)result, operand1, operand2, Processor.OF_SUB_INT);
+        arithmetic_flags_o32(cpu, result, operand1, operand2);
+    }
+
+    public static void sbb_o16_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_SUB_SHORT);
+        arithmetic_flags_o16(cpu, result, operand1, operand2);
+    }
+
+    public static void sbb_o8_flags(Processor cpu, int result, int operand1, int operand2)
+    {
+        cpu.setOverflowFlag(result, operand1, operand2, Processor.OF_SUB_BYTE);
+        arithmetic_flags_o8(cpu, result, operand1, operand2);
+    }
+
+    public static void dec_flags(Processor cpu, int result)
+    {
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+        cpu.setOverflowFlag(result, Processor.OF_MAX_INT);
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_MAX);
+    }
+
+    public static void dec_flags(Processor cpu, short result)
+    {
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+        cpu.setOverflowFlag(result, Processor.OF_MAX_SHORT);
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_MAX);
+    }
+
+    public static void dec_flags(Processor cpu, byte result)
+    {
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+        cpu.setOverflowFlag(result, Processor.OF_MAX_BYTE);
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_MAX);
+    }
+
+    public static void inc_flags(Processor cpu, int result)
+    {
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+        cpu.setOverflowFlag(result, Processor.OF_MIN_INT);
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_ZERO);
+    }
+
+    public static void inc_flags(Processor cpu, short result)
+    {
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+        cpu.setOverflowFlag(result, Processor.OF_MIN_SHORT);
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_ZERO);
+    }
+
+    public static void inc_flags(Processor cpu, byte result)
+    {
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+        cpu.setOverflowFlag(result, Processor.OF_MIN_BYTE);
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_ZERO);
+    }
+
+    public static void neg_flags(Processor cpu, byte result)
+    {
+        cpu.setCarryFlag(result, Processor.CY_NZ);
+        cpu.setOverflowFlag(result, Processor.OF_MIN_BYTE);
+
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_NZERO);
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+    }
+
+    public static void neg_flags(Processor cpu, short result)
+    {
+        cpu.setCarryFlag(result, Processor.CY_NZ);
+        cpu.setOverflowFlag(result, Processor.OF_MIN_SHORT);
+
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_NZERO);
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+    }
+
+    public static void neg_flags(Processor cpu, int result)
+    {
+        cpu.setCarryFlag(result, Processor.CY_NZ);
+        cpu.setOverflowFlag(result, Processor.OF_MIN_INT);
+
+        cpu.setAuxiliaryCarryFlag(result, Processor.AC_LNIBBLE_NZERO);
+        cpu.setZeroFlag(result);
+        cpu.setParityFlag(result);
+        cpu.setSignFlag(result);
+    }
+
+    /**
+     * Evaluates the condition of a conditional jump.
+     * @param cpu processor state.
+     * @param condition condition index, in the <code>JO</code>..<code>JG</code> order
+     * used by the microcode set.
+     * @return <code>true</code> if the jump is taken.
+     */
+    public static boolean condition(Processor cpu, int condition)
+    {
+        switch(condition) {
+        case 0: return cpu.getOverflowFlag();
+        case 1: return !cpu.getOverflowFlag();
+        case 2: return cpu.getCarryFlag();
+        case 3: return !cpu.getCarryFlag();
+        case 4: return cpu.getZeroFlag();
+        case 5: return !cpu.getZeroFlag();
+        case 6: return cpu.getCarryFlag() || cpu.getZeroFlag();
+        case 7: return (!cpu.getCarryFlag()) && (!cpu.getZeroFlag());
+        case 8: return cpu.getSignFlag();
+        case 9: return !cpu.getSignFlag();
+        case 10: return cpu.getParityFlag();
+        case 11: return !cpu.getParityFlag();
+        case 12: return cpu.getSignFlag() != cpu.getOverflowFlag();
+        case 13: return cpu.getSignFlag() == cpu.getOverflowFlag();
+        case 14: return cpu.getZeroFlag() || (cpu.getSignFlag() != cpu.getOverflowFlag());
+        case 15: return (!cpu.getZeroFlag()) && (cpu.getSignFlag() == cpu.getOverflowFlag());
+        default:
+            throw new IllegalStateException("Bad jump condition " + condition);
+        }
+    }
+}
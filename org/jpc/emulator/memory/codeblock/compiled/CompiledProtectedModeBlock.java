@@ -0,0 +1,119 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.emulator.memory.codeblock.compiled;
+
+import org.jpc.emulator.processor.*;
+import org.jpc.emulator.memory.codeblock.*;
+
+/**
+ * Base class of generated protected mode blocks.
+ */
+public abstract class CompiledProtectedModeBlock extends CompiledCodeBlock implements ProtectedModeCodeBlock
+{
+    protected CompiledProtectedModeBlock(int[] microcodes, int[] cumulativeX86Length)
+    {
+        super(microcodes, cumulativeX86Length);
+    }
+
+    public int execute(Processor cpu)
+    {
+        executeCount = 0;
+        eipUpdated = false;
+        position = 0;
+
+        cpu.eflagsLastAborted = false;
+        if(cpu.fpu != null)
+            cpu.fpu.setProtectedMode(true);
+
+        try {
+            run(cpu);
+        } catch (ProcessorException e) {
+            rollbackEIP(cpu, e);
+
+            if(e.getType() == ProcessorException.Type.TASK_SWITCH)
+                e.printStackTrace();
+
+            if(e.getType() != ProcessorException.Type.PAGE_FAULT && e.getType() != ProcessorException.Type.TRACESTOP && e.getType() != ProcessorException.Type.NO_FPU && e.getType() != ProcessorException.Type.SELFMODIFIED) {
+                if(e.getType() == ProcessorException.Type.GENERAL_PROTECTION)
+                    e.printStackTrace();
+                System.err.println("Emulated: cs selector = " + Integer.toHexString(cpu.cs.getSelector())
+                    + ", cs base = " + Integer.toHexString(cpu.cs.getBase()) + ", EIP = "
+                    + Integer.toHexString(cpu.eip));
+                System.err.println("Emulated: processor exception at 0x" +
+                    Integer.toHexString(cpu.cs.translateAddressRead(cpu.eip)) + ": " + e);
+            }
+
+            if(e.getType() != ProcessorException.Type.SELFMODIFIED &&
+                e.getType() != ProcessorException.Type.TRACESTOP)  //Swallow trace stops!
+                cpu.handleProtectedModeException(e);
+            else {
+                executeCount--;
+                cpu.eflagsLastAborted = true;
+            }
+        } catch (IllegalStateException e) {
+            reportFailure();
+            throw e;
+        } catch (NullPointerException e) {
+            reportFailure();
+            throw e;
+        }
+
+        return Math.max(executeCount, 0);
+    }
+
+    public String toString()
+    {
+        return "Protected Mode Compiled Block";
+    }
+
+    public static void jump_o8(Processor cpu, byte offset)
+    {
+        if (offset == 0)
+            return; //first protected mode throws on a jump 0 (some segment problem?)
+
+        int tempEIP = cpu.eip + offset;
+        cpu.cs.checkAddress(tempEIP);// check whether eip is outside cs limit
+        cpu.eip = tempEIP;
+    }
+
+    public static void jump_o16(Processor cpu, short offset)
+    {
+        int tempEIP = (cpu.eip + offset) & 0xffff;
+        cpu.cs.checkAddress(tempEIP);// check whether eip is outside cs limit
+        cpu.eip = tempEIP;
+    }
+
+    public static void jump_o32(Processor cpu, int offset)
+    {
+        int tempEIP = cpu.eip + offset;
+        cpu.cs.checkAddress(tempEIP);// check whether eip is outside cs limit
+        cpu.eip = tempEIP;
+    }
+}
@@ -87,8 +87,7 @@ public class IOPortHandler extends AbstractHardwareComponent implements IOPortCa
         super.dumpSRPartial(output);
         output.specialObject(defaultDevice);
         output.dumpInt(ioPortDevice.length);
-        for(int i = 0; i < ioPortDevice.length; i++)
-            output.dumpObject(ioPortDevice[i]);
+        output.dumpObjectTable(ioPortDevice);
         output.dumpObject(clock);
         output.dumpBoolean(SYSFLAG_IOPORTDELAY);
     }
@@ -98,8 +97,7 @@ public class IOPortHandler extends AbstractHardwareComponent implements IOPortCa
         super(input);
         input.specialObject(defaultDevice);
         ioPortDevice = new IOPortCapable[input.loadInt()];
-        for(int i = 0; i < ioPortDevice.length; i++)
-            ioPortDevice[i] = (IOPortCapable)input.loadObject();
+        input.loadObjectTable(ioPortDevice);
         clock = null;
         SYSFLAG_IOPORTDELAY = false;
         if(input.objectEndsHere())
@@ -333,6 +333,7 @@ public class VGACard extends AbstractPCIDevice implements IOPortCapable, TimerRe
     private long draw_vrstart, draw_vrend, draw_vdend;
     private boolean returningFromVretrace;
 
+    private boolean displaySkipped;  //Not saved.
     private boolean paletteDebuggingEnabled;  //Not saved.
     private boolean paletteLocked;  //Not saved.
     private PrintStream vgaDebugSaveIO;           //Not saved.
@@ -1994,6 +1995,12 @@ public class VGACard extends AbstractPCIDevice implements IOPortCapable, TimerRe
 
     }
 
+    //Drawing doesn't affect the emulated PC, so skip it if output is detached, unless PC stops at the frame.
+    private final boolean frameWanted()
+    {
+        return outputDevice.isConnected() || (traceTrap.getTrapFlags() & TraceTrap.TRACE_STOP_VRETRACE_START) != 0;
+    }
+
     //Public Methods Used By Output Device
     public final void updateDisplay()
     {
@@ -2002,7 +2009,9 @@ public class VGACard extends AbstractPCIDevice implements IOPortCapable, TimerRe
 
         outputDevice.resetDirtyRegion();
 
-        boolean fullUpdate = updated;
+        //Partial redraw would miss the changes made while not drawing.
+        boolean fullUpdate = updated || displaySkipped;
+        displaySkipped = false;
         int detGraphicMode;
         if((attributeRegisterIndex & 0x20) == 0)
             detGraphicMode = GMODE_BLANK;
@@ -3522,10 +3531,15 @@ public class VGACard extends AbstractPCIDevice implements IOPortCapable, TimerRe
                         updated = updateBasicParameters();
                     //Wait for monitor to draw. Pre-increment frame count to avoid double draw with
                     //different frame numbers.
-                    updateDisplay();
+                    boolean draw = frameWanted();
+                    if(draw)
+                        updateDisplay();
+                    else
+                        displaySkipped = true;
                     frameNumber++;
                     updateStatus();
-                    outputDevice.holdOutput(nextTimerExpiry);
+                    if(draw)
+                        outputDevice.holdOutput(nextTimerExpiry);
 
                     long refresh_time = FRAME_TIME-TRACE_TIME;
                     if((frameNumber - 1) % FRAME_ALT_MOD == 0)
@@ -3573,10 +3587,15 @@ public class VGACard extends AbstractPCIDevice implements IOPortCapable, TimerRe
                             updated = updateBasicParameters();
                         //Wait for monitor to draw. Pre-increment frame count to avoid double draw with
                         //different frame numbers.
-                        updateDisplay();
+                        boolean draw = frameWanted();
+                        if(draw)
+                            updateDisplay();
+                        else
+                            displaySkipped = true;
                         frameNumber++;
                         updateStatus();
-                        outputDevice.holdOutput(nextTimerExpiry);
+                        if(draw)
+                            outputDevice.holdOutput(nextTimerExpiry);
 
                         long refresh_time = draw_vrend-draw_vrstart;
 
@@ -42,7 +42,7 @@ import org.jpc.emulator.*;
  *
  * @author Chris Dennis
  */
-public class Keyboard extends AbstractHardwareComponent implements IOPortCapable, EventDispatchTarget, TimerResponsive
+public class Keyboard extends AbstractHardwareComponent implements IOPortCapable, EventCheckpointTarget, TimerResponsive
 {
     /* Keyboard Controller Commands */
     private static final byte KBD_CCMD_READ_MODE = (byte)0x20; /* Read mode bits */
@@ -1111,6 +1111,36 @@ public class Keyboard extends AbstractHardwareComponent implements IOPortCapable
         mouseButtonStatus = 0;
     }
 
+    private static class EventCheckpoint
+    {
+        boolean[] keyStatus;
+        boolean[] execKeyStatus;
+        int modifierFlags2;
+        long keyboardTimeBound;
+        int mouseButtonStatus;
+    }
+
+    public Object getEventCheckpoint()
+    {
+        EventCheckpoint state = new EventCheckpoint();
+        state.keyStatus = keyStatus.clone();
+        state.execKeyStatus = execKeyStatus.clone();
+        state.modifierFlags2 = modifierFlags2;
+        state.keyboardTimeBound = keyboardTimeBound;
+        state.mouseButtonStatus = mouseButtonStatus;
+        return state;
+    }
+
+    public void setEventCheckpoint(Object checkpoint)
+    {
+        EventCheckpoint state = (EventCheckpoint)checkpoint;
+        System.arraycopy(state.keyStatus, 0, keyStatus, 0, keyStatus.length);
+        System.arraycopy(state.execKeyStatus, 0, execKeyStatus, 0, execKeyStatus.length);
+        modifierFlags2 = state.modifierFlags2;
+        keyboardTimeBound = state.keyboardTimeBound;
+        mouseButtonStatus = state.mouseButtonStatus;
+    }
+
     public void doEvent(long timeStamp, String[] args, int level) throws IOException
     {
         if(args == null || args.length == 0)
@@ -632,6 +632,8 @@ public class Processor implements HardwareComponent
             eflagsInterruptEnable = true;  //Force to enable interrupts in this case.
 
         while((interruptFlags & IFLAGS_HARDWARE_INTERRUPT) == 0) {
+            //Nothing can happen before the next timer fires, so don't step through the idle time.
+            Clock.skipToNextEvent(vmClock, this.clockDivider);
             Clock.timePasses(vmClock, this.clockDivider);
             //If machine is halting, raise special TR exception. We will get called again.
             if(eflagsMachineHalt) {
@@ -1088,6 +1090,19 @@ public class Processor implements HardwareComponent
         return cs.translateAddressRead(eip);
     }
 
+    /**
+     * Returns <code>true</code> if the processing done between blocks (interrupt
+     * delivery, trace traps and reboot requests) would do nothing right now, so
+     * the next block may be run directly after the previous one.
+     * @return <code>true</code> if the next block can be chained.
+     */
+    public final boolean canChainBlocks()
+    {
+        if(eflagsLastAborted || eflagsMachineHalt || eflagsInterruptEnable != eflagsInterruptEnableSoon)
+            return false;
+        return !eflagsInterruptEnable || (interruptFlags & (IFLAGS_RESET_REQUEST | IFLAGS_HARDWARE_INTERRUPT)) == 0;
+    }
+
     public final void processRealModeInterrupts(int instructions)
     {
         //Note only hardware interrupts go here, software interrupts are handled in the codeblock
@@ -39,6 +39,7 @@ import org.jpc.diskimages.ImageLibrary;
 import org.jpc.diskimages.ImageMaker;
 import org.jpc.diskimages.DiskImage;
 import org.jpc.pluginsbase.*;
+import org.jpc.emulator.memory.codeblock.CodeBlockManager;
 
 import static org.jpc.Revision.getRevision;
 import static org.jpc.Revision.getRelease;
@@ -404,6 +405,9 @@ public class JPCApplication
         //Probe if rename-over is supported.
         Misc.probeRenameOver(ArgProcessor.findFlag(args, "-norenames"));
 
+        if(ArgProcessor.findFlag(args, "-nocompile"))
+            CodeBlockManager.COMPILE_THRESHOLD = 0;
+
         Plugins pluginManager = new Plugins();
         BufferedReader kbd = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
 
@@ -0,0 +1,152 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.jrsr;
+
+import java.io.*;
+import java.util.*;
+
+import org.jpc.TestCheck;
+
+public class ArchiveIndexTest
+{
+    private static final TestCheck test = new TestCheck("Archive index");
+
+    private static final String[] NAMES = new String[]{"header", "events", "tyhjä", "savestate"};
+
+    private static List<String> memberLines(int member)
+    {
+        List<String> lines = new ArrayList<String>();
+        for(int i = 0; i < 3 * member; i++)
+            lines.add("line " + i + " of " + NAMES[member]);
+        return lines;
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException
+    {
+        UTFInputLineStream lines = new UTFInputLineStream(in);
+        List<String> ret = new ArrayList<String>();
+        String line;
+        while((line = lines.readLine()) != null)
+            if(line.length() > 0)
+                ret.add(line);
+        lines.close();
+        return ret;
+    }
+
+    private static void checkArchive(String file, String prefix) throws Exception
+    {
+        JRSRArchiveReader reader = new JRSRArchiveReader(file);
+        test.check(reader.getMembers().equals(new HashSet<String>(Arrays.asList(NAMES))),
+            prefix + " members " + reader.getMembers());
+        for(int i = NAMES.length - 1; i >= 0; i--) {
+            List<String> expected = memberLines(i);
+            if(prefix.equals("stale") && i == 1)
+                expected.add(0, "inserted");
+            test.check(readLines(reader.readMember(NAMES[i])).equals(expected), prefix + " member " + NAMES[i]);
+        }
+        reader.close();
+    }
+
+    private static byte[] readFile(String file) throws IOException
+    {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        byte[] x = new byte[(int)f.length()];
+        f.readFully(x);
+        f.close();
+        return x;
+    }
+
+    private static void writeFile(String file, byte[] x) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(x);
+        out.close();
+    }
+
+    private static int indexOf(byte[] data, String text) throws IOException
+    {
+        byte[] pattern = text.getBytes("UTF-8");
+        for(int i = 0; i + pattern.length <= data.length; i++)
+            if(Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern))
+                return i;
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File tmp = File.createTempFile("jrsrindex", ".jrsr");
+        String file = tmp.getAbsolutePath();
+
+        JRSRArchiveWriter writer = new JRSRArchiveWriter(file);
+        for(int i = 0; i < NAMES.length; i++) {
+            UTFOutputLineStream lines = new UTFOutputLineStream(writer.addMember(NAMES[i]));
+            for(String line : memberLines(i))
+                lines.writeLine(line);
+            lines.close();
+        }
+        try {
+            writer.addMember(JRSRArchiveWriter.INDEX_MEMBER);
+            test.fail("reserved member name accepted");
+        } catch(IOException e) {
+        }
+        writer.close();
+        byte[] indexed = readFile(file);
+        test.check(indexOf(indexed, "!BEGIN " + JRSRArchiveWriter.INDEX_MEMBER + "\n") > 0, "index not written");
+        checkArchive(file, "indexed");
+
+        //Without the index, members are found by scanning.
+        int indexStart = indexOf(indexed, "!BEGIN " + JRSRArchiveWriter.INDEX_MEMBER + "\n");
+        byte[] unindexed = new byte[indexStart + JRSRArchiveWriter.END_LINE.length];
+        System.arraycopy(indexed, 0, unindexed, 0, indexStart);
+        System.arraycopy(JRSRArchiveWriter.END_LINE, 0, unindexed, indexStart, JRSRArchiveWriter.END_LINE.length);
+        writeFile(file, unindexed);
+        checkArchive(file, "unindexed");
+
+        //Index that no longer matches member positions is ignored.
+        int firstLine = indexOf(indexed, "+line 0 of ");
+        byte[] inserted = "+inserted\n".getBytes("UTF-8");
+        byte[] stale = new byte[indexed.length + inserted.length];
+        System.arraycopy(indexed, 0, stale, 0, firstLine);
+        System.arraycopy(inserted, 0, stale, firstLine, inserted.length);
+        System.arraycopy(indexed, firstLine, stale, firstLine + inserted.length, indexed.length - firstLine);
+        writeFile(file, stale);
+        checkArchive(file, "stale");
+
+        //Malformed index line.
+        byte[] malformed = indexed.clone();
+        int indexLine = indexOf(malformed, "+INDEX ");
+        malformed[indexLine + 7] = 'x';
+        writeFile(file, malformed);
+        checkArchive(file, "malformed");
+
+        tmp.delete();
+        test.passed();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.jrsr;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.jpc.TestCheck;
+
+public class BinaryArchiveTest
+{
+    private static final TestCheck test = new TestCheck("Binary archive");
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int r;
+        while((r = in.read(buf)) >= 0)
+            out.write(buf, 0, r);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] contents(ByteBuffer buffer)
+    {
+        byte[] x = new byte[buffer.remaining()];
+        buffer.duplicate().get(x);
+        return x;
+    }
+
+    private static void write(String file, boolean binary, byte[] data) throws IOException
+    {
+        JRSRArchiveWriter writer = new JRSRArchiveWriter(file, binary);
+        UTFOutputLineStream lines = new UTFOutputLineStream(writer.addMember("header"));
+        lines.encodeLine("PROJECTID", "test");
+        lines.close();
+        OutputStream out = writer.addBinaryMember("data");
+        out.write(data);
+        out.close();
+        writer.addMember("empty").close();
+        writer.close();
+    }
+
+    private static void checkRejected(final String file, String what) throws Exception
+    {
+        test.checkRejected(new TestCheck.Attempt() {
+            public void run() throws IOException
+            {
+                new JRSRArchiveReader(file).close();
+            }
+        }, what);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File dir = File.createTempFile("jrsrtest", "");
+        dir.delete();
+        dir.mkdir();
+        String file = new File(dir, "test.jrsr").getAbsolutePath();
+        byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+
+        write(file, true, data);
+        JRSRArchiveReader reader = new JRSRArchiveReader(file);
+        test.check(reader.isBinary(), "binary archive read as text");
+        test.check(reader.getMembers().equals(new HashSet<String>(Arrays.asList("header", "data", "empty"))),
+            "members " + reader.getMembers());
+        UTFInputLineStream lines = new UTFInputLineStream(reader.readMember("header"));
+        test.check("PROJECTID test".equals(lines.readLine()), "text member");
+        test.check(Arrays.equals(readAll(reader.readBinaryMember("data")), data), "binary member");
+        test.check(readAll(reader.readMember("empty")).length == 0, "empty member");
+        ByteBuffer buffer = reader.readMemberBuffer("data");
+        try {
+            reader.readMember("missing");
+            test.fail("missing member read");
+        } catch(IOException e) {
+        }
+        reader.close();
+
+        //Loaded members must stay readable and not keep the file in use once the reader is closed.
+        test.check(Arrays.equals(contents(buffer), data), "member buffer after close");
+        File renamed = new File(dir, "test.jrsr.backup");
+        test.check(new File(file).renameTo(renamed), "archive can't be renamed after close");
+
+        //Rewriting in place works on the same file name.
+        write(file, true, data);
+        test.check(new JRSRArchiveReader(file).getMembers().size() == 3, "rewritten archive");
+
+        //Text archives four-to-five encode binary members, but can't give them as buffers.
+        String textFile = new File(dir, "text.jrsr").getAbsolutePath();
+        write(textFile, false, data);
+        reader = new JRSRArchiveReader(textFile);
+        test.check(!reader.isBinary(), "text archive read as binary");
+        test.check(Arrays.equals(readAll(reader.readBinaryMember("data")), data), "text archive binary member");
+        try {
+            reader.readMemberBuffer("data");
+            test.fail("buffer of text archive member");
+        } catch(IOException e) {
+        }
+        reader.close();
+
+        JRSRArchiveWriter writer = new JRSRArchiveWriter(new File(dir, "dup.jrsr").getAbsolutePath(), true);
+        writer.addMember("x").close();
+        try {
+            writer.addMember("x");
+            test.fail("duplicate member added");
+        } catch(IOException e) {
+        }
+        writer.rollback();
+
+        //Damaged trailers and member tables.
+        byte[] archive = readAll(new FileInputStream(renamed));
+        String damaged = new File(dir, "damaged.jrsr").getAbsolutePath();
+        FileOutputStream out = new FileOutputStream(damaged);
+        out.write(archive, 0, archive.length - 1);
+        out.close();
+        checkRejected(damaged, "truncated archive");
+        byte[] badTable = archive.clone();
+        badTable[badTable.length - 12] = 0x7F;     //Member table position past the end.
+        out = new FileOutputStream(damaged);
+        out.write(badTable);
+        out.close();
+        checkRejected(damaged, "bad member table position");
+
+        for(File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        test.passed();
+    }
+}
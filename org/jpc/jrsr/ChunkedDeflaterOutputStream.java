@@ -0,0 +1,199 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.jrsr;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Deflates the stream in independently compressed chunks on the common
+ * fork-join pool, so that both compression and decompression of large streams
+ * can use all processors. After MAGIC, each chunk is written as its compressed
+ * and uncompressed lengths (4-byte big-endian) followed by the compressed data.
+ * The stream is ended by chunk with zero compressed length.
+ */
+public class ChunkedDeflaterOutputStream extends OutputStream
+{
+    static final byte[] MAGIC = new byte[]{74, 80, 67, 90};
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private DataOutputStream underlying;
+    private int level;
+    private LinkedList<Future<byte[]>> pending;
+    private LinkedList<Integer> pendingLengths;
+    private int maxPending;
+    private byte[] chunk;
+    private int chunkFill;
+    private boolean closed;
+
+    public ChunkedDeflaterOutputStream(OutputStream out, int level) throws IOException
+    {
+        underlying = new DataOutputStream(out);
+        this.level = level;
+        pending = new LinkedList<Future<byte[]>>();
+        pendingLengths = new LinkedList<Integer>();
+        maxPending = 2 * ForkJoinPool.commonPool().getParallelism() + 1;
+        chunk = new byte[CHUNK_SIZE];
+        underlying.write(MAGIC);
+    }
+
+    static byte[] deflate(byte[] data, int length, int level)
+    {
+        Deflater deflater = new Deflater(level);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[65536];
+        while(!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    static byte[] waitFor(Future<byte[]> task) throws IOException
+    {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return task.get();
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof IOException)
+                        throw (IOException)e.getCause();
+                    throw new IOException("Chunk (de)compression failed: " + e.getCause());
+                }
+            }
+        } finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    static void cancelAll(List<Future<byte[]>> tasks)
+    {
+        for(Future<byte[]> task : tasks)
+            task.cancel(false);
+        tasks.clear();
+    }
+
+    private void submitChunk() throws IOException
+    {
+        final byte[] data = chunk;
+        final int length = chunkFill;
+        pending.add(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+            public byte[] call()
+            {
+                return deflate(data, length, level);
+            }
+        }));
+        pendingLengths.add(new Integer(length));
+        chunk = new byte[CHUNK_SIZE];
+        chunkFill = 0;
+        while(pending.size() > maxPending)
+            writeChunk();
+    }
+
+    private void writeChunk() throws IOException
+    {
+        try {
+            byte[] compressed = waitFor(pending.removeFirst());
+            underlying.writeInt(compressed.length);
+            underlying.writeInt(pendingLengths.removeFirst().intValue());
+            underlying.write(compressed);
+        } catch(IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives up on the stream without ending it, cancelling compression of
+     * chunks still pending. Does nothing if the stream is already closed.
+     */
+    public void abort()
+    {
+        if(closed)
+            return;
+        cancelAll(pending);
+        pendingLengths.clear();
+        chunk = null;
+        closed = true;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if(closed)
+            throw new IOException("Trying to operate on closed stream");
+        while(len > 0) {
+            int copy = Math.min(len, CHUNK_SIZE - chunkFill);
+            System.arraycopy(b, off, chunk, chunkFill, copy);
+            chunkFill += copy;
+            off += copy;
+            len -= copy;
+            if(chunkFill == CHUNK_SIZE)
+                submitChunk();
+        }
+    }
+
+    public void write(byte[] b) throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+    public void write(int b) throws IOException
+    {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    public void flush() throws IOException
+    {
+        if(closed)
+            throw new IOException("Trying to operate on closed stream");
+        underlying.flush();
+    }
+
+    public void close() throws IOException
+    {
+        if(closed)
+            return;
+        if(chunkFill > 0)
+            submitChunk();
+        while(!pending.isEmpty())
+            writeChunk();
+        underlying.writeInt(0);
+        underlying.writeInt(0);
+        underlying.close();
+        closed = true;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.jrsr;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.jpc.TestCheck;
+
+public class ChunkedDeflaterTest
+{
+    private static final TestCheck test = new TestCheck("Chunked deflater");
+
+    private static final int CHUNK = ChunkedDeflaterOutputStream.CHUNK_SIZE;
+
+    private static byte[] data(int size)
+    {
+        //Compressible, but not trivially so.
+        byte[] x = new byte[size];
+        Random random = new Random(size);
+        for(int i = 0; i < size; i++)
+            x[i] = (byte)((i % 251 < 100) ? random.nextInt(16) : i);
+        return x;
+    }
+
+    private static byte[] compress(byte[] x, int level) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedDeflaterOutputStream z = new ChunkedDeflaterOutputStream(out, level);
+        //Write in uneven pieces, so that writes straddle chunk boundaries.
+        int off = 0;
+        for(int piece = 1; off < x.length; piece = piece * 3 + 1) {
+            int len = Math.min(piece, x.length - off);
+            if(len == 1)
+                z.write(x[off]);
+            else
+                z.write(x, off, len);
+            off += len;
+        }
+        z.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException
+    {
+        InputStream in = ChunkedInflaterInputStream.open(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7777];
+        while(true) {
+            int c = in.read();
+            if(c < 0)
+                break;
+            out.write(c);
+            int r = in.read(buf);
+            if(r < 0)
+                break;
+            out.write(buf, 0, r);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void checkRejected(final byte[] compressed, String what) throws Exception
+    {
+        test.checkRejected(new TestCheck.Attempt() {
+            public void run() throws IOException
+            {
+                decompress(compressed);
+            }
+        }, what);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int[] sizes = new int[]{0, 1, 5, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK, 3 * CHUNK + 17};
+        for(int size : sizes)
+            for(int level : new int[]{Deflater.NO_COMPRESSION, Deflater.DEFAULT_COMPRESSION}) {
+                byte[] x = data(size);
+                byte[] compressed = compress(x, level);
+                test.check(Arrays.equals(Arrays.copyOf(compressed, 4), ChunkedDeflaterOutputStream.MAGIC),
+                    "magic for " + size);
+                int chunks = (size + CHUNK - 1) / CHUNK;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(compressed, 4,
+                    compressed.length - 4));
+                for(int i = 0; i < chunks; i++) {
+                    int compressedLength = in.readInt();
+                    test.check(in.readInt() == Math.min(CHUNK, size - i * CHUNK), "chunk #" + i + " of " + size);
+                    in.skipBytes(compressedLength);
+                }
+                test.check(in.readInt() == 0 && in.readInt() == 0 && in.available() == 0, "end of " + size);
+                test.check(Arrays.equals(decompress(compressed), x), "round trip of " + size + " at level " + level);
+            }
+
+        //Streams from before chunking are plain zlib.
+        for(int size : new int[]{0, 3, CHUNK + 1}) {
+            byte[] x = data(size);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DeflaterOutputStream z = new DeflaterOutputStream(out);
+            z.write(x);
+            z.close();
+            test.check(Arrays.equals(decompress(out.toByteArray()), x), "plain zlib of " + size);
+        }
+
+        byte[] compressed = compress(data(2 * CHUNK), Deflater.DEFAULT_COMPRESSION);
+        checkRejected(Arrays.copyOf(compressed, compressed.length - 8), "stream without end");
+        checkRejected(Arrays.copyOf(compressed, compressed.length / 2), "truncated stream");
+        byte[] corrupt = compressed.clone();
+        corrupt[20] ^= 0x55;
+        checkRejected(corrupt, "corrupt chunk");
+        byte[] badLength = compressed.clone();
+        badLength[9] ^= 0x01;     //Uncompressed length of first chunk.
+        checkRejected(badLength, "wrong chunk length");
+        byte[] hugeChunk = compressed.clone();
+        hugeChunk[4] = 0x7F;
+        checkRejected(hugeChunk, "oversized chunk");
+
+        //Interrupts during waits for chunks are kept for the caller.
+        Thread.currentThread().interrupt();
+        byte[] x = data(3 * CHUNK);
+        compressed = compress(x, Deflater.DEFAULT_COMPRESSION);
+        test.check(Thread.interrupted(), "interrupt lost while compressing");
+        Thread.currentThread().interrupt();
+        test.check(Arrays.equals(decompress(compressed), x), "round trip while interrupted");
+        test.check(Thread.interrupted(), "interrupt lost while decompressing");
+
+        ChunkedDeflaterOutputStream aborted = new ChunkedDeflaterOutputStream(new ByteArrayOutputStream(),
+            Deflater.DEFAULT_COMPRESSION);
+        aborted.write(x);
+        aborted.abort();
+        try {
+            aborted.write(x);
+            test.fail("write after abort");
+        } catch(IOException e) {
+        }
+        test.passed();
+    }
+}
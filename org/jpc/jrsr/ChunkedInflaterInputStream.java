@@ -0,0 +1,187 @@
+/*
+    JPC-RR: A x86 PC Hardware Emulator
+    Release 1
+
+    Copyright (C) 2007-2009 Isis Innovation Limited
+    Copyright (C) 2009 H. Ilari Liusvaara
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Based on JPC x86 PC Hardware emulator,
+    A project from the Physics Dept, The University of Oxford
+
+    Details about original JPC can be found at:
+
+    www-jpc.physics.ox.ac.uk
+
+*/
+
+package org.jpc.jrsr;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Reads stream written by ChunkedDeflaterOutputStream, inflating the chunks
+ * ahead of the reader on the common fork-join pool.
+ */
+public class ChunkedInflaterInputStream extends InputStream
+{
+    private static final int MAX_CHUNK_SIZE = 16 << 20;
+
+    private DataInputStream underlying;
+    private LinkedList<Future<byte[]>> pending;
+    private int maxPending;
+    private boolean ended;
+    private byte[] current;
+    private int currentPos;
+    private boolean closed;
+
+    private ChunkedInflaterInputStream(InputStream in)
+    {
+        underlying = new DataInputStream(in);
+        pending = new LinkedList<Future<byte[]>>();
+        maxPending = 2 * ForkJoinPool.commonPool().getParallelism() + 1;
+        current = new byte[0];
+    }
+
+    /**
+     * Returns stream decompressing <code>in</code>, which may either be
+     * written by ChunkedDeflaterOutputStream or be plain zlib stream.
+     */
+    public static InputStream open(InputStream in) throws IOException
+    {
+        PushbackInputStream input = new PushbackInputStream(in, ChunkedDeflaterOutputStream.MAGIC.length);
+        byte[] magic = new byte[ChunkedDeflaterOutputStream.MAGIC.length];
+        int fill = 0;
+        while(fill < magic.length) {
+            int r = input.read(magic, fill, magic.length - fill);
+            if(r < 0)
+                break;
+            fill += r;
+        }
+        if(fill == magic.length && Arrays.equals(magic, ChunkedDeflaterOutputStream.MAGIC))
+            return new ChunkedInflaterInputStream(input);
+        input.unread(magic, 0, fill);
+        return new InflaterInputStream(input);
+    }
+
+    static byte[] inflate(byte[] data, int length) throws IOException
+    {
+        Inflater inflater = new Inflater();
+        byte[] out = new byte[length];
+        byte[] excess = new byte[1];
+        try {
+            inflater.setInput(data);
+            int fill = 0;
+            while(!inflater.finished()) {
+                //Once the chunk is full, only the end of stream may follow.
+                int r = (fill < length) ? inflater.inflate(out, fill, length - fill) : inflater.inflate(excess);
+                if(fill == length && r > 0)
+                    throw new IOException("Compressed savestate chunk is corrupt");
+                if(r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                fill += r;
+            }
+            if(fill < length || !inflater.finished())
+                throw new IOException("Compressed savestate chunk is corrupt");
+        } catch(DataFormatException e) {
+            throw new IOException("Compressed savestate chunk is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
+    private void readAhead() throws IOException
+    {
+        while(!ended && pending.size() < maxPending) {
+            int compressedLength = underlying.readInt();
+            final int length = underlying.readInt();
+            if(compressedLength == 0) {
+                ended = true;
+                break;
+            }
+            if(compressedLength < 0 || length < 0 || compressedLength > MAX_CHUNK_SIZE || length > MAX_CHUNK_SIZE)
+                throw new IOException("Bad compressed savestate chunk size");
+            final byte[] data = new byte[compressedLength];
+            underlying.readFully(data);
+            pending.add(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException
+                {
+                    return inflate(data, length);
+                }
+            }));
+        }
+    }
+
+    private boolean nextChunk() throws IOException
+    {
+        while(currentPos == current.length) {
+            readAhead();
+            if(pending.isEmpty())
+                return false;
+            try {
+                current = ChunkedDeflaterOutputStream.waitFor(pending.removeFirst());
+            } catch(IOException e) {
+                ChunkedDeflaterOutputStream.cancelAll(pending);
+                throw e;
+            }
+            currentPos = 0;
+        }
+        return true;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if(closed)
+            throw new IOException("Trying to operate on closed stream");
+        if(len == 0)
+            return 0;
+        if(!nextChunk())
+            return -1;
+        len = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, len);
+        currentPos += len;
+        return len;
+    }
+
+    public int read(byte[] b) throws IOException
+    {
+        return read(b, 0, b.length);
+    }
+
+    public int read() throws IOException
+    {
+        if(closed)
+            throw new IOException("Trying to operate on closed stream");
+        if(!nextChunk())
+            return -1;
+        return (int)current[currentPos++] & 0xFF;
+    }
+
+    public int available()
+    {
+        return current.length - currentPos;
+    }
+
+    public void close() throws IOException
+    {
+        ChunkedDeflaterOutputStream.cancelAll(pending);
+        underlying.close();
+        closed = true;
+    }
+}
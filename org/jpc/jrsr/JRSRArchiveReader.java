@@ -32,8 +32,10 @@ package org.jpc.jrsr;
 import java.io.*;
 import java.util.*;
 import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import static org.jpc.Misc.isspace;
+import static org.jpc.Misc.nextParseLine;
 
 public class JRSRArchiveReader implements Closeable
 {
@@ -42,6 +44,7 @@ public class JRSRArchiveReader implements Closeable
     private Map<String, Long> memberEnd;
     private String currentMember;
     private boolean closed;
+    private boolean binary;
 
     private byte[] buffer;
     private int bufferFill;
@@ -69,6 +72,12 @@ public class JRSRArchiveReader implements Closeable
         private int bufferStart;
         private int bufferFill;
         private boolean closed2;
+        private ByteBuffer contents;    //Binary archives only.
+
+        JRSRArchiveInputStream(ByteBuffer contents)
+        {
+            this.contents = contents;
+        }
 
         JRSRArchiveInputStream(long startPoint, long endPoint)
         {
@@ -294,6 +303,11 @@ public class JRSRArchiveReader implements Closeable
         {
             if(closed || closed2)
                 throw new IOException("Trying to operate on closed stream");
+            if(contents != null) {
+                long skipped = Math.max(Math.min(n, contents.remaining()), 0);
+                contents.position(contents.position() + (int)skipped);
+                return skipped;
+            }
             long processed = 0;
             while(n > 0) {
                 long x = copyLine(null, 0, n);
@@ -309,6 +323,15 @@ public class JRSRArchiveReader implements Closeable
         {
             if(closed || closed2)
                 throw new IOException("Trying to operate on closed stream");
+            if(contents != null) {
+                if(len == 0)
+                    return 0;
+                if(!contents.hasRemaining())
+                    return -1;
+                len = Math.min(len, contents.remaining());
+                contents.get(b, off, len);
+                return len;
+            }
             long processed = 0;
             while(len > 0) {
                 long x = copyLine(b, off, len);
@@ -323,6 +346,8 @@ public class JRSRArchiveReader implements Closeable
 
         public int available()
         {
+            if(contents != null)
+                return contents.remaining();
             return 1000; /* Just return something. */
         }
 
@@ -335,6 +360,8 @@ public class JRSRArchiveReader implements Closeable
         {
             if(closed || closed2)
                 throw new IOException("Trying to operate on closed stream");
+            if(contents != null)
+                return contents.hasRemaining() ? ((int)contents.get() & 0xFF) : -1;
             byte[] x = new byte[1];
             int r;
             r = read(x, 0, 1);
@@ -725,7 +752,9 @@ public class JRSRArchiveReader implements Closeable
         byte[] header = new byte[5];
         try {
             underlying.readFully(header);
-            if(header[0] != (byte)74 || header[1] != (byte)82 || header[2] != (byte)83 ||
+            if(Arrays.equals(header, JRSRArchiveWriter.BINARY_MAGIC))
+                binary = true;
+            else if(header[0] != (byte)74 || header[1] != (byte)82 || header[2] != (byte)83 ||
                     header[3] != (byte)82)
                 throw new IOException("Bad magic");
             switch((int)header[4] & 0xFF) {
@@ -765,7 +794,137 @@ public class JRSRArchiveReader implements Closeable
         } catch(IOException e) {
             throw new IOException("Bad JRSR archive magic in \"" + file + "\"");
         }
-        parseMembers(base);
+        if(binary)
+            parseMemberTable();
+        else if(!loadIndex()) {
+            memberStart.clear();
+            memberEnd.clear();
+            currentMember = null;
+            underlying.seek(base);
+            parseMembers(base);
+        }
+        memberStart.remove(JRSRArchiveWriter.INDEX_MEMBER);
+        memberEnd.remove(JRSRArchiveWriter.INDEX_MEMBER);
+    }
+
+    private boolean hasBytesAt(long position, byte[] expected) throws IOException
+    {
+        if(position < 0 || position + expected.length > underlying.length())
+            return false;
+        byte[] actual = new byte[expected.length];
+        underlying.seek(position);
+        underlying.readFully(actual);
+        return Arrays.equals(actual, expected);
+    }
+
+    private boolean hasBeginLineBefore(long position, String name) throws IOException
+    {
+        byte[] encoded = name.getBytes("UTF-8");
+        byte[] expected = new byte[JRSRArchiveWriter.BEGIN_PREFIX.length + encoded.length + 1];
+        System.arraycopy(JRSRArchiveWriter.BEGIN_PREFIX, 0, expected, 0, JRSRArchiveWriter.BEGIN_PREFIX.length);
+        System.arraycopy(encoded, 0, expected, JRSRArchiveWriter.BEGIN_PREFIX.length, encoded.length);
+        expected[expected.length - 1] = 10;
+        return hasBytesAt(position - expected.length, expected);
+    }
+
+    /**
+     * Locates the members using the index written as last member of the
+     * archive. Returns false if there is no index or it doesn't match the
+     * archive, in which case the archive has to be scanned.
+     */
+    private boolean loadIndex() throws IOException
+    {
+        long length = underlying.length();
+        long indexEnd = length - JRSRArchiveWriter.END_LINE.length;
+        if(!hasBytesAt(indexEnd, JRSRArchiveWriter.END_LINE))
+            return false;
+
+        //The last line of the index is "+INDEX <start>".
+        byte[] tail = new byte[(int)Math.min(64, indexEnd)];
+        underlying.seek(indexEnd - tail.length);
+        underlying.readFully(tail);
+        int lineStart = tail.length - 1;
+        while(lineStart > 0 && tail[lineStart - 1] != 10)
+            lineStart--;
+        if(lineStart == 0 || tail[tail.length - 1] != 10)
+            return false;
+        String line = utf8ToString(tail, lineStart, tail.length - 1 - lineStart);
+        if(!line.startsWith("+INDEX "))
+            return false;
+        long indexStart;
+        try {
+            indexStart = Long.parseLong(line.substring(7));
+        } catch(NumberFormatException e) {
+            return false;
+        }
+        if(indexStart < 0 || indexStart > indexEnd ||
+                !hasBeginLineBefore(indexStart, JRSRArchiveWriter.INDEX_MEMBER))
+            return false;
+
+        try {
+            UTFInputLineStream lines = new UTFInputLineStream(new JRSRArchiveInputStream(indexStart, indexEnd));
+            String[] components = nextParseLine(lines);
+            while(components != null && components.length == 3) {
+                String name = components[0];
+                long start = Long.parseLong(components[1]);
+                long end = Long.parseLong(components[2]);
+                if(name.length() == 0 || isspace(name.charAt(0)) || start > end || end > indexStart)
+                    return false;
+                if(!hasBeginLineBefore(start, name))
+                    return false;
+                startMember(name, start, start);
+                endMember(end);
+                components = nextParseLine(lines);
+            }
+            if(components == null || components.length != 2 || !"INDEX".equals(components[0]) ||
+                    Long.parseLong(components[1]) != indexStart || nextParseLine(lines) != null)
+                return false;
+        } catch(NumberFormatException e) {
+            return false;
+        } catch(IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void parseMemberTable() throws IOException
+    {
+        long length = underlying.length();
+        byte[] trailer = new byte[JRSRArchiveWriter.BINARY_TRAILER_SIZE];
+        if(length < JRSRArchiveWriter.BINARY_MAGIC.length + trailer.length)
+            throw new IOException("Unexpected end of binary JRSR archive");
+        underlying.seek(length - trailer.length);
+        underlying.readFully(trailer);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(trailer));
+        long tableStart = in.readLong();
+        byte[] magic = new byte[JRSRArchiveWriter.BINARY_TRAILER_MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, JRSRArchiveWriter.BINARY_TRAILER_MAGIC))
+            throw new IOException("Bad binary JRSR archive trailer");
+        long tableEnd = length - trailer.length;
+        if(tableStart < JRSRArchiveWriter.BINARY_MAGIC.length || tableStart > tableEnd ||
+                tableEnd - tableStart > Integer.MAX_VALUE)
+            throw new IOException("Bad binary JRSR archive member table position");
+
+        byte[] table = new byte[(int)(tableEnd - tableStart)];
+        underlying.seek(tableStart);
+        underlying.readFully(table);
+        in = new DataInputStream(new ByteArrayInputStream(table));
+        try {
+            int members = in.readInt();
+            for(int i = 0; i < members; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                long start = in.readLong();
+                long size = in.readLong();
+                if(start < JRSRArchiveWriter.BINARY_MAGIC.length || size < 0 || size > tableStart - start)
+                    throw new IOException("Bad binary JRSR archive member extent");
+                startMember(utf8ToString(name, 0, name.length), start, start);
+                endMember(start + size);
+            }
+        } catch(EOFException e) {
+            throw new IOException("Unexpected end of binary JRSR archive member table");
+        }
     }
 
     public void close() throws IOException
@@ -784,9 +943,63 @@ public class JRSRArchiveReader implements Closeable
         Long end = memberEnd.get(name);
         if(start == null || end == null)
             throw new IOException("No such member \"" + name + "\" in JRSR archive.");
+        if(binary)
+            return new JRSRArchiveInputStream(loadMember(start.longValue(), end.longValue()));
         return new JRSRArchiveInputStream(start.longValue(), end.longValue());
     }
 
+    //On Windows a mapping keeps the file locked until it gets garbage collected, so the archive couldn't be
+    //renamed after close(). Members are copied to heap there, and mapped without copying elsewhere.
+    private static final boolean COPY_MEMBERS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private synchronized ByteBuffer loadMember(long start, long end) throws IOException
+    {
+        if(end - start > Integer.MAX_VALUE)
+            throw new IOException("JRSR archive member too large to load");
+        FileChannel channel = underlying.getChannel();
+        if(!COPY_MEMBERS)
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        ByteBuffer contents = ByteBuffer.allocate((int)(end - start));
+        while(contents.hasRemaining())
+            if(channel.read(contents, start + contents.position()) < 0)
+                throw new IOException("Unexpected end of JRSR archive member");
+        contents.flip();
+        return contents;
+    }
+
+    public boolean isBinary()
+    {
+        return binary;
+    }
+
+    /**
+     * Returns contents of member of binary archive as buffer, mapped from the
+     * archive file where that doesn't keep the file locked. The buffer stays
+     * valid after the archive is closed.
+     */
+    public ByteBuffer readMemberBuffer(String name) throws IOException
+    {
+        if(closed)
+            throw new IOException("Trying to operate on closed stream");
+        if(!binary)
+            throw new IOException("Only members of binary JRSR archives can be read as buffer");
+        Long start = memberStart.get(name);
+        Long end = memberEnd.get(name);
+        if(start == null || end == null)
+            throw new IOException("No such member \"" + name + "\" in JRSR archive.");
+        return loadMember(start.longValue(), end.longValue());
+    }
+
+    /**
+     * Reads member written by JRSRArchiveWriter.addBinaryMember.
+     */
+    public InputStream readBinaryMember(String name) throws IOException
+    {
+        if(binary)
+            return readMember(name);
+        return new FourToFiveDecoder(readMember(name));
+    }
+
     public Set<String> getMembers() throws IOException
     {
         Set<String> ret = new HashSet<String>();
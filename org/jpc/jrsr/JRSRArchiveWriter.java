@@ -30,6 +30,7 @@
 package org.jpc.jrsr;
 
 import java.io.*;
+import java.util.*;
 import java.nio.*;
 import java.nio.charset.*;
 import static org.jpc.Misc.tempname;
@@ -42,6 +43,18 @@ public class JRSRArchiveWriter implements Closeable
     private String finalName;
     private File temporary;
     private boolean closed;
+    private boolean binary;
+    private long position;
+    private List<String> memberNames;
+    private List<Long> memberStarts;
+    private List<Long> memberEnds;
+
+    static final byte[] BINARY_MAGIC = new byte[]{74, 82, 83, 66, 10};
+    static final byte[] BINARY_TRAILER_MAGIC = new byte[]{74, 82, 83, 66};
+    static final int BINARY_TRAILER_SIZE = 12;
+    static final String INDEX_MEMBER = "jrsr-index";
+    static final byte[] BEGIN_PREFIX = new byte[]{33, 66, 69, 71, 73, 78, 32};
+    static final byte[] END_LINE = new byte[]{33, 69, 78, 68, 10};
 
     public class JRSRArchiveOutputStream extends OutputStream
     {
@@ -60,9 +73,10 @@ public class JRSRArchiveWriter implements Closeable
             flush();
             active = false;
             byte[] postfix = new byte[]{10};
-            if(!atLineStart)
-                underlying.write(postfix);
+            if(!binary && !atLineStart)
+                writeRaw(postfix, 0, 1);
             underlying.flush();
+            memberEnds.add(new Long(position));
             closed2 = true;
         }
 
@@ -86,6 +100,10 @@ public class JRSRArchiveWriter implements Closeable
         {
             if(closed || closed2)
                 throw new IOException("Trying to operate on closed stream");
+            if(binary) {
+                writeRaw(b, off, len);
+                return;
+            }
             byte[] outputBuffer = new byte[2048];
             int outputFill = 0;
             while(len > 0) {
@@ -116,7 +134,7 @@ public class JRSRArchiveWriter implements Closeable
 
                 // If we hit output buffer end, flush it.
                 if(condition1Length == minLength) {
-                    underlying.write(outputBuffer);
+                    writeRaw(outputBuffer, 0, outputBuffer.length);
                     outputFill = 0;
                 }
 
@@ -126,7 +144,7 @@ public class JRSRArchiveWriter implements Closeable
                 }
             }
             if(outputFill > 0)
-                underlying.write(outputBuffer, 0, outputFill);
+                writeRaw(outputBuffer, 0, outputFill);
         }
 
         public void write(byte[] b) throws IOException
@@ -142,14 +160,88 @@ public class JRSRArchiveWriter implements Closeable
     }
 
     public JRSRArchiveWriter(String file) throws IOException
+    {
+        this(file, false);
+    }
+
+    /**
+     * Opens archive for writing. Binary archives store members raw one after
+     * another, followed by a table of member names and extents and a fixed
+     * size trailer pointing to it, so that they can be read without parsing.
+     */
+    public JRSRArchiveWriter(String file, boolean binary) throws IOException
     {
         active = false;
         String temporaryName = tempname(file);
         temporary = new File(temporaryName);
         finalName = file;
-        underlying = new FileOutputStream(temporary);
-        byte[] prefix = new byte[]{74, 82, 83, 82, 10};
-        underlying.write(prefix);
+        this.binary = binary;
+        memberNames = new ArrayList<String>();
+        memberStarts = new ArrayList<Long>();
+        memberEnds = new ArrayList<Long>();
+        if(binary) {
+            underlying = new BufferedOutputStream(new FileOutputStream(temporary), 65536);
+            writeRaw(BINARY_MAGIC, 0, BINARY_MAGIC.length);
+        } else {
+            underlying = new FileOutputStream(temporary);
+            byte[] prefix = new byte[]{74, 82, 83, 82, 10};
+            writeRaw(prefix, 0, prefix.length);
+        }
+    }
+
+    private void writeRaw(byte[] b, int off, int len) throws IOException
+    {
+        underlying.write(b, off, len);
+        position += len;
+    }
+
+    public boolean isBinary()
+    {
+        return binary;
+    }
+
+    /**
+     * Adds member for binary data. In text archives the data is four-to-five
+     * encoded, in binary archives it is stored as is.
+     */
+    public OutputStream addBinaryMember(String name) throws IOException
+    {
+        if(binary)
+            return addMember(name);
+        return new FourToFiveEncoder(addMember(name));
+    }
+
+    private void writeMemberTable() throws IOException
+    {
+        long tableStart = position;
+        DataOutputStream table = new DataOutputStream(underlying);
+        table.writeInt(memberNames.size());
+        for(int i = 0; i < memberNames.size(); i++) {
+            byte[] name = memberNames.get(i).getBytes("UTF-8");
+            table.writeShort(name.length);
+            table.write(name);
+            table.writeLong(memberStarts.get(i).longValue());
+            table.writeLong(memberEnds.get(i).longValue() - memberStarts.get(i).longValue());
+        }
+        table.writeLong(tableStart);
+        table.write(BINARY_TRAILER_MAGIC);
+        table.flush();
+    }
+
+    /**
+     * Writes index of members of text archive as its last member, so readers
+     * can find the members without scanning the whole archive. The last line
+     * of the index gives the position where it starts.
+     */
+    private void writeIndex() throws IOException
+    {
+        int members = memberNames.size();
+        UTFOutputLineStream lines = new UTFOutputLineStream(startMember(INDEX_MEMBER));
+        long indexStart = position;
+        for(int i = 0; i < members; i++)
+            lines.encodeLine(memberNames.get(i), memberStarts.get(i), memberEnds.get(i));
+        lines.writeLine("INDEX " + indexStart);
+        lines.close();
     }
 
     public void rollback() throws IOException
@@ -167,8 +259,12 @@ public class JRSRArchiveWriter implements Closeable
             return;
         if(active)
             throw new IOException("Trying close JRSR Archive without closing member");
-        byte[] prefix = new byte[]{33, 69, 78, 68, 10};
-        underlying.write(prefix);
+        if(binary) {
+            writeMemberTable();
+        } else {
+            writeIndex();
+            writeRaw(END_LINE, 0, END_LINE.length);
+        }
         underlying.flush();
         underlying.close();
         renameFile(temporary, new File(finalName));
@@ -176,12 +272,18 @@ public class JRSRArchiveWriter implements Closeable
     }
 
     public JRSRArchiveOutputStream addMember(String name) throws IOException
+    {
+        if(INDEX_MEMBER.equals(name))
+            throw new IOException("JRSR member name \"" + name + "\" is reserved");
+        return startMember(name);
+    }
+
+    private JRSRArchiveOutputStream startMember(String name) throws IOException
     {
         if(closed)
             throw new IOException("Trying to operate on closed stream");
         if(active)
             throw new IOException("Trying to add new member to JRSR Archive without closing previous");
-        byte[] prefix = new byte[]{33, 66, 69, 71, 73, 78, 32};
         byte[] postfix = new byte[]{10};
 
         ByteBuffer buf;
@@ -194,9 +296,15 @@ public class JRSRArchiveWriter implements Closeable
         buf.get(buf2);
         if(buf2.length > 1024)
             throw new IOException("JRSR member maximum name length of 1024 bytes exceeded");
-        underlying.write(prefix);
-        underlying.write(buf2);
-        underlying.write(postfix);
+        if(binary && memberNames.contains(name))
+            throw new IOException("Member \"" + name + "\" added to JRSR archive multiple times");
+        if(!binary) {
+            writeRaw(BEGIN_PREFIX, 0, BEGIN_PREFIX.length);
+            writeRaw(buf2, 0, buf2.length);
+            writeRaw(postfix, 0, postfix.length);
+        }
+        memberNames.add(name);
+        memberStarts.add(new Long(position));
         active = true;
         return new JRSRArchiveOutputStream();
     }
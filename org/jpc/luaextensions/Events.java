@@ -78,6 +78,16 @@ public class Events extends LuaPlugin.LuaResource
         return 1;
     }
 
+    public static int luaCB_sequence_at_time(Lua l, LuaPlugin plugin)
+    {
+        EventRecorder rec = getRecorder(l, plugin);
+        if(rec != null) {
+            long time = (long)l.checkNumber(1);
+            l.pushNumber((double)rec.getEventSequenceAtTime(time));
+        }
+        return 1;
+    }
+
     public static int luaCB_by_sequence(Lua l, LuaPlugin plugin)
     {
         EventRecorder rec = getRecorder(l, plugin);
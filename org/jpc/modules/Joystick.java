@@ -33,7 +33,7 @@ import org.jpc.emulator.*;
 import org.jpc.emulator.motherboard.*;
 import java.io.*;
 
-public class Joystick extends AbstractHardwareComponent implements IOPortCapable, EventDispatchTarget
+public class Joystick extends AbstractHardwareComponent implements IOPortCapable, EventCheckpointTarget
 {
     private boolean ioportRegistered;
     private Clock clock;
@@ -232,6 +232,20 @@ public class Joystick extends AbstractHardwareComponent implements IOPortCapable
         }
     }
 
+    public Object getEventCheckpoint()
+    {
+        return new Object[]{axisHold.clone(), axisHoldV.clone(), button.clone(), buttonV.clone()};
+    }
+
+    public void setEventCheckpoint(Object checkpoint)
+    {
+        Object[] state = (Object[])checkpoint;
+        System.arraycopy((long[])state[0], 0, axisHold, 0, 4);
+        System.arraycopy((long[])state[1], 0, axisHoldV, 0, 4);
+        System.arraycopy((boolean[])state[2], 0, button, 0, 4);
+        System.arraycopy((boolean[])state[3], 0, buttonV, 0, 4);
+    }
+
     public void endEventCheck() throws IOException
     {
         //Nothing to do.
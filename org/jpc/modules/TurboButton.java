@@ -34,7 +34,7 @@ import org.jpc.emulator.processor.Processor;
 import org.jpc.emulator.motherboard.*;
 import java.io.*;
 
-public class TurboButton extends AbstractHardwareComponent implements EventDispatchTarget
+public class TurboButton extends AbstractHardwareComponent implements EventCheckpointTarget
 {
     private Processor cpu;
     private Clock clock;
@@ -139,6 +139,21 @@ public class TurboButton extends AbstractHardwareComponent implements EventDispa
         STATUS_TURBO = "" + cpu.clockDivider;
     }
 
+    public Object getEventCheckpoint()
+    {
+        return new boolean[]{savedRate > 0, edgeActive};
+    }
+
+    public void setEventCheckpoint(Object checkpoint)
+    {
+        boolean[] state = (boolean[])checkpoint;
+        if(state[0]) {
+            savedRate = cpu.clockDivider;
+            cpu.clockDivider = 1;
+        }
+        edgeActive = state[1];
+    }
+
     public long getEventTimeLowBound(long stamp, String[] args) throws IOException
     {
         return -1;  //No constraints.
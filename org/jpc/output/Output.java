@@ -42,6 +42,7 @@ public class Output implements SRDumpable
     private long timeAdjust;
     private OutputStatic staticOutput;
     private boolean channelTableUpdated;
+    private boolean onlyWhenConsumed;
     //Saved.
     private Map<Short, OutputChannel> channels;
 
@@ -68,7 +69,7 @@ public class Output implements SRDumpable
     {
         frame.adjustTime(timeAdjust);
         short ch = chan.getChan();
-        if(staticOutput != null) {
+        if(isConnected()) {
             if(channelTableUpdated) {
                 staticOutput.updateChannelTable(channels);
                 channelTableUpdated = false;
@@ -77,6 +78,18 @@ public class Output implements SRDumpable
         }
     }
 
+    //Frames added are dropped if this is false.
+    public boolean isConnected()
+    {
+        return staticOutput != null && (!onlyWhenConsumed || staticOutput.hasClients());
+    }
+
+    //Treat output as disconnected while no client consumes it.
+    public void setOnlyWhenConsumed(boolean flag)
+    {
+        onlyWhenConsumed = flag;
+    }
+
     public void setStaticOutput(OutputStatic staticOut, long newAdjust)
     {
         timeAdjust = newAdjust;
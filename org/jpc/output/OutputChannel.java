@@ -73,6 +73,11 @@ public class OutputChannel implements SRDumpable
         return type;
     }
 
+    public boolean isConnected()
+    {
+        return out.isConnected();
+    }
+
     public void addFrame(OutputFrame newFrame, boolean sync)
     {
         out.addFrame(this, newFrame, sync);
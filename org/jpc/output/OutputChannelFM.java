@@ -44,16 +44,22 @@ public class OutputChannelFM extends OutputChannel
 
     public void addFrameVolumeChange(long timestamp, int ln, int ld, int rn, int rd)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameVolumeChange(timestamp, ln, ld, rn, rd), false);
     }
 
     public void addFrameWrite(long timestamp, short reg, byte val)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameFM(timestamp, reg, val), false);
     }
 
     public void addFrameReset(long timestamp)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameFMReset(timestamp), false);
     }
 
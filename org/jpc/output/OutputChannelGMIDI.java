@@ -44,6 +44,8 @@ public class OutputChannelGMIDI extends OutputChannel
 
     public void addFrameData(long timestamp, byte data)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameGMIDIData(timestamp, data), false);
     }
 
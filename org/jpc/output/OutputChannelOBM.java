@@ -44,6 +44,8 @@ public class OutputChannelOBM extends OutputChannel
 
     public void addFrameOBM(long timestamp, boolean status)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameOneBitMono(timestamp, status), false);
     }
 
@@ -44,16 +44,22 @@ public class OutputChannelPCM extends OutputChannel
 
     public void addFrameVolumeChange(long timestamp, int ln, int ld, int rn, int rd)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameVolumeChange(timestamp, ln, ld, rn, rd), false);
     }
 
     public void addFrameSampleStereo(long timestamp, short left, short right)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFramePCM(timestamp, left, right), false);
     }
 
     public void addFrameSampleMono(long timestamp, short mono)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFramePCM(timestamp, mono, mono), false);
     }
 
@@ -44,6 +44,8 @@ public class OutputChannelVideo extends OutputChannel
 
     public void addFrameVideo(long timestamp, short width, short height, int[] image)
     {
+        if(!isConnected())
+            return;
         addFrame(new OutputFrameImage(timestamp, width, height, image), true);
     }
 
@@ -170,8 +170,15 @@ public class OutputStatic
     volatile int clientsReleasing;
     volatile int clientsReleased;
     volatile boolean waiting;
+    volatile int clientCount;
     Set<OutputClient> clients;
 
+    //Unsynchronized, devices check this for every frame.
+    public boolean hasClients()
+    {
+        return clientCount > 0;
+    }
+
     private void setClientState(OutputClient c, int newState)
     {
         if(c.getState() == -1)
@@ -227,6 +234,7 @@ public class OutputStatic
     protected synchronized void clientNew(OutputClient c)
     {
         if(clients.add(c)) {
+           clientCount++;
            c.setState(-1);
            setClientState(c, 0);
         }
@@ -235,6 +243,7 @@ public class OutputStatic
     protected synchronized void clientDestroy(OutputClient c)
     {
         if(clients.remove(c)) {
+            clientCount--;
             setClientState(c, -1);
         }
     }
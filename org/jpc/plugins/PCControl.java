@@ -32,6 +32,14 @@ package org.jpc.plugins;
 import java.awt.Dimension;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.math.BigInteger;
 import java.lang.reflect.*;
 import java.security.AccessControlException;
@@ -44,6 +52,7 @@ import javax.swing.border.EtchedBorder;
 import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.PC;
 import org.jpc.emulator.EventRecorder;
+import org.jpc.emulator.RewindBuffer;
 import org.jpc.emulator.TraceTrap;
 import org.jpc.emulator.DriveSet;
 import org.jpc.emulator.DisplayController;
@@ -102,6 +111,7 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
     private static String ASSEMBLE_LABEL = "Assembling system...";
     private static String ADDDISK_LABEL = "Adding new disk...";
     private static String CHANGEAUTHORS_LABEL = "Changing run authors...";
+    private static String REWIND_LABEL = "Rewinding...";
 
     private static final long serialVersionUID = 8;
     private Plugins vPluginManager;
@@ -123,6 +133,18 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
     private volatile boolean running;
     private volatile boolean waiting;
     private boolean uncompressedSave;
+    private boolean deltaSave;
+    private boolean binarySave;
+    private boolean asyncSave;
+    private boolean pagedSave;
+    private ExecutorService savestateWriter;
+    private final AtomicInteger asyncSavesPending = new AtomicInteger();
+    //Each pending background save holds a whole captured savestate in memory.
+    private static final int MAX_ASYNC_SAVES_PENDING = 4;
+    private final Semaphore asyncSaveSlots = new Semaphore(MAX_ASYNC_SAVES_PENDING);
+    private final Map<String, Future<?>> pendingWrites = new HashMap<String, Future<?>>();  //Latest by file.
+    private volatile RewindBuffer rewind;
+    private static final long DEFAULT_REWIND_MEGABYTES = 64;
     private volatile boolean needRepaint;
     private static final long[] stopTime;
     private static final String[] stopLabel;
@@ -233,15 +255,60 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
 
     public boolean systemShutdown()
     {
-        if(!running || pc == null)
-            return true;
-        //We are running. Do the absolute minimum since we are running in very delicate context.
-        shuttingDown = true;
-        stop();
-        while(running);
+        if(running && pc != null) {
+            //We are running. Do the absolute minimum since we are running in very delicate context.
+            shuttingDown = true;
+            stop();
+            while(running);
+        }
+        finishSavestateWrites();
         return true;
     }
 
+    private void finishSavestateWrites()
+    {
+        ExecutorService writer;
+        synchronized(this) {
+            writer = savestateWriter;
+            savestateWriter = null;
+        }
+        if(writer == null)
+            return;
+        writer.shutdown();
+        if(asyncSavesPending.get() > 0)
+            System.err.println("Informational: Waiting for " + asyncSavesPending.get() + " background savestate(s)...");
+        try {
+            while(!writer.awaitTermination(1, TimeUnit.SECONDS));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Savestate files are only read or written synchronously once background writes to them are done.
+    private void waitForSavestateWrite(String fileName)
+    {
+        Future<?> write;
+        synchronized(this) {
+            write = pendingWrites.get(fileName);
+        }
+        if(write == null)
+            return;
+        if(!write.isDone())
+            System.err.println("Informational: Waiting for background savestate to " + fileName + "...");
+        try {
+            write.get();
+        } catch(ExecutionException e) {
+            //The write reports its own failure.
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized(this) {
+            if(pendingWrites.get(fileName) == write)
+                pendingWrites.remove(fileName);
+        }
+    }
+
     public void reconnect(PC pc)
     {
         this.pc = pc;
@@ -272,6 +339,9 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
     {
         currentResolutionWidth = w;
         currentResolutionHeight = h;
+        RewindBuffer _rewind = rewind;
+        if(_rewind != null)
+            _rewind.frameReceived();
         updateStatusBar();
     }
 
@@ -461,7 +531,8 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
                         SwingUtilities.invokeAndWait(new Thread() { public void run() { stopNoWait(); }});
                     doCycle(pc);
                     running = false;
-                }
+                } else
+                    takeRewindSnapshot();
             } catch (Exception e) {
                 doCycle(pc);
                 running = false;
@@ -479,6 +550,19 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
     }
 
 
+    private void takeRewindSnapshot()
+    {
+        RewindBuffer _rewind = rewind;
+        if(_rewind == null || currentProject.events == null || !_rewind.isSnapshotDue())
+            return;
+        try {
+            _rewind.snapshot(currentProject);
+        } catch(IOException e) {
+            System.err.println("Warning: Failed to take rewind snapshot: " + e.getMessage());
+            _rewind.clear();
+        }
+    }
+
     public void connectPC(PC pc)
     {
         currentProject.pc = pc;
@@ -531,6 +615,16 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
         return setTask(new SaveStateTask(projectIDMangleFileName(filename), false), SAVESTATE_LABEL);
     }
 
+    public boolean eci_state_save_async(String filename)
+    {
+        return setTask(new SaveStateTask(projectIDMangleFileName(filename), false, true), SAVESTATE_LABEL);
+    }
+
+    public void eci_async_saves_pending()
+    {
+        vPluginManager.returnValue(asyncSavesPending.get());
+    }
+
     public boolean eci_state_dump(String filename)
     {
         return setTask(new StatusDumpTask(filename), STATUSDUMP_LABEL);
@@ -559,6 +653,42 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
             LOADSTATE_LABEL);
     }
 
+    public void eci_rewind_enable(Integer frames, Integer megabytes)
+    {
+        int interval = (frames != null) ? frames.intValue() : 0;
+        long limit = ((megabytes != null) ? megabytes.intValue() : DEFAULT_REWIND_MEGABYTES) << 20;
+        rewind = new RewindBuffer(interval, limit, true);
+    }
+
+    public void eci_rewind_disable()
+    {
+        rewind = null;
+    }
+
+    public boolean eci_rewind_snapshot()
+    {
+        return setTask(new RewindTask(-1), REWIND_LABEL);
+    }
+
+    public boolean eci_rewind_restore(Integer back)
+    {
+        return setTask(new RewindTask((back != null) ? back.intValue() : 0), REWIND_LABEL);
+    }
+
+    public void eci_rewind_status()
+    {
+        RewindBuffer _rewind = rewind;
+        if(_rewind != null)
+            vPluginManager.returnValue(_rewind.getSnapshotCount(), _rewind.getMemoryUsed());
+    }
+
+    public void eci_rewind_time(Integer back)
+    {
+        RewindBuffer _rewind = rewind;
+        if(_rewind != null && back != null && _rewind.getSnapshotTime(back.intValue()) >= 0)
+            vPluginManager.returnValue(_rewind.getSnapshotTime(back.intValue()));
+    }
+
     public boolean eci_pc_assemble()
     {
         return setTask(new AssembleTask(), ASSEMBLE_LABEL);
@@ -798,6 +928,21 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
         String uncompress = params.get("uncompressedsave");
         if(uncompress != null)
             uncompressedSave = true;
+        if(params.get("deltasave") != null)
+            deltaSave = true;
+        if(params.get("binarysave") != null)
+            binarySave = true;
+        if(params.get("asyncsave") != null)
+            asyncSave = true;
+        if(params.get("pagedsave") != null)
+            pagedSave = true;
+        if(params.get("rewind") != null) {
+            long limit = DEFAULT_REWIND_MEGABYTES << 20;
+            if(params.get("rewindmemory") != null)
+                limit = Long.parseLong(params.get("rewindmemory")) << 20;
+            rewind = new RewindBuffer(Integer.parseInt(params.get("rewind")), limit,
+                params.get("rewindfull") == null);
+        }
         if(extramenu == null)
             return;
         try {
@@ -899,6 +1044,7 @@ public class PCControl implements Plugin, PCMonitorPanelEmbedder
             new Object[]{new Integer(LoadStateTask.MODE_PRESERVE)}, PROFILE_STOPPED | PROFILE_EVENTS);
         menuManager.addMenuItem("Snapshot→Load→Movie", this, "menuLoad",
             new Object[]{new Integer(LoadStateTask.MODE_MOVIEONLY)}, PROFILE_STOPPED);
+        menuManager.addMenuItem("Snapshot→Rewind", this, "menuRewind", null, PROFILE_HAVE_PC | PROFILE_STOPPED);
         menuManager.addMenuItem("Snapshot→RAM Dump→Hexadecimal", this, "menuRAMDump", new Object[]{new Boolean(false)},
             PROFILE_HAVE_PC | PROFILE_STOPPED);
         menuManager.addMenuItem("Snapshot→RAM Dump→Binary", this, "menuRAMDump", new Object[]{new Boolean(true)},
@@ -1317,6 +1463,11 @@ e.printStackTrace();
         setTask(new LoadStateTask(((Integer)args[0]).intValue()), LOADSTATE_LABEL);
     }
 
+    public void menuRewind(String i, Object[] args)
+    {
+        setTask(new RewindTask(0), REWIND_LABEL);
+    }
+
     public void menuRAMDump(String i, Object[] args)
     {
         setTask(new RAMDumpTask(((Boolean)args[0]).booleanValue()), RAMDUMP_LABEL);
@@ -1550,6 +1701,7 @@ e.printStackTrace();
                 return;
 
             try {
+                waitForSavestateWrite(chosen.getAbsolutePath());
                 System.err.println("Informational: Loading a snapshot of JPC-RR");
                 long times1 = System.currentTimeMillis();
                 JRSRArchiveReader reader = new JRSRArchiveReader(chosen.getAbsolutePath());
@@ -1562,7 +1714,7 @@ e.printStackTrace();
                 if(!submovies.isEmpty())
                     choosenSubmovie = chooseMovie(submovies);
                 fullStatus = PC.loadSavestate(reader, _mode == MODE_PRESERVE, _mode == MODE_MOVIEONLY,
-                    currentProject, choosenSubmovie);
+                    currentProject, choosenSubmovie, chosen.getAbsolutePath());
 
                 currentProject = fullStatus;
 
@@ -1594,6 +1746,9 @@ e.printStackTrace();
         File chosen;
         Exception caught;
         boolean movieOnly;
+        boolean async;
+        boolean binary;
+        boolean uncompressed;
         long oTime;
 
         public SaveStateTask(boolean movie)
@@ -1601,6 +1756,9 @@ e.printStackTrace();
             oTime = System.currentTimeMillis();
             chosen = null;
             movieOnly = movie;
+            async = asyncSave;
+            binary = binarySave;
+            uncompressed = uncompressedSave;
         }
 
         public SaveStateTask(String name, boolean movie)
@@ -1609,6 +1767,12 @@ e.printStackTrace();
             chosen = new File(name);
         }
 
+        public SaveStateTask(String name, boolean movie, boolean background)
+        {
+            this(name, movie);
+            async = background;
+        }
+
         protected void runPrepare()
         {
             if(chosen == null) {
@@ -1635,17 +1799,43 @@ e.printStackTrace();
             if(chosen == null)
                 return;
 
+            if(async) {
+                if(!asyncSaveSlots.tryAcquire()) {
+                    System.err.println("Informational: " + MAX_ASYNC_SAVES_PENDING + " background savestates " +
+                        "pending, waiting for one to finish.");
+                    asyncSaveSlots.acquireUninterruptibly();
+                }
+                try {
+                    PC.checkSavestateOverwrite(chosen.getAbsolutePath());
+                    long times1 = System.currentTimeMillis();
+                    PC.CapturedSavestate capture = PC.captureSavestate(currentProject, movieOnly,
+                        chosen.getAbsolutePath(), pagedSave, binary);
+                    long times2 = System.currentTimeMillis();
+                    System.err.println("Informational: Savestate captured (" + capture.getSize() + " bytes, " +
+                        (times2 - times1) + "ms), writing in background.");
+                    writeSavestate(capture, chosen, binary, uncompressed);
+                } catch(Exception e) {
+                    asyncSaveSlots.release();
+                    caught = e;
+                }
+                return;
+            }
+
             JRSRArchiveWriter writer = null;
 
             try {
+                waitForSavestateWrite(chosen.getAbsolutePath());
                 System.err.println("Informational: Savestating...");
+                PC.checkSavestateOverwrite(chosen.getAbsolutePath());
                 long times1 = System.currentTimeMillis();
-                writer = new JRSRArchiveWriter(chosen.getAbsolutePath());
-                PC.saveSavestate(writer, currentProject, movieOnly, uncompressedSave);
+                writer = new JRSRArchiveWriter(chosen.getAbsolutePath(), binary);
+                PC.saveSavestate(writer, currentProject, movieOnly, uncompressed,
+                    deltaSave ? chosen.getAbsolutePath() : null, pagedSave);
                 renameFile(chosen, new File(chosen.getAbsolutePath() + ".backup"));
                 writer.close();
                 long times2 = System.currentTimeMillis();
-                System.err.println("Informational: Savestate complete (" + (times2 - times1) + "ms). on"+chosen.getAbsolutePath());
+                System.err.println("Informational: Savestate complete (" + (times2 - times1) + "ms) on " +
+                    chosen.getAbsolutePath() + ".");
             } catch(Exception e) {
                  if(writer != null)
                      try { writer.rollback(); } catch(Exception f) {}
@@ -1654,6 +1844,110 @@ e.printStackTrace();
         }
     }
 
+    private synchronized void writeSavestate(final PC.CapturedSavestate capture, final File chosen,
+        final boolean binary, final boolean uncompressed)
+    {
+        //Single writer thread, so saves to the same file complete in order.
+        if(savestateWriter == null)
+            savestateWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Savestate writer thread");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        asyncSavesPending.incrementAndGet();
+        //Writes to a file complete in order, so waiting for the latest one waits for all of them.
+        pendingWrites.put(chosen.getAbsolutePath(), savestateWriter.submit(new Runnable() {
+            public void run()
+            {
+                JRSRArchiveWriter writer = null;
+                Exception caught = null;
+                try {
+                    long times1 = System.currentTimeMillis();
+                    writer = new JRSRArchiveWriter(chosen.getAbsolutePath(), binary);
+                    capture.write(writer, uncompressed);
+                    renameFile(chosen, new File(chosen.getAbsolutePath() + ".backup"));
+                    writer.close();
+                    long times2 = System.currentTimeMillis();
+                    System.err.println("Informational: Background savestate complete (" + (times2 - times1) +
+                        "ms) on " + chosen.getAbsolutePath() + ".");
+                } catch(Exception e) {
+                    if(writer != null)
+                        try { writer.rollback(); } catch(Exception f) {}
+                    caught = e;
+                }
+                asyncSaveSlots.release();
+                asyncSavesPending.decrementAndGet();
+                if(caught == null) {
+                    sendMessage("SavestateWritten " + chosen.getAbsolutePath());
+                    return;
+                }
+                sendMessage("SavestateFailed " + chosen.getAbsolutePath());
+                final Exception failure = caught;
+                SwingUtilities.invokeLater(new Runnable() { public void run() {
+                    errorDialog(failure, "Saving savestate failed", window, "Dismiss");
+                }});
+            }
+        }));
+    }
+
+    private class RewindTask extends AsyncGUITask
+    {
+        int back;
+        Exception caught;
+        boolean restored;
+
+        public RewindTask(int back)
+        {
+            this.back = back;
+        }
+
+        protected void runPrepare()
+        {
+        }
+
+        protected void runFinish()
+        {
+            if(caught == null && restored) {
+                try {
+                    connectPC(pc = currentProject.pc);
+                    needRepaint = true;
+                } catch(Exception e) {
+                    caught = e;
+                }
+            }
+            if(caught != null) {
+                errorDialog(caught, "Rewind failed", window, "Dismiss");
+            }
+            PCControl.this.vPluginManager.signalCommandCompletion();
+        }
+
+        protected void runTask()
+        {
+            RewindBuffer _rewind = rewind;
+            try {
+                if(_rewind == null)
+                    throw new IOException("Rewinding is not enabled");
+                if(back < 0) {
+                    _rewind.snapshot(currentProject);
+                    return;
+                }
+                currentProject = _rewind.restore(back, currentProject);
+                restored = true;
+
+                /* Force readonly mode if needed, otherwise truncate. */
+                boolean wasReadonly = inReadonlyMode;
+                setReadonlyMode(true);
+                if(!wasReadonly)
+                    setReadonlyMode(false);
+            } catch(Exception e) {
+                 caught = e;
+            }
+        }
+    }
+
     private class StatusDumpTask extends AsyncGUITask
     {
         File chosen;
@@ -48,6 +48,7 @@ public class PCRunner implements Plugin
     private boolean shutDownRequest;
     private boolean vgaDrawHack;
     private boolean vgaScroll2Hack;
+    private boolean headless;
     private long imminentTrapTime;
 
     protected PC pc;
@@ -139,6 +140,11 @@ public class PCRunner implements Plugin
         if(caught == null) {
             try {
                 connectPC(pc);
+                if(headless) {
+                    //Devices skip drawing and sound output while nothing consumes it.
+                    pc.getOutputs().setOnlyWhenConsumed(true);
+                    System.err.println("Informational: Skipping output while no plugin consumes it");
+                }
                 System.err.println("Informational: Loadstate done");
             } catch(Exception e) {
                 caught = e;
@@ -217,5 +223,7 @@ public class PCRunner implements Plugin
             this.vgaDrawHack = true;
         if(params.get("vgascroll2hack") != null)
             this.vgaScroll2Hack = true;
+        if(params.get("headless") != null)
+            this.headless = true;
     }
 }